@@ -14,12 +14,14 @@ public interface Action {
      * <p/>
      * The new position must be {@code >= position} and {@code <= subject.length()}
      * unless a negative position is returned which means that the match should fail.
+     * Positions are {@code char} indices into the subject.
      *
-     * @param subject The subject being matched against.
+     * @param subject The subject being matched against. It's the subject given when matching
+     * (or a view of it, that is only valid during the match) and it's never copied.
      * @param offset The position before the match.
      * @param position The current position after the match.
      * @return The new position to match from or a negative position to fail.
      */
-    public int match(String subject, int offset, int position);
+    public int match(CharSequence subject, int offset, int position);
 
 }
@@ -83,8 +83,8 @@ public class Capturer implements Action {
      * {@inheritDoc}
      */
     @Override
-    public int match(String subject, int offset, int position) {
-        captures.addFirst(new Capture(offset, subject.substring(offset, position)));
+    public int match(CharSequence subject, int offset, int position) {
+        captures.addFirst(new Capture(offset, subject.subSequence(offset, position).toString()));
         return position;
     }
 
@@ -0,0 +1,167 @@
+package se.fishtank.pegless;
+
+import java.util.Objects;
+
+/**
+ * Options used when compiling a {@link Pattern}.
+ * <p/>
+ * Instances are immutable, every {@code withX} method returns a new
+ * instance with the option changed.
+ *
+ * @author Christer Sandberg
+ */
+public final class CompileOptions {
+
+    /** The options used by {@link Pattern#compile()}. */
+    public static final CompileOptions DEFAULT = new CompileOptions(false, Engine.INTERPRETER, 0, null);
+
+    /** The largest number of entries for {@link #withMemoTableSize(int)}. */
+    public static final int MAX_MEMO_TABLE_SIZE = 1 << 24;
+
+    private final boolean utf8Automata;
+
+    private final Engine engine;
+
+    private final int memoTableSize;
+
+    private final MemoPlan memoPlan;
+
+    private CompileOptions(boolean utf8Automata, Engine engine, int memoTableSize, MemoPlan memoPlan) {
+        this.utf8Automata = utf8Automata;
+        this.engine = engine;
+        this.memoTableSize = memoTableSize;
+        this.memoPlan = memoPlan;
+    }
+
+    /**
+     * Returns whether character sets are lowered to automata over UTF-8 bytes.
+     *
+     * @return {@code true} or {@code false}
+     */
+    public boolean isUtf8Automata() {
+        return utf8Automata;
+    }
+
+    /**
+     * Lower character sets to automata over UTF-8 bytes as well.
+     * <p/>
+     * Matching UTF-8 encoded byte buffers then never decodes characters
+     * when testing them against sets, and sets test ASCII characters with
+     * a single table lookup. It makes compiling more expensive and has no
+     * effect when matching character sequences.
+     *
+     * @param utf8Automata Whether to lower character sets.
+     * @return New options.
+     */
+    public CompileOptions withUtf8Automata(boolean utf8Automata) {
+        return new CompileOptions(utf8Automata, engine, memoTableSize, memoPlan);
+    }
+
+    /**
+     * Returns the engine used to match character sequences.
+     *
+     * @return The engine.
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Match character sequences with the specified engine.
+     *
+     * @param engine The engine.
+     * @return New options.
+     */
+    public CompileOptions withEngine(Engine engine) {
+        if (engine == null)
+            throw new IllegalArgumentException("Invalid engine");
+
+        return new CompileOptions(utf8Automata, engine, memoTableSize, memoPlan);
+    }
+
+    /**
+     * Returns the number of entries in the table memoizing the results of
+     * rules, or {@code 0} if they aren't memoized.
+     *
+     * @return The number of entries.
+     */
+    public int getMemoTableSize() {
+        return memoTableSize;
+    }
+
+    /**
+     * Memoize the results of rules in a table with the specified number
+     * of entries, rounded up to a power of two, per session.
+     * <p/>
+     * A rule called again where it was called before then returns its
+     * earlier result rather than matching again, so grammars that backtrack
+     * a lot match in time linear in the length of the subject, as long as
+     * the table holds the results. A result evicts the one in its entry.
+     * Rules that may run actions, themselves or in the rules they call,
+     * are never memoized since their actions must run on every call.
+     * <p/>
+     * Patterns with memoized rules are matched by the <em>VM</em> whatever
+     * the engine, and streamed or pushed subjects aren't memoized. To
+     * memoize only the rules where it pays off, see {@link MemoPlan}.
+     *
+     * @param memoTableSize The number of entries, {@code 0} to not memoize.
+     * @return New options.
+     */
+    public CompileOptions withMemoTableSize(int memoTableSize) {
+        if (memoTableSize < 0 || memoTableSize > MAX_MEMO_TABLE_SIZE)
+            throw new IllegalArgumentException("Invalid memo table size");
+
+        return new CompileOptions(utf8Automata, engine, memoTableSize, memoPlan);
+    }
+
+    /**
+     * Returns the plan deciding which rules are memoized, or {@code null}
+     * if every rule without actions is.
+     *
+     * @return The plan or {@code null}
+     */
+    public MemoPlan getMemoPlan() {
+        return memoPlan;
+    }
+
+    /**
+     * Memoize only the rules the specified plan memoizes, rather than
+     * every rule without actions. Calls to the other rules are as fast
+     * as without memoization, and if the plan memoizes no rule the pattern
+     * is matched by the engine again.
+     * <p/>
+     * Has no effect unless rules are memoized, see {@link #withMemoTableSize(int)}.
+     * Compiling a pattern other than the one the plan was made for fails.
+     *
+     * @param memoPlan The plan or {@code null} to memoize every rule.
+     * @return New options.
+     */
+    public CompileOptions withMemoPlan(MemoPlan memoPlan) {
+        return new CompileOptions(utf8Automata, engine, memoTableSize, memoPlan);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+
+        if (!(o instanceof CompileOptions))
+            return false;
+
+        CompileOptions other = (CompileOptions) o;
+        return utf8Automata == other.utf8Automata && engine == other.engine && memoTableSize == other.memoTableSize
+                && Objects.equals(memoPlan, other.memoPlan);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return ((engine.hashCode() * 31 + (utf8Automata ? 1 : 0)) * 31 + memoTableSize) * 31 + Objects.hashCode(memoPlan);
+    }
+
+}
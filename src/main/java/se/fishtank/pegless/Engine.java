@@ -0,0 +1,38 @@
+package se.fishtank.pegless;
+
+/**
+ * The engines a {@link PatternMatcher} can match character sequences with.
+ *
+ * @see CompileOptions#withEngine(Engine)
+ *
+ * @author Christer Sandberg
+ */
+public enum Engine {
+
+    /** Run the compiled instructions with the <em>VM</em>. */
+    INTERPRETER,
+
+    /**
+     * Translate the compiled instructions to JVM bytecode, a class per
+     * pattern, that the JIT can optimize like code written by hand.
+     * <p/>
+     * Patterns too large to be translated, patterns memoizing rules and
+     * subjects that aren't character sequences are still matched by the
+     * <em>VM</em>.
+     */
+    BYTECODE,
+
+    /**
+     * Compile the nodes of the pattern into a tree of matcher objects,
+     * where backtracking uses the call stack of the thread instead of
+     * the stacks of a session.
+     * <p/>
+     * Subjects that aren't character sequences, patterns nesting too deep
+     * and patterns memoizing rules are still matched by the <em>VM</em>.
+     * A match recursing deeper than the stack of the thread allows, such
+     * as a right recursive rule over a long subject, is matched again by
+     * the <em>VM</em>, calling the actions it had already called again.
+     */
+    CLOSURES
+
+}
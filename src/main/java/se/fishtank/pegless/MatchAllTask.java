@@ -0,0 +1,65 @@
+package se.fishtank.pegless;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Matches a range of subjects, splitting it between workers.
+ *
+ * @see PatternMatcher#matchAll(java.util.List, java.util.concurrent.ForkJoinPool)
+ *
+ * @author Christer Sandberg
+ */
+class MatchAllTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final PatternMatcher matcher;
+
+    private final CharSequence[] subjects;
+
+    private final int[] ends;
+
+    private final int from;
+
+    private final int to;
+
+    private final int threshold;
+
+    /**
+     * Create a new instance.
+     *
+     * @param matcher The pattern matcher to match with.
+     * @param subjects The subjects.
+     * @param ends Receives the end of every match.
+     * @param from The index of the first subject to match.
+     * @param to The index after the last subject to match.
+     * @param threshold The number of subjects to match without splitting.
+     */
+    MatchAllTask(PatternMatcher matcher, CharSequence[] subjects, int[] ends, int from, int to, int threshold) {
+        this.matcher = matcher;
+        this.subjects = subjects;
+        this.ends = ends;
+        this.from = from;
+        this.to = to;
+        this.threshold = threshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void compute() {
+        if (to - from > threshold) {
+            int middle = (from + to) >>> 1;
+            invokeAll(new MatchAllTask(matcher, subjects, ends, from, middle, threshold),
+                    new MatchAllTask(matcher, subjects, ends, middle, to, threshold));
+            return;
+        }
+
+        // Ranges are only split above the threshold of at least 64 subjects, so a session each is cheap.
+        MatchSession session = matcher.newSession();
+        for (int i = from; i < to; ++i)
+            ends[i] = session.matchEnd(subjects[i]);
+    }
+
+}
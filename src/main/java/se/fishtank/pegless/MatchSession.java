@@ -0,0 +1,1202 @@
+package se.fishtank.pegless;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import se.fishtank.pegless.internal.bytecode.Stacks;
+import se.fishtank.pegless.internal.compiler.CharacterMatcher;
+import se.fishtank.pegless.internal.compiler.Instructions;
+import se.fishtank.pegless.internal.compiler.SwitchTable;
+import se.fishtank.pegless.internal.input.ChannelInput;
+import se.fishtank.pegless.internal.input.Input;
+import se.fishtank.pegless.internal.input.PushInput;
+import se.fishtank.pegless.internal.input.ReaderInput;
+import se.fishtank.pegless.internal.input.Utf8Input;
+import se.fishtank.pegless.internal.util.CharArraySequence;
+
+/**
+ * A match session for a {@link PatternMatcher}.
+ * <p/>
+ * A session owns the stacks used while matching and the state of the
+ * last match, and reuses them between matches. Once the stacks have
+ * grown to what a pattern needs, matching does not allocate.
+ * <p/>
+ * A session is not thread safe. Use one session per thread.
+ *
+ * @author Christer Sandberg
+ */
+public class MatchSession {
+
+    /** Initial number of entries for the stacks used while matching. */
+    static final int INITIAL_STACK_SIZE = 32;
+
+    /** The number of ints making up an entry on the backtrack stack. */
+    static final int BACKTRACK_ENTRY_SIZE = 4;
+
+    /** Initial number of units in the window used for streamed subjects. */
+    static final int INITIAL_WINDOW_SIZE = 8192;
+
+    /** The number of ints making up an entry in the memo table. */
+    static final int MEMO_ENTRY_SIZE = 4;
+
+    /** The number of ints making up a frame for a call to a memoized rule. */
+    static final int MEMO_FRAME_SIZE = 3;
+
+    /** Returned by the <em>VM</em> when it suspends waiting for more input. */
+    static final int SUSPENDED = -2;
+
+    /** The pattern matcher for this session. */
+    private final PatternMatcher matcher;
+
+    /**
+     * Results of memoized rules, entries of the match they belong to, the
+     * rule, the position it was called at and where it ended or {@code -1}
+     * if it failed. Allocated by the first match memoizing rules.
+     */
+    private int[] memo;
+
+    /** The match the valid entries of {@link #memo} belong to. */
+    private int memoMatch;
+
+    /** The number of calls to every memoized rule, by all matches. */
+    private long[] memoCalls;
+
+    /** The number of calls to every memoized rule where it had been called before. */
+    private long[] memoReinvocations;
+
+    /** The memoized rules being matched, the rule, its position and the call depth. */
+    private int[] memoFrames = new int[INITIAL_STACK_SIZE * MEMO_FRAME_SIZE];
+
+    /** Offsets for the pending actions. */
+    private int[] actionOffsets = new int[INITIAL_STACK_SIZE];
+
+    /** The pending actions. */
+    private Action[] actions = new Action[INITIAL_STACK_SIZE];
+
+    /** Return addresses for calls. */
+    private int[] calls = new int[INITIAL_STACK_SIZE];
+
+    /** Backtrack entries, each made up of {@link #BACKTRACK_ENTRY_SIZE} ints. */
+    private int[] backtrack = new int[INITIAL_STACK_SIZE * BACKTRACK_ENTRY_SIZE];
+
+    /** The stacks handed to compiled programs, created when first needed. */
+    private Stacks stacks;
+
+    /** Reused view for char array subjects. */
+    private final CharArraySequence charArraySequence = new CharArraySequence();
+
+    /** Reused input for UTF-8 subjects. */
+    private final Utf8Input utf8Input = new Utf8Input();
+
+    /** Reused input for readers, created when first needed. */
+    private ReaderInput readerInput;
+
+    /** Reused input for channels, created when first needed. */
+    private ChannelInput channelInput;
+
+    /** Reused input for pushed subjects, created when first needed. */
+    private PushInput pushInput;
+
+    /** The status of the current push match or {@code null} if there is none. */
+    private MatchStatus pushStatus;
+
+    /** The registers of the <em>VM</em> while a push match is suspended. */
+    private int suspendedPc, suspendedPos, suspendedOffset, suspendedActions, suspendedCallDepth, suspendedTop;
+
+    /** Start index of the last match. */
+    private int start = -1;
+
+    /** The offset after the last character matched by the last match or {@code -1}. */
+    private int end = -1;
+
+    /** The offset after the last unit matched by the last streamed or pushed match or {@code -1}. */
+    private long streamEnd = -1;
+
+    /**
+     * Create a new session.
+     *
+     * @param matcher The pattern matcher for the session.
+     */
+    MatchSession(PatternMatcher matcher) {
+        this.matcher = matcher;
+    }
+
+    /**
+     * Returns the pattern matcher for this session.
+     *
+     * @return The pattern matcher.
+     */
+    public PatternMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * Same as {@link #matchEnd(CharSequence, int)} specifying {@code 0} as offset.
+     *
+     * @param subject The subject to match against.
+     * @return The offset after the last character matched or {@code -1}.
+     */
+    public int matchEnd(CharSequence subject) {
+        return matchEnd(subject, 0);
+    }
+
+    /**
+     * Attempt to match the pattern against the given subject starting
+     * at the specified offset.
+     *
+     * @param subject The subject to match against.
+     * @param offset The offset to start matching at.
+     * @return The offset after the last character matched or {@code -1}
+     * if the match failed.
+     */
+    public int matchEnd(CharSequence subject, int offset) {
+        if (subject == null || offset < 0 || offset > subject.length())
+            throw new IllegalArgumentException("Invalid subject or offset");
+
+        return match(subject, offset);
+    }
+
+    /**
+     * Find the first match of the pattern in the given subject, starting
+     * at any offset from {@code from} and on.
+     * <p/>
+     * Offsets that can't start a match are skipped without running the
+     * pattern: if every match starts with the same string, it's searched
+     * for with {@link String#indexOf(String, int)} (when the subject is a
+     * string), otherwise offsets whose character isn't in the set of
+     * characters a match can start with are skipped.
+     * <p/>
+     * {@link #getStart()} and {@link #getEnd()} describe the match found.
+     *
+     * @param subject The subject to search.
+     * @param from The offset to start searching at.
+     * @return The offset where the match starts or {@code -1} if there's no match.
+     */
+    public int find(CharSequence subject, int from) {
+        if (subject == null || from < 0 || from > subject.length())
+            throw new IllegalArgumentException("Invalid subject or offset");
+
+        return find(subject, from, subject.length());
+    }
+
+    /**
+     * Same as {@link #find(CharSequence, int)} but only for matches starting
+     * at {@code to} at the latest.
+     */
+    int find(CharSequence subject, int from, int to) {
+        Instructions instructions = matcher.instructions;
+        int len = subject.length();
+
+        if (instructions.prefix != null && subject instanceof String) {
+            String string = (String) subject;
+            for (int i = string.indexOf(instructions.prefix, from); i >= 0 && i <= to; i = string.indexOf(instructions.prefix, i + 1)) {
+                if (match(subject, i) >= 0)
+                    return i;
+            }
+        } else if (instructions.firstSet != null) {
+            CharacterMatcher firstSet = instructions.firstSet;
+            for (int i = from; i < len && i <= to; ) {
+                int c = Character.codePointAt(subject, i);
+                if (firstSet.match(c) && match(subject, i) >= 0)
+                    return i;
+
+                i += Character.charCount(c);
+            }
+        } else {
+            for (int i = from; ; i = next(subject, i, len)) {
+                if (match(subject, i) >= 0)
+                    return i;
+
+                if (i >= to)
+                    break;
+            }
+        }
+
+        start = from;
+        end = -1;
+
+        return -1;
+    }
+
+    /**
+     * Attempt to match the pattern against the given slice of a char array.
+     * <p/>
+     * Matching starts at {@code offset} and never looks at characters past
+     * the slice. The returned offset is an index into {@code subject}. Actions
+     * are handed a character sequence view of the array that is indexed the
+     * same way and that is only valid during the match.
+     *
+     * @param subject The subject to match against.
+     * @param offset The offset to start matching at.
+     * @param length The number of characters in the slice.
+     * @return The offset after the last character matched or {@code -1}
+     * if the match failed.
+     */
+    public int matchEnd(char[] subject, int offset, int length) {
+        if (subject == null || offset < 0 || length < 0 || offset + length > subject.length)
+            throw new IllegalArgumentException("Invalid subject, offset or length");
+
+        charArraySequence.reset(subject, offset + length);
+        try {
+            return match(charArraySequence, offset);
+        } finally {
+            charArraySequence.reset(null, 0);
+        }
+    }
+
+    /**
+     * Same as {@link #matchEnd(ByteBuffer, int)} specifying the position
+     * of {@code subject} as offset.
+     *
+     * @param subject The UTF-8 encoded subject to match against.
+     * @return The offset after the last byte matched or {@code -1}.
+     */
+    public int matchEnd(ByteBuffer subject) {
+        return matchEnd(subject, subject.position());
+    }
+
+    /**
+     * Attempt to match the pattern against the given UTF-8 encoded subject
+     * starting at the specified offset.
+     * <p/>
+     * The bytes are decoded while matching. Each malformed byte decodes to
+     * a code point of its own in the range U+DC80 - U+DCFF, so it's only
+     * matched by patterns matching any character or sets including those.
+     * Offsets are absolute byte indices into {@code subject} and matching
+     * never looks at bytes at or past its limit. The position of {@code subject}
+     * is not changed. Actions are handed a character sequence view of the
+     * bytes that is indexed the same way and that is only valid during the
+     * match. Its {@code charAt} returns single bytes while {@code subSequence}
+     * decodes the bytes of the range.
+     * <p/>
+     * Heap, direct and memory-mapped buffers are all matched in place.
+     *
+     * @param subject The UTF-8 encoded subject to match against.
+     * @param offset The offset to start matching at.
+     * @return The offset after the last byte matched or {@code -1}
+     * if the match failed.
+     */
+    public int matchEnd(ByteBuffer subject, int offset) {
+        if (subject == null || offset < 0 || offset > subject.limit())
+            throw new IllegalArgumentException("Invalid subject or offset");
+
+        utf8Input.reset(subject, subject.limit());
+        try {
+            return match(utf8Input, offset);
+        } finally {
+            utf8Input.reset(null, 0);
+        }
+    }
+
+    /**
+     * Attempt to match the pattern against the characters read from
+     * the specified reader.
+     * <p/>
+     * Characters are read in chunks into a window that only holds what
+     * matching might still need: what backtracking and look behind might
+     * return to and what pending actions will be handed. Everything before
+     * that is discarded as matching moves on, so memory use is bounded by
+     * how far back the pattern might need to go and not by the size of the
+     * subject. The reader is not closed, and characters read past the end
+     * of the match are lost.
+     * <p/>
+     * Actions are handed a view of the window with positions relative to
+     * the start of the window. The view is only valid during the call.
+     * {@link #getEnd()} is capped at {@link Integer#MAX_VALUE}, use the
+     * returned offset for subjects larger than that.
+     *
+     * @param subject The reader to read the subject from.
+     * @return The number of chars matched or {@code -1} if the match failed.
+     * @throws IOException If reading fails.
+     */
+    public long matchEnd(Reader subject) throws IOException {
+        if (subject == null)
+            throw new IllegalArgumentException("Invalid subject");
+
+        if (readerInput == null)
+            readerInput = new ReaderInput(INITIAL_WINDOW_SIZE);
+
+        readerInput.reset(subject);
+        try {
+            return match(readerInput);
+        } finally {
+            readerInput.reset(null);
+        }
+    }
+
+    /**
+     * Attempt to match the pattern against the UTF-8 encoded bytes read
+     * from the specified channel.
+     * <p/>
+     * Same as {@link #matchEnd(Reader)}, but positions are byte offsets and
+     * bytes are decoded as for {@link #matchEnd(ByteBuffer, int)}. The channel
+     * should be in blocking mode.
+     *
+     * @param subject The channel to read the subject from.
+     * @return The number of bytes matched or {@code -1} if the match failed.
+     * @throws IOException If reading fails.
+     */
+    public long matchEnd(ReadableByteChannel subject) throws IOException {
+        if (subject == null)
+            throw new IllegalArgumentException("Invalid subject");
+
+        if (channelInput == null)
+            channelInput = new ChannelInput(INITIAL_WINDOW_SIZE);
+
+        channelInput.reset(subject);
+        try {
+            return match(channelInput);
+        } finally {
+            channelInput.reset(null);
+        }
+    }
+
+    /**
+     * Begin a match of a UTF-8 encoded subject that's pushed in chunks.
+     * <p/>
+     * Feed the chunks as they arrive with {@link #feed(ByteBuffer)} and call
+     * {@link #finish()} at the end of the subject. Matching runs as far as the
+     * input fed so far allows and is then suspended, with all of its state kept
+     * in this session, until more is fed. Nothing is ever matched twice and
+     * feeding never blocks, which makes it suitable for non-blocking sockets.
+     * <p/>
+     * The window of input kept is bounded the same way as for
+     * {@link #matchEnd(ReadableByteChannel)}, and so are the positions
+     * handed to actions. Starting any other match on this session abandons
+     * the push match.
+     *
+     * @return The status, which is already final if the pattern didn't
+     * need to look at any input.
+     */
+    public MatchStatus begin() {
+        if (pushInput == null)
+            pushInput = new PushInput(INITIAL_WINDOW_SIZE);
+
+        pushInput.reset(true);
+        start = 0;
+        end = -1;
+        streamEnd = -1;
+        pushStatus = MatchStatus.NEED_MORE_INPUT;
+
+        return resume(run(pushInput, 0, 0, 0, 0, 0, 0));
+    }
+
+    /**
+     * Feed the next chunk of the subject to the current push match.
+     * <p/>
+     * All of the remaining bytes of {@code chunk} are consumed, even those
+     * past the end of a successful match. Use {@link #getStreamEnd()} to
+     * find out where the match ended.
+     *
+     * @param chunk The next chunk of the subject.
+     * @return The status.
+     * @throws IllegalStateException If there's no push match in progress.
+     */
+    public MatchStatus feed(ByteBuffer chunk) {
+        if (pushStatus != MatchStatus.NEED_MORE_INPUT)
+            throw new IllegalStateException("No push match in progress");
+
+        pushInput.append(chunk);
+        return resume(run(pushInput, suspendedPc, suspendedPos, suspendedOffset, suspendedActions,
+                suspendedCallDepth, suspendedTop));
+    }
+
+    /**
+     * Mark the end of the subject of the current push match.
+     *
+     * @return The final status.
+     * @throws IllegalStateException If no push match has been begun.
+     */
+    public MatchStatus finish() {
+        if (pushStatus == null)
+            throw new IllegalStateException("No push match in progress");
+
+        if (pushStatus != MatchStatus.NEED_MORE_INPUT)
+            return pushStatus;
+
+        pushInput.finish();
+        return resume(run(pushInput, suspendedPc, suspendedPos, suspendedOffset, suspendedActions,
+                suspendedCallDepth, suspendedTop));
+    }
+
+    /**
+     * Returns a plan memoizing the rules that the matches of this session
+     * called again where they had been called before often enough.
+     * <p/>
+     * Only calls memoizing their rules are counted, so profile with a
+     * pattern memoizing every rule. A result evicted from the memo table
+     * is no longer known when the rule is called again, so profile with
+     * a table large enough to hold the results.
+     *
+     * @see MemoPlan
+     *
+     * @return The plan.
+     */
+    public MemoPlan getMemoPlan() {
+        String[] rules = matcher.instructions.memoRules;
+        if (memoCalls == null)
+            return new MemoPlan(rules, new long[rules.length], new long[rules.length]);
+
+        return new MemoPlan(rules, memoCalls.clone(), memoReinvocations.clone());
+    }
+
+    /**
+     * Returns whether the last match was successful or not.
+     *
+     * @return {@code true} or {@code false}
+     */
+    public boolean matched() {
+        return end >= 0;
+    }
+
+    /**
+     * Returns the start index of the last match (i.e. subject offset).
+     *
+     * @return Start index or {@code -1} if nothing has been matched yet.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the offset after the last character matched by the
+     * last match or {@code -1} if it failed.
+     *
+     * @return The offset after the last character matched or {@code -1}.
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the offset after the last unit matched by the last streamed
+     * or pushed match, counted from the start of the stream.
+     *
+     * @return The offset or {@code -1} if the match failed or isn't done.
+     */
+    public long getStreamEnd() {
+        return streamEnd;
+    }
+
+    private int match(CharSequence subject, int offset) {
+        pushStatus = null;
+        streamEnd = -1;
+        start = offset;
+        end = -1;
+        end = matcher.program != null ? runProgram(subject, offset) : run(subject, offset);
+
+        return end;
+    }
+
+    private int match(Input input, int offset) {
+        pushStatus = null;
+        streamEnd = -1;
+        start = offset;
+        end = -1;
+        end = run(input, 0, offset, offset, 0, 0, 0);
+
+        return end;
+    }
+
+    private long match(Input input) throws IOException {
+        int end = match(input, 0);
+        if (input.failure != null)
+            throw input.failure;
+
+        if (end < 0)
+            return -1;
+
+        streamEnd = input.base + end;
+        this.end = (int) Math.min(streamEnd, Integer.MAX_VALUE);
+
+        return streamEnd;
+    }
+
+    private MatchStatus resume(int end) {
+        if (end == SUSPENDED)
+            return MatchStatus.NEED_MORE_INPUT;
+
+        if (end >= 0) {
+            streamEnd = pushInput.base + end;
+            this.end = (int) Math.min(streamEnd, Integer.MAX_VALUE);
+            pushStatus = MatchStatus.MATCHED;
+        } else {
+            pushStatus = MatchStatus.FAILED;
+        }
+
+        pushInput.reset(false);
+        return pushStatus;
+    }
+
+    private int run(CharSequence subject, int offset) {
+        final Instructions instructions = matcher.instructions;
+        final int[] code = instructions.code;
+        final CharacterMatcher[] matchers = instructions.matchers;
+        final String[] strings = instructions.strings;
+        final SwitchTable[] switches = instructions.switches;
+
+        int[] actionOffsets = this.actionOffsets;
+        Action[] actions = this.actions;
+        int[] calls = this.calls;
+        int[] backtrack = this.backtrack;
+
+        int len = subject.length();
+        int pos = offset;
+
+        int pc = 0;
+        int numberOfActions = 0;
+        int callDepth = 0;
+        int top = 0;
+
+        int[] memo = null;
+        int[] memoFrames = this.memoFrames;
+        int memoMatch = 0;
+        int memoTop = 0;
+        if (instructions.memoizes) {
+            memo = newMemoMatch();
+            memoMatch = this.memoMatch;
+        }
+
+        long[] memoCalls = this.memoCalls;
+        long[] memoReinvocations = this.memoReinvocations;
+
+        for (;;) {
+            int instruction = code[pc];
+
+            switch (instruction & Instructions.OPCODE_MASK) {
+            case Instructions.END:
+                return pos;
+            case Instructions.RET:
+                --callDepth;
+                if (memoTop > 0 && memoFrames[memoTop - 1] == callDepth) {
+                    memoTop -= MEMO_FRAME_SIZE;
+                    memoize(memo, memoMatch, memoFrames[memoTop], memoFrames[memoTop + 1], pos);
+                }
+
+                pc = calls[callDepth];
+                continue;
+            case Instructions.ANY:
+                if (pos < len) {
+                    pos = next(subject, pos, len);
+                    pc += Instructions.SIZE;
+                    continue;
+                }
+
+                break;
+            case Instructions.TEST_ANY:
+                if (pos < len) {
+                    pc += Instructions.SIZE;
+                } else {
+                    pc = code[pc + 1];
+                }
+
+                continue;
+            case Instructions.CHAR:
+                if (pos < len) {
+                    int c = Character.codePointAt(subject, pos);
+                    if (c == instruction >> Instructions.AUX_SHIFT) {
+                        pos += Character.charCount(c);
+                        pc += Instructions.SIZE;
+                        continue;
+                    }
+                }
+
+                break;
+            case Instructions.SET:
+                if (pos < len) {
+                    int c = Character.codePointAt(subject, pos);
+                    if (matchers[instruction >> Instructions.AUX_SHIFT].match(c)) {
+                        pos += Character.charCount(c);
+                        pc += Instructions.SIZE;
+                        continue;
+                    }
+                }
+
+                break;
+            case Instructions.TEST_CHAR:
+                if (pos < len && Character.codePointAt(subject, pos) == instruction >> Instructions.AUX_SHIFT) {
+                    pc += Instructions.SIZE;
+                } else {
+                    pc = code[pc + 1];
+                }
+
+                continue;
+            case Instructions.TEST_SET:
+                if (pos < len && matchers[instruction >> Instructions.AUX_SHIFT].match(Character.codePointAt(subject, pos))) {
+                    pc += Instructions.SIZE;
+                } else {
+                    pc = code[pc + 1];
+                }
+
+                continue;
+            case Instructions.STRING:
+                String str = strings[instruction >> Instructions.AUX_SHIFT];
+                if (startsWith(subject, pos, len, str)) {
+                    pos += str.length();
+                    pc += Instructions.SIZE;
+                    continue;
+                }
+
+                break;
+            case Instructions.TEST_STRING:
+                if (startsWith(subject, pos, len, strings[instruction >> Instructions.AUX_SHIFT])) {
+                    pc += Instructions.SIZE;
+                } else {
+                    pc = code[pc + 1];
+                }
+
+                continue;
+            case Instructions.SWITCH:
+                if (pos < len) {
+                    int c = Character.codePointAt(subject, pos);
+                    pc = switches[instruction >> Instructions.AUX_SHIFT].target(c, code[pc + 1]);
+                } else {
+                    pc = code[pc + 1];
+                }
+
+                continue;
+            case Instructions.BEHIND:
+                int p = back(subject, pos, offset, instruction >> Instructions.AUX_SHIFT);
+                if (p >= 0) {
+                    pos = p;
+                    pc += Instructions.SIZE;
+                    continue;
+                }
+
+                break;
+            case Instructions.SPAN:
+                CharacterMatcher matcher = matchers[instruction >> Instructions.AUX_SHIFT];
+                while (pos < len) {
+                    int c = Character.codePointAt(subject, pos);
+                    if (!matcher.match(c))
+                        break;
+
+                    pos += Character.charCount(c);
+                }
+
+                pc += Instructions.SIZE;
+                continue;
+            case Instructions.JMP:
+                pc = code[pc + 1];
+                continue;
+            case Instructions.CHOICE:
+                if (top == backtrack.length)
+                    backtrack = this.backtrack = Arrays.copyOf(backtrack, top * 2);
+
+                backtrack[top] = code[pc + 1];
+                backtrack[top + 1] = pos;
+                backtrack[top + 2] = numberOfActions;
+                backtrack[top + 3] = callDepth;
+                top += BACKTRACK_ENTRY_SIZE;
+                pc += Instructions.SIZE;
+                continue;
+            case Instructions.CALL:
+                int rule = instruction >> Instructions.AUX_SHIFT;
+                if (rule >= 0) {
+                    ++memoCalls[rule];
+                    int entry = memoEntry(memo, rule, pos);
+                    if (memo[entry] == memoMatch && memo[entry + 1] == rule && memo[entry + 2] == pos) {
+                        ++memoReinvocations[rule];
+                        if (memo[entry + 3] < 0)
+                            break;
+
+                        pos = memo[entry + 3];
+                        pc += Instructions.SIZE;
+                        continue;
+                    }
+
+                    if (memoTop == memoFrames.length)
+                        memoFrames = this.memoFrames = Arrays.copyOf(memoFrames, memoTop * 2);
+
+                    memoFrames[memoTop] = rule;
+                    memoFrames[memoTop + 1] = pos;
+                    memoFrames[memoTop + 2] = callDepth;
+                    memoTop += MEMO_FRAME_SIZE;
+                }
+
+                if (callDepth == calls.length)
+                    calls = this.calls = Arrays.copyOf(calls, callDepth * 2);
+
+                calls[callDepth++] = pc + Instructions.SIZE;
+                pc = code[pc + 1];
+                continue;
+            case Instructions.COMMIT:
+                top -= BACKTRACK_ENTRY_SIZE;
+                pc = code[pc + 1];
+                continue;
+            case Instructions.PARTIAL_COMMIT:
+                backtrack[top - BACKTRACK_ENTRY_SIZE + 1] = pos;
+                backtrack[top - BACKTRACK_ENTRY_SIZE + 2] = numberOfActions;
+                pc = code[pc + 1];
+                continue;
+            case Instructions.BACK_COMMIT:
+                top -= BACKTRACK_ENTRY_SIZE;
+                pos = backtrack[top + 1];
+                if (numberOfActions > backtrack[top + 2])
+                    numberOfActions = backtrack[top + 2];
+
+                pc = code[pc + 1];
+                continue;
+            case Instructions.FAIL_TWICE:
+                top -= BACKTRACK_ENTRY_SIZE;
+                break;
+            case Instructions.FAIL:
+                break;
+            case Instructions.CLOSE_ACTION:
+                --numberOfActions;
+                p = actions[numberOfActions].match(subject, actionOffsets[numberOfActions], pos);
+                actions[numberOfActions] = null;
+                if (p < 0)
+                    break;
+
+                if (p < pos || p > len)
+                    throw new IllegalStateException("Invalid position returned from action");
+
+                pos = p;
+                pc += Instructions.SIZE;
+                continue;
+            case Instructions.OPEN_ACTION:
+                if (numberOfActions == actions.length) {
+                    actionOffsets = this.actionOffsets = Arrays.copyOf(actionOffsets, numberOfActions * 2);
+                    actions = this.actions = Arrays.copyOf(actions, numberOfActions * 2);
+                }
+
+                actionOffsets[numberOfActions] = pos;
+                actions[numberOfActions++] = instructions.actions[instruction >> Instructions.AUX_SHIFT];
+                pc += Instructions.SIZE;
+                continue;
+            default:
+                throw new IllegalStateException("Bug alert!");
+            }
+
+            // Fail
+            if (top == 0) {
+                Arrays.fill(actions, 0, numberOfActions, null);
+                return -1;
+            }
+
+            top -= BACKTRACK_ENTRY_SIZE;
+            pc = backtrack[top];
+            pos = backtrack[top + 1];
+            if (numberOfActions > backtrack[top + 2]) {
+                Arrays.fill(actions, backtrack[top + 2], numberOfActions, null);
+                numberOfActions = backtrack[top + 2];
+            }
+
+            callDepth = backtrack[top + 3];
+
+            // The memoized rules whose calls were backtracked out of failed.
+            while (memoTop > 0 && memoFrames[memoTop - 1] >= callDepth) {
+                memoTop -= MEMO_FRAME_SIZE;
+                memoize(memo, memoMatch, memoFrames[memoTop], memoFrames[memoTop + 1], -1);
+            }
+        }
+    }
+
+    /**
+     * Start a new match memoizing rules, allocating the memo table if needed,
+     * and returns the table. The entries of earlier matches are left in the
+     * table but no longer belong to the current match.
+     */
+    private int[] newMemoMatch() {
+        if (memo == null) {
+            int size = Math.max(Integer.highestOneBit(matcher.memoTableSize - 1) << 1, 1);
+            memo = new int[size * MEMO_ENTRY_SIZE];
+            memoCalls = new long[matcher.instructions.memoRules.length];
+            memoReinvocations = new long[memoCalls.length];
+        }
+
+        if (++memoMatch == 0) {
+            Arrays.fill(memo, 0);
+            memoMatch = 1;
+        }
+
+        return memo;
+    }
+
+    /**
+     * Returns the index of the memo table entry for the specified rule and position.
+     */
+    private static int memoEntry(int[] memo, int rule, int pos) {
+        int hash = (pos + rule * 0x61C88647) * 0x9E3779B1;
+        return ((hash ^ hash >>> 16) & (memo.length / MEMO_ENTRY_SIZE - 1)) * MEMO_ENTRY_SIZE;
+    }
+
+    /**
+     * Record where the specified rule called at the specified position ended,
+     * or {@code -1} if it failed, evicting the result in its entry.
+     */
+    private static void memoize(int[] memo, int memoMatch, int rule, int pos, int end) {
+        int entry = memoEntry(memo, rule, pos);
+        memo[entry] = memoMatch;
+        memo[entry + 1] = rule;
+        memo[entry + 2] = pos;
+        memo[entry + 3] = end;
+    }
+
+    /**
+     * Same as {@link #run(CharSequence, int)} but with the compiled program.
+     * <p/>
+     * Programs recursing deeper than the stack of the thread allows are
+     * matched again by the <em>VM</em>, whose stacks grow on the heap.
+     */
+    private int runProgram(CharSequence subject, int offset) {
+        if (stacks == null)
+            stacks = new Stacks();
+
+        Stacks stacks = this.stacks;
+        stacks.backtrack = backtrack;
+        stacks.calls = calls;
+        stacks.actionOffsets = actionOffsets;
+        stacks.actions = actions;
+
+        try {
+            return matcher.program.match(subject, offset, stacks);
+        } catch (StackOverflowError e) {
+            // Fall through to the VM, the stack has unwound by now.
+        } finally {
+            backtrack = stacks.backtrack;
+            calls = stacks.calls;
+            actionOffsets = stacks.actionOffsets;
+            actions = stacks.actions;
+        }
+
+        Arrays.fill(actions, null);
+        return run(subject, offset);
+    }
+
+    /**
+     * Same as {@link #run(CharSequence, int)} but for any other input, starting
+     * with the specified registers. Returns {@link #SUSPENDED} when input
+     * that can't be waited for runs out.
+     * <p/>
+     * Kept as a separate copy so that the common case of matching
+     * a character sequence stays free of virtual calls per character.
+     */
+    private int run(Input input, int pc, int pos, int offset, int numberOfActions, int callDepth, int top) {
+        final Instructions instructions = matcher.instructions;
+        final int[] code = instructions.code;
+        final CharacterMatcher[] matchers = instructions.matchers;
+        final String[] strings = instructions.strings;
+        final SwitchTable[] switches = instructions.switches;
+
+        int[] actionOffsets = this.actionOffsets;
+        Action[] actions = this.actions;
+        int[] calls = this.calls;
+        int[] backtrack = this.backtrack;
+
+        int len = input.end;
+
+        // The index a string instruction needs available to be decided, if any.
+        int starved = -1;
+
+        for (;;) {
+            int instruction = code[pc];
+
+            if ((pos >= len || starved >= 0) && !input.complete && Instructions.readsInput(instruction & Instructions.OPCODE_MASK)) {
+                int index = Math.max(pos, starved);
+                starved = -1;
+
+                // Move the window past what backtracking, actions and look behind no longer need.
+                int keep = pos;
+                for (int i = 1; i < top; i += BACKTRACK_ENTRY_SIZE)
+                    keep = Math.min(keep, backtrack[i]);
+
+                for (int i = 0; i < numberOfActions; ++i)
+                    keep = Math.min(keep, actionOffsets[i]);
+
+                if (instructions.lookBehind > 0)
+                    keep = Math.max(input.back(keep, 0, instructions.lookBehind), 0);
+
+                int shift = input.fill(keep, index);
+                if (shift > 0) {
+                    pos -= shift;
+                    offset = Math.max(offset - shift, 0);
+                    for (int i = 1; i < top; i += BACKTRACK_ENTRY_SIZE)
+                        backtrack[i] -= shift;
+
+                    for (int i = 0; i < numberOfActions; ++i)
+                        actionOffsets[i] -= shift;
+                }
+
+                len = input.end;
+                if (index - shift >= len && !input.complete) {
+                    suspendedPc = pc;
+                    suspendedPos = pos;
+                    suspendedOffset = offset;
+                    suspendedActions = numberOfActions;
+                    suspendedCallDepth = callDepth;
+                    suspendedTop = top;
+                    return SUSPENDED;
+                }
+
+                continue;
+            }
+
+            switch (instruction & Instructions.OPCODE_MASK) {
+            case Instructions.END:
+                return pos;
+            case Instructions.RET:
+                pc = calls[--callDepth];
+                continue;
+            case Instructions.ANY:
+                if (pos < len) {
+                    pos = input.next(pos);
+                    pc += Instructions.SIZE;
+                    continue;
+                }
+
+                break;
+            case Instructions.TEST_ANY:
+                if (pos < len) {
+                    pc += Instructions.SIZE;
+                } else {
+                    pc = code[pc + 1];
+                }
+
+                continue;
+            case Instructions.CHAR:
+                if (pos < len) {
+                    int c = input.codePointAt(pos);
+                    if (c == instruction >> Instructions.AUX_SHIFT) {
+                        pos += input.charCount(c);
+                        pc += Instructions.SIZE;
+                        continue;
+                    }
+                }
+
+                break;
+            case Instructions.SET:
+                if (pos < len) {
+                    int next = input.match(matchers[instruction >> Instructions.AUX_SHIFT], pos);
+                    if (next >= 0) {
+                        pos = next;
+                        pc += Instructions.SIZE;
+                        continue;
+                    }
+                }
+
+                break;
+            case Instructions.TEST_CHAR:
+                if (pos < len && input.codePointAt(pos) == instruction >> Instructions.AUX_SHIFT) {
+                    pc += Instructions.SIZE;
+                } else {
+                    pc = code[pc + 1];
+                }
+
+                continue;
+            case Instructions.TEST_SET:
+                if (pos < len && input.match(matchers[instruction >> Instructions.AUX_SHIFT], pos) >= 0) {
+                    pc += Instructions.SIZE;
+                } else {
+                    pc = code[pc + 1];
+                }
+
+                continue;
+            case Instructions.BEHIND:
+                int p = input.back(pos, offset, instruction >> Instructions.AUX_SHIFT);
+                if (p >= 0) {
+                    pos = p;
+                    pc += Instructions.SIZE;
+                    continue;
+                }
+
+                break;
+            case Instructions.SWITCH:
+                if (pos < len) {
+                    int c = input.codePointAt(pos);
+                    pc = switches[instruction >> Instructions.AUX_SHIFT].target(c, code[pc + 1]);
+                } else {
+                    pc = code[pc + 1];
+                }
+
+                continue;
+            case Instructions.STRING: case Instructions.TEST_STRING:
+                String str = strings[instruction >> Instructions.AUX_SHIFT];
+                p = pos;
+                for (int i = 0; i < str.length() && p >= 0; ) {
+                    if (p >= len) {
+                        // Undecided until more of the subject is available.
+                        if (!input.complete)
+                            starved = p;
+
+                        p = -1;
+                        break;
+                    }
+
+                    int c = str.codePointAt(i);
+                    p = input.codePointAt(p) == c ? p + input.charCount(c) : -1;
+                    i += Character.charCount(c);
+                }
+
+                if (starved >= 0)
+                    continue;
+
+                if ((instruction & Instructions.OPCODE_MASK) == Instructions.TEST_STRING) {
+                    pc = p >= 0 ? pc + Instructions.SIZE : code[pc + 1];
+                    continue;
+                }
+
+                if (p >= 0) {
+                    pos = p;
+                    pc += Instructions.SIZE;
+                    continue;
+                }
+
+                break;
+            case Instructions.SPAN:
+                CharacterMatcher matcher = matchers[instruction >> Instructions.AUX_SHIFT];
+                while (pos < len) {
+                    int next = input.match(matcher, pos);
+                    if (next < 0)
+                        break;
+
+                    pos = next;
+                }
+
+                if (pos >= len && !input.complete)
+                    continue;
+
+                pc += Instructions.SIZE;
+                continue;
+            case Instructions.JMP:
+                pc = code[pc + 1];
+                continue;
+            case Instructions.CHOICE:
+                if (top == backtrack.length)
+                    backtrack = this.backtrack = Arrays.copyOf(backtrack, top * 2);
+
+                backtrack[top] = code[pc + 1];
+                backtrack[top + 1] = pos;
+                backtrack[top + 2] = numberOfActions;
+                backtrack[top + 3] = callDepth;
+                top += BACKTRACK_ENTRY_SIZE;
+                pc += Instructions.SIZE;
+                continue;
+            case Instructions.CALL:
+                if (callDepth == calls.length)
+                    calls = this.calls = Arrays.copyOf(calls, callDepth * 2);
+
+                calls[callDepth++] = pc + Instructions.SIZE;
+                pc = code[pc + 1];
+                continue;
+            case Instructions.COMMIT:
+                top -= BACKTRACK_ENTRY_SIZE;
+                pc = code[pc + 1];
+                continue;
+            case Instructions.PARTIAL_COMMIT:
+                backtrack[top - BACKTRACK_ENTRY_SIZE + 1] = pos;
+                backtrack[top - BACKTRACK_ENTRY_SIZE + 2] = numberOfActions;
+                pc = code[pc + 1];
+                continue;
+            case Instructions.BACK_COMMIT:
+                top -= BACKTRACK_ENTRY_SIZE;
+                pos = backtrack[top + 1];
+                if (numberOfActions > backtrack[top + 2])
+                    numberOfActions = backtrack[top + 2];
+
+                pc = code[pc + 1];
+                continue;
+            case Instructions.FAIL_TWICE:
+                top -= BACKTRACK_ENTRY_SIZE;
+                break;
+            case Instructions.FAIL:
+                break;
+            case Instructions.CLOSE_ACTION:
+                --numberOfActions;
+                p = actions[numberOfActions].match(input.subject(), actionOffsets[numberOfActions], pos);
+                actions[numberOfActions] = null;
+                if (p < 0)
+                    break;
+
+                if (p < pos || p > len)
+                    throw new IllegalStateException("Invalid position returned from action");
+
+                pos = p;
+                pc += Instructions.SIZE;
+                continue;
+            case Instructions.OPEN_ACTION:
+                if (numberOfActions == actions.length) {
+                    actionOffsets = this.actionOffsets = Arrays.copyOf(actionOffsets, numberOfActions * 2);
+                    actions = this.actions = Arrays.copyOf(actions, numberOfActions * 2);
+                }
+
+                actionOffsets[numberOfActions] = pos;
+                actions[numberOfActions++] = instructions.actions[instruction >> Instructions.AUX_SHIFT];
+                pc += Instructions.SIZE;
+                continue;
+            default:
+                throw new IllegalStateException("Bug alert!");
+            }
+
+            // Fail
+            if (top == 0) {
+                Arrays.fill(actions, 0, numberOfActions, null);
+                return -1;
+            }
+
+            top -= BACKTRACK_ENTRY_SIZE;
+            pc = backtrack[top];
+            pos = backtrack[top + 1];
+            if (numberOfActions > backtrack[top + 2]) {
+                Arrays.fill(actions, backtrack[top + 2], numberOfActions, null);
+                numberOfActions = backtrack[top + 2];
+            }
+
+            callDepth = backtrack[top + 3];
+        }
+    }
+
+    /**
+     * Returns the index after the code point at {@code index}.
+     * <p/>
+     * A surrogate pair is only looked at if {@code index} holds a high surrogate.
+     */
+    private static int next(CharSequence subject, int index, int len) {
+        if (Character.isHighSurrogate(subject.charAt(index++)) && index < len &&
+                Character.isLowSurrogate(subject.charAt(index)))
+            ++index;
+
+        return index;
+    }
+
+    /**
+     * Returns whether the subject has the specified string at {@code index}.
+     */
+    private static boolean startsWith(CharSequence subject, int index, int len, String str) {
+        int n = str.length();
+        if (index + n > len)
+            return false;
+
+        if (subject instanceof String)
+            return ((String) subject).startsWith(str, index);
+
+        for (int i = 0; i < n; ++i) {
+            if (subject.charAt(index + i) != str.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the index {@code n} code points before {@code index}
+     * or {@code -1} if that would pass {@code offset}.
+     */
+    private static int back(CharSequence subject, int index, int offset, int n) {
+        while (n-- > 0) {
+            if (index <= offset)
+                return -1;
+
+            if (Character.isLowSurrogate(subject.charAt(--index)) && index > offset &&
+                    Character.isHighSurrogate(subject.charAt(index - 1)))
+                --index;
+        }
+
+        return index;
+    }
+
+}
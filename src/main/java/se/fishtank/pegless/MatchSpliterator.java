@@ -0,0 +1,125 @@
+package se.fishtank.pegless;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import se.fishtank.pegless.internal.compiler.CharacterMatcher;
+
+/**
+ * Iterates over the successive, non-overlapping matches of a pattern.
+ * <p/>
+ * After a match the next one is searched for where it ended, or one
+ * character later if it was empty. Splitting is only done right after
+ * a character that no match can consume (see
+ * {@link se.fishtank.pegless.internal.compiler.Instructions#separators}).
+ * Since no match spans such a character, iterating the parts yields
+ * exactly the same matches as iterating the whole.
+ *
+ * @author Christer Sandberg
+ */
+class MatchSpliterator implements Spliterator<PatternMatchResult> {
+
+    /** Don't split parts smaller than this. */
+    static final int MIN_SPLIT_SIZE = 4096;
+
+    private final PatternMatcher matcher;
+
+    private final CharSequence subject;
+
+    /** The offset to search from. */
+    private int from;
+
+    /** The last offset a match may start at. */
+    private int to;
+
+    /** The session used, created when first needed. */
+    private MatchSession session;
+
+    /**
+     * Create a new instance.
+     *
+     * @param matcher The pattern matcher.
+     * @param subject The subject.
+     * @param from The offset to search from.
+     * @param to The last offset a match may start at.
+     */
+    MatchSpliterator(PatternMatcher matcher, CharSequence subject, int from, int to) {
+        this.matcher = matcher;
+        this.subject = subject;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryAdvance(Consumer<? super PatternMatchResult> action) {
+        if (from > to)
+            return false;
+
+        if (session == null)
+            session = matcher.newSession();
+
+        int start = session.find(subject, from, to);
+        if (start < 0) {
+            from = to + 1;
+            return false;
+        }
+
+        int end = session.getEnd();
+        if (end > start)
+            from = end;
+        else if (start < subject.length())
+            from = start + Character.charCount(Character.codePointAt(subject, start));
+        else
+            from = to + 1;
+
+        action.accept(new PatternMatchResult(subject, true, start, end));
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Spliterator<PatternMatchResult> trySplit() {
+        CharacterMatcher separators = matcher.instructions.separators;
+        if (separators == null || to - from < MIN_SPLIT_SIZE)
+            return null;
+
+        int i = from + (to - from) / 2;
+        if (Character.isLowSurrogate(subject.charAt(i)) && Character.isHighSurrogate(subject.charAt(i - 1)))
+            ++i;
+
+        while (i < to) {
+            int c = Character.codePointAt(subject, i);
+            if (separators.match(c)) {
+                MatchSpliterator prefix = new MatchSpliterator(matcher, subject, from, i);
+                from = i + Character.charCount(c);
+                return prefix;
+            }
+
+            i += Character.charCount(c);
+        }
+
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long estimateSize() {
+        return Math.max(to - from + 1, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+
+}
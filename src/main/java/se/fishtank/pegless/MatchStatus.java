@@ -0,0 +1,21 @@
+package se.fishtank.pegless;
+
+/**
+ * The status of a match that's pushed input in chunks.
+ *
+ * @see MatchSession#feed(java.nio.ByteBuffer)
+ *
+ * @author Christer Sandberg
+ */
+public enum MatchStatus {
+
+    /** The match is suspended until more input is fed or the input is finished. */
+    NEED_MORE_INPUT,
+
+    /** The match was successful. */
+    MATCHED,
+
+    /** The match failed. */
+    FAILED
+
+}
@@ -0,0 +1,158 @@
+package se.fishtank.pegless;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The rules of a pattern worth memoizing, according to a profile.
+ * <p/>
+ * Profile by matching typical subjects with a session of a pattern
+ * memoizing every rule, see {@link CompileOptions#withMemoTableSize(int)}.
+ * The plan from {@link MatchSession#getMemoPlan()} then memoizes the rules
+ * that were called again where they had been called before for at least
+ * one in {@value #MIN_REINVOCATION_RATIO} of their calls. Compile the
+ * pattern again with {@link CompileOptions#withMemoPlan(MemoPlan)} to
+ * memoize only those rules.
+ * <p/>
+ * Rules are identified by the order they're compiled in, so a plan can
+ * only be used with the pattern it was made for. Rules running actions
+ * are never memoized and aren't part of the plan.
+ * <p/>
+ * Instances are immutable.
+ *
+ * @author Christer Sandberg
+ */
+public final class MemoPlan {
+
+    /** Rules called again where they were called before for one in this many calls are memoized. */
+    public static final int MIN_REINVOCATION_RATIO = 16;
+
+    private final String[] rules;
+
+    private final long[] calls;
+
+    private final long[] reinvocations;
+
+    private final BitSet memoized = new BitSet();
+
+    /**
+     * Create a new plan.
+     *
+     * @param rules The names of the rules that may be memoized, in order.
+     * @param calls The number of calls to every rule.
+     * @param reinvocations The number of calls to every rule where it
+     * had been called before.
+     */
+    MemoPlan(String[] rules, long[] calls, long[] reinvocations) {
+        this.rules = rules;
+        this.calls = calls;
+        this.reinvocations = reinvocations;
+        for (int i = 0; i < rules.length; ++i) {
+            if (reinvocations[i] > 0 && reinvocations[i] * MIN_REINVOCATION_RATIO >= calls[i])
+                memoized.set(i);
+        }
+    }
+
+    /**
+     * Returns the number of rules that may be memoized.
+     *
+     * @return The number of rules.
+     */
+    public int size() {
+        return rules.length;
+    }
+
+    /**
+     * Returns the name of the specified rule.
+     *
+     * @param index The index of the rule.
+     * @return The name of the rule.
+     */
+    public String getRule(int index) {
+        return rules[index];
+    }
+
+    /**
+     * Returns the number of calls to the specified rule while profiling.
+     *
+     * @param index The index of the rule.
+     * @return The number of calls.
+     */
+    public long getCalls(int index) {
+        return calls[index];
+    }
+
+    /**
+     * Returns the number of calls to the specified rule, while profiling,
+     * at a position where it had been called before.
+     *
+     * @param index The index of the rule.
+     * @return The number of calls.
+     */
+    public long getReinvocations(int index) {
+        return reinvocations[index];
+    }
+
+    /**
+     * Returns whether the specified rule is memoized by this plan.
+     *
+     * @param index The index of the rule.
+     * @return {@code true} or {@code false}
+     */
+    public boolean isMemoized(int index) {
+        return memoized.get(index);
+    }
+
+    /**
+     * Returns the indices of the memoized rules.
+     */
+    BitSet memoized() {
+        return (BitSet) memoized.clone();
+    }
+
+    /**
+     * Returns whether this plan was made for a pattern with the specified rules.
+     */
+    boolean isFor(String[] rules) {
+        return Arrays.equals(this.rules, rules);
+    }
+
+    /**
+     * Returns a line per rule, with its calls, reinvocations and whether
+     * it's memoized.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < rules.length; ++i) {
+            sb.append(String.format("%s: %d calls, %d reinvocations%s%n",
+                    rules[i], calls[i], reinvocations[i], memoized.get(i) ? ", memoized" : ""));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Two plans are equal if they memoize the same rules of the same pattern.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+
+        if (!(o instanceof MemoPlan))
+            return false;
+
+        MemoPlan other = (MemoPlan) o;
+        return Arrays.equals(rules, other.rules) && memoized.equals(other.memoized);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(rules) * 31 + memoized.hashCode();
+    }
+
+}
@@ -24,8 +24,8 @@ public class NamedCapturer {
     public Pattern capture(final String name, Pattern pattern) {
         return Pattern.action(pattern, new Action() {
             @Override
-            public int match(String subject, int offset, int position) {
-                matches.put(name, subject.substring(offset, position));
+            public int match(CharSequence subject, int offset, int position) {
+                matches.put(name, subject.subSequence(offset, position).toString());
                 return position;
             }
         });
@@ -4,6 +4,9 @@ import java.io.PrintStream;
 import java.util.*;
 
 import se.fishtank.pegless.internal.ast.*;
+import se.fishtank.pegless.internal.bytecode.CompiledProgram;
+import se.fishtank.pegless.internal.bytecode.ProgramGenerator;
+import se.fishtank.pegless.internal.closure.ClosureCompiler;
 import se.fishtank.pegless.internal.compiler.Emitter;
 import se.fishtank.pegless.internal.compiler.Instructions;
 import se.fishtank.pegless.internal.util.CharacterSet;
@@ -24,11 +27,16 @@ public class Pattern {
     /** Represents a pattern that always succeed. */
     public static final Pattern SUCCEED = new Pattern(TrueNode.SINGLETON);
 
-    /** The underlying root node. */
+    /**
+     * The underlying root node.
+     * <p/>
+     * Nodes are shared between patterns and never modified, compiling
+     * works on a copy.
+     */
     final Node root;
 
-    /** Referenced rule names. */
-    final ArrayList<String> refs;
+    /** Cached hash code, computed when first needed. */
+    private int hash;
 
     /**
      * Create a new pattern.
@@ -36,33 +44,46 @@ public class Pattern {
      * @param root The root node for the pattern.
      */
     Pattern(Node root) {
-        this(root, null);
+        this.root = root;
     }
 
     /**
-     * Create a new pattern.
+     * Compile this pattern into a pattern matcher.
      *
-     * @param root The root node for the pattern.
-     * @param refs The referenced rule names for the pattern.
+     * @return A pattern matcher.
      */
-    Pattern(Node root, ArrayList<String> refs) {
-        this.root = root;
-        this.refs = refs;
+    public PatternMatcher compile() {
+        return compile(CompileOptions.DEFAULT);
     }
 
     /**
-     * Compile this pattern into a pattern matcher.
+     * Compile this pattern into a pattern matcher using the specified options.
      *
+     * @param options The options to compile with.
      * @return A pattern matcher.
      */
-    public PatternMatcher compile() {
+    public PatternMatcher compile(CompileOptions options) {
         Node<?> node = root.copy();
-        finalFix(node, null, refs);
+        finalFix(node, null);
+        node = Support.fuseStrings(node);
 
-        Emitter emitter = new Emitter();
+        MemoPlan memoPlan = options.getMemoPlan();
+        Emitter emitter = new Emitter(options.isUtf8Automata(), options.getMemoTableSize() > 0,
+                memoPlan != null ? memoPlan.memoized() : null);
         Instructions instructions = emitter.emit(node);
+        if (memoPlan != null && instructions.memoRules.length > 0 && !memoPlan.isFor(instructions.memoRules))
+            throw new IllegalArgumentException("The memo plan was made for another pattern");
 
-        return new PatternMatcher(instructions);
+        // Only the VM memoizes rules.
+        Engine engine = instructions.memoizes ? Engine.INTERPRETER : options.getEngine();
+
+        CompiledProgram program = null;
+        if (engine == Engine.BYTECODE)
+            program = ProgramGenerator.generate(instructions);
+        else if (engine == Engine.CLOSURES)
+            program = ClosureCompiler.compile(node, instructions);
+
+        return new PatternMatcher(instructions, program, options.getMemoTableSize());
     }
 
     /**
@@ -81,7 +102,9 @@ public class Pattern {
      * @param optimized Whether to print in optimized form or not.
      */
     public void print(PrintStream ps, boolean optimized) {
-        if (refs != null) {
+        LinkedHashSet<String> refs = new LinkedHashSet<>();
+        collectRefs(root, refs);
+        if (!refs.isEmpty()) {
             ps.print('[');
 
             int i = 0;
@@ -99,12 +122,45 @@ public class Pattern {
         Node<?> node = root;
         if (optimized) {
             node = node.copy();
-            finalFix(node, null, refs);
+            finalFix(node, null);
+            node = Support.fuseStrings(node);
         }
 
         Printer.printNode(ps, node);
     }
 
+    /**
+     * Patterns are equal if their parse trees are, so the same pattern
+     * built twice is equal even though it's not the same instance.
+     * <p/>
+     * Actions are compared with their own {@code equals} method.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+
+        if (!(o instanceof Pattern))
+            return false;
+
+        Pattern other = (Pattern) o;
+        return hashCode() == other.hashCode() && root.equals(other.root);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = root.hashCode();
+            hash = h;
+        }
+
+        return h;
+    }
+
     /**
      * Create a pattern from a string.
      * <p/>
@@ -119,14 +175,15 @@ public class Pattern {
         if (str == null || str.isEmpty())
             return new Pattern(TrueNode.SINGLETON);
 
-        int len = str.codePointCount(0, str.length());
+        int[] codePoints = toCodePoints(str);
+        int len = codePoints.length;
         if (len == 1)
-            return new Pattern(new CharNode(str.codePointAt(0)));
+            return new Pattern(new CharNode(codePoints[0]));
 
         int i = len - 3;
-        SeqNode root = new SeqNode(new CharNode(str.codePointAt(len - 2)), new CharNode(str.codePointAt(len - 1)));
+        SeqNode root = new SeqNode(new CharNode(codePoints[len - 2]), new CharNode(codePoints[len - 1]));
         while (i >= 0)
-            root = new SeqNode(new CharNode(str.codePointAt(i--)), root);
+            root = new SeqNode(new CharNode(codePoints[i--]), root);
 
         return new Pattern(root);
     }
@@ -206,21 +263,17 @@ public class Pattern {
      * @return A new pattern.
      */
     public static Pattern range(String... ranges) {
-        BitSet characterSet = new BitSet();
-        if (ranges != null) {
-            for (String range : ranges) {
-                int length = range.codePointCount(0, range.length());
-                if (length != 2)
-                    throw new IllegalArgumentException("A range must have two characters: " + range);
-
-                int x = range.codePointAt(0);
-                int y = range.codePointAt(1);
-                for (int i = x; i <= y; ++i)
-                    characterSet.set(i);
-            }
+        int[] pairs = new int[ranges != null ? ranges.length * 2 : 0];
+        for (int i = 0; i < pairs.length; i += 2) {
+            int[] codePoints = toCodePoints(ranges[i / 2]);
+            if (codePoints.length != 2)
+                throw new IllegalArgumentException("A range must have two characters: " + ranges[i / 2]);
+
+            pairs[i] = codePoints[0];
+            pairs[i + 1] = codePoints[1];
         }
 
-        return new Pattern(new SetNode(characterSet));
+        return new Pattern(new SetNode(CharacterSet.ofRanges(pairs)));
     }
 
     /**
@@ -234,14 +287,10 @@ public class Pattern {
      * @return A new pattern.
      */
     public static Pattern set(String str) {
-        BitSet characterSet = new BitSet();
-        if (str != null && !str.isEmpty()) {
-            int len = str.codePointCount(0, str.length());
-            for (int i = 0; i < len; ++i)
-                characterSet.set(str.codePointAt(i));
-        }
+        if (str == null)
+            return new Pattern(new SetNode(CharacterSet.EMPTY_SET));
 
-        return new Pattern(new SetNode(characterSet));
+        return new Pattern(new SetNode(CharacterSet.of(toCodePoints(str))));
     }
 
     /**
@@ -253,7 +302,7 @@ public class Pattern {
      * @return A new pattern.
      */
     public static Pattern test(Pattern pattern) {
-        return new Pattern(new AndNode(pattern.root.copy()), pattern.refs);
+        return new Pattern(new AndNode(pattern.root));
     }
 
     /**
@@ -265,7 +314,7 @@ public class Pattern {
      * @return A new pattern.
      */
     public static Pattern testNot(Pattern pattern) {
-        return new Pattern(new NotNode(pattern.root.copy()), pattern.refs);
+        return new Pattern(new NotNode(pattern.root));
     }
 
     /**
@@ -295,7 +344,7 @@ public class Pattern {
         if (Support.hasActions(pattern.root))
             throw new IllegalArgumentException("The pattern can not have actions");
 
-        return new Pattern(new BehindNode(len, pattern.root.copy()), pattern.refs);
+        return new Pattern(new BehindNode(len, pattern.root));
     }
 
     /**
@@ -319,29 +368,19 @@ public class Pattern {
      * @return A new pattern.
      */
     public static Pattern choice(Pattern pattern1, Pattern pattern2) {
-        BitSet characterSet1 = CharacterSet.getCharacterSet(pattern1.root);
-        BitSet characterSet2 = CharacterSet.getCharacterSet(pattern2.root);
-        if (characterSet1 != null && characterSet2 != null) {
-            characterSet1.or(characterSet2);
-            return new Pattern(new SetNode(characterSet1));
-        }
+        CharacterSet characterSet1 = CharacterSet.getCharacterSet(pattern1.root);
+        CharacterSet characterSet2 = CharacterSet.getCharacterSet(pattern2.root);
+        if (characterSet1 != null && characterSet2 != null)
+            return new Pattern(new SetNode(characterSet1.union(characterSet2)));
 
         if (pattern1.root.isNoFail() || pattern2.root instanceof FalseNode)
-            return new Pattern(pattern1.root.copy(), pattern1.refs);
+            return new Pattern(pattern1.root);
 
         if (pattern1.root instanceof FalseNode)
-            return new Pattern(pattern2.root.copy(), pattern2.refs);
+            return new Pattern(pattern2.root);
 
-        ChoiceNode root = new ChoiceNode(pattern1.root.copy(), pattern2.root.copy());
-        if (pattern1.refs == null && pattern2.refs == null)
-            return new Pattern(root);
-
-        ArrayList<String> refs = new ArrayList<>();
-
-        int n = copyRefs(refs, pattern1, pattern2);
-        Support.correctRuleIndices(root.getSecondSibling(), n);
-
-        return new Pattern(root, refs);
+        ChoiceNode root = new ChoiceNode(pattern1.root, pattern2.root);
+        return new Pattern(root);
     }
 
     /**
@@ -383,23 +422,13 @@ public class Pattern {
      * @return A new pattern.
      */
     public static Pattern diff(Pattern pattern1, Pattern pattern2) {
-        BitSet characterSet1 = CharacterSet.getCharacterSet(pattern1.root);
-        BitSet characterSet2 = CharacterSet.getCharacterSet(pattern2.root);
-        if (characterSet1 != null && characterSet2 != null) {
-            characterSet1.andNot(characterSet2);
-            return new Pattern(new SetNode(characterSet1));
-        }
-
-        SeqNode root = new SeqNode(new NotNode(pattern2.root.copy()), pattern1.root.copy());
-        if (pattern1.refs == null && pattern2.refs == null)
-            return new Pattern(root);
+        CharacterSet characterSet1 = CharacterSet.getCharacterSet(pattern1.root);
+        CharacterSet characterSet2 = CharacterSet.getCharacterSet(pattern2.root);
+        if (characterSet1 != null && characterSet2 != null)
+            return new Pattern(new SetNode(characterSet1.difference(characterSet2)));
 
-        ArrayList<String> refs = new ArrayList<>();
-
-        int n = copyRefs(refs, pattern1, pattern2);
-        Support.correctRuleIndices(root.getFirstSibling(), n);
-
-        return new Pattern(root, refs);
+        SeqNode root = new SeqNode(new NotNode(pattern2.root), pattern1.root);
+        return new Pattern(root);
     }
 
     /**
@@ -423,21 +452,13 @@ public class Pattern {
      */
     public static Pattern seq(Pattern pattern1, Pattern pattern2) {
         if (pattern1.root == FalseNode.SINGLETON || pattern2.root == TrueNode.SINGLETON)
-            return new Pattern(pattern1.root.copy(), pattern1.refs);
+            return new Pattern(pattern1.root);
 
         if (pattern1.root == TrueNode.SINGLETON)
-            return new Pattern(pattern2.root.copy(), pattern2.refs);
-
-        SeqNode root = new SeqNode(pattern1.root.copy(), pattern2.root.copy());
-        if (pattern1.refs == null && pattern2.refs == null)
-            return new Pattern(root);
-
-        ArrayList<String> refs = new ArrayList<>();
-
-        int n = copyRefs(refs, pattern1, pattern2);
-        Support.correctRuleIndices(root.getSecondSibling(), n);
+            return new Pattern(pattern2.root);
 
-        return new Pattern(root, refs);
+        SeqNode root = new SeqNode(pattern1.root, pattern2.root);
+        return new Pattern(root);
     }
 
     /**
@@ -494,30 +515,30 @@ public class Pattern {
             if (pattern.root.isNullable())
                 throw new IllegalArgumentException("Loop body may accept the empty string");
 
-            RepeatNode repeatNode = new RepeatNode(pattern.root.copy());
+            RepeatNode repeatNode = new RepeatNode(pattern.root);
             if (n == 0)
-                return new Pattern(repeatNode, pattern.refs);
+                return new Pattern(repeatNode);
 
-            SeqNode seqNode = new SeqNode(pattern.root.copy(), repeatNode);
+            SeqNode seqNode = new SeqNode(pattern.root, repeatNode);
             while (n-- > 1)
-                seqNode = new SeqNode(pattern.root.copy(), seqNode);
+                seqNode = new SeqNode(pattern.root, seqNode);
 
-            return new Pattern(seqNode, pattern.refs);
+            return new Pattern(seqNode);
         }
 
         Node<?> root = null;
         for (int i = -n; i > 1; --i) {
             if (root == null) {
-                root = new SeqNode(pattern.root.copy(), new ChoiceNode(pattern.root.copy(), TrueNode.SINGLETON));
+                root = new SeqNode(pattern.root, new ChoiceNode(pattern.root, TrueNode.SINGLETON));
             } else {
-                root = new SeqNode(pattern.root.copy(), new ChoiceNode(root, TrueNode.SINGLETON));
+                root = new SeqNode(pattern.root, new ChoiceNode(root, TrueNode.SINGLETON));
             }
         }
 
         if (root == null)
-            root = pattern.root.copy();
+            root = pattern.root;
 
-        return new Pattern(new ChoiceNode(root, TrueNode.SINGLETON), pattern.refs);
+        return new Pattern(new ChoiceNode(root, TrueNode.SINGLETON));
     }
 
     /**
@@ -554,11 +575,11 @@ public class Pattern {
             if (pattern.root.isNullable())
                 throw new IllegalArgumentException("Loop body may accept the empty string");
 
-            SeqNode seqNode = new SeqNode(pattern.root.copy(), pattern.root.copy());
+            SeqNode seqNode = new SeqNode(pattern.root, pattern.root);
             while (n-- > 2)
-                seqNode = new SeqNode(pattern.root.copy(), seqNode);
+                seqNode = new SeqNode(pattern.root, seqNode);
 
-            return new Pattern(seqNode, pattern.refs);
+            return new Pattern(seqNode);
         }
 
         Pattern ref = ref("p");
@@ -577,7 +598,7 @@ public class Pattern {
      * @return A new pattern.
      */
     public static Pattern action(Pattern pattern, Action action) {
-        return new Pattern(new ActionNode(action, pattern.root.copy()), pattern.refs);
+        return new Pattern(new ActionNode(action, pattern.root));
     }
 
     /**
@@ -591,10 +612,7 @@ public class Pattern {
         if (ruleName == null || ruleName.isEmpty())
             throw new IllegalArgumentException("ruleName must not be null or empty");
 
-        ArrayList<String> refs = new ArrayList<>(1);
-        refs.add(ruleName);
-
-        return new Pattern(new CallNode(), refs);
+        return new Pattern(new CallNode(ruleName));
     }
 
     /**
@@ -639,75 +657,75 @@ public class Pattern {
         if (rules == null || rules.size() == 0)
             throw new IllegalArgumentException("rules must not be null or empty");
 
-        ArrayList<String> refs = new ArrayList<>();
+        // The rules are copied since binding their calls modifies them.
         ArrayList<RuleNode> ruleNodes = new ArrayList<>(rules.size());
-
         int index = 0;
-        for (Map.Entry<String, Pattern> entry : rules.entrySet()) {
-            Pattern pattern = entry.getValue();
-            RuleNode ruleNode = new RuleNode(index++, entry.getKey(), pattern.root.copy());
-            if (pattern.refs != null) {
-                int n = refs.size();
-                refs.addAll(0, pattern.refs);
-                Support.correctRuleIndices(ruleNode.getSibling(), n);
-            }
-
-            ruleNodes.add(ruleNode);
-        }
+        for (Map.Entry<String, Pattern> entry : rules.entrySet())
+            ruleNodes.add(new RuleNode(index++, entry.getKey(), entry.getValue().root.copy()));
 
         GrammarNode grammarNode = new GrammarNode(ruleNodes);
         for (RuleNode ruleNode : ruleNodes)
-            finalFix(ruleNode, grammarNode, refs);
+            finalFix(ruleNode, grammarNode);
 
         grammarNode.verify();
-        return new Pattern(grammarNode, refs);
+        return new Pattern(grammarNode);
     }
 
-    private static int copyRefs(ArrayList<String> target, Pattern pattern1, Pattern pattern2) {
-        if (pattern1.refs == null && pattern2.refs == null)
-            return 0;
+    private static int[] toCodePoints(String str) {
+        int[] codePoints = new int[str.codePointCount(0, str.length())];
+        for (int i = 0, index = 0; i < codePoints.length; ++i) {
+            codePoints[i] = str.codePointAt(index);
+            index += Character.charCount(codePoints[i]);
+        }
 
-        int offset = 0;
-        if (pattern1.refs != null) {
-            offset = pattern1.refs.size();
-            target.addAll(pattern1.refs);
+        return codePoints;
+    }
 
-            if (pattern2.refs == null || pattern2.refs.equals(pattern1.refs))
-                return 0;
+    private static void collectRefs(Node<?> root, LinkedHashSet<String> refs) {
+        ArrayDeque<Node<?>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<?> node = stack.pop();
+            if (node instanceof CallNode) {
+                refs.add(((CallNode) node).name);
+            } else if (node instanceof GrammarNode) {
+                ArrayList<RuleNode> ruleNodes = ((GrammarNode) node).ruleNodes;
+                for (int i = ruleNodes.size() - 1; i >= 0; --i)
+                    stack.push(ruleNodes.get(i));
+            } else if (node instanceof UnaryNode) {
+                stack.push(((UnaryNode) node).getSibling());
+            } else if (node instanceof BinaryNode) {
+                stack.push(((BinaryNode) node).getSecondSibling());
+                stack.push(((BinaryNode) node).getFirstSibling());
+            }
         }
-
-        target.addAll(pattern2.refs);
-        return offset;
     }
 
-    private static void finalFix(Node<?> node, GrammarNode grammarNode, ArrayList<String> refs) {
-        for (;;) {
+    private static void finalFix(Node<?> root, GrammarNode grammarNode) {
+        ArrayDeque<Node<?>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<?> node = stack.pop();
             if (node instanceof GrammarNode)
-                return; // Already fixed
+                continue; // Already fixed
 
             if (node instanceof CallNode) {
                 CallNode callNode = (CallNode) node;
                 if (callNode.isOpen()) {
-                    String ruleName = refs.get(callNode.ruleIndex);
+                    String ruleName = callNode.name;
                     if (grammarNode != null) {
-                        // TODO: Could this be optimized? Settle on index?
-                        RuleNode ruleNode = null;
-                        for (RuleNode n : grammarNode.ruleNodes) {
-                            if (n.name.equals(ruleName)) {
-                                ruleNode = n;
-                                break;
-                            }
-                        }
-
+                        RuleNode ruleNode = grammarNode.getRuleNode(ruleName);
                         if (ruleNode == null)
                             throw new IllegalStateException(ruleName + " is undefined in the given grammar");
 
-                        callNode.setRuleNode(ruleNode.copy());
-                        return;
+                        // Every call shares the rule, which may be bound by now or later.
+                        callNode.setRuleNode(ruleNode);
                     } else {
                         throw new IllegalStateException("Rule used outside of grammar: " + ruleName);
                     }
                 }
+
+                continue;
             } else if (node instanceof SeqNode) {
                 ((SeqNode) node).correctAssociativity();
             } else if (node instanceof ChoiceNode) {
@@ -715,13 +733,10 @@ public class Pattern {
             }
 
             if (node instanceof UnaryNode) {
-                node = ((UnaryNode) node).getSibling();
+                stack.push(((UnaryNode) node).getSibling());
             } else if (node instanceof BinaryNode) {
-                BinaryNode n = (BinaryNode) node;
-                finalFix(n.getFirstSibling(), grammarNode, refs);
-                node = n.getSecondSibling();
-            } else {
-                return;
+                stack.push(((BinaryNode) node).getSecondSibling());
+                stack.push(((BinaryNode) node).getFirstSibling());
             }
         }
     }
@@ -0,0 +1,179 @@
+package se.fishtank.pegless;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A bounded cache of pattern matchers, keyed by pattern and compile options.
+ * <p/>
+ * Patterns are compared by structure, so a pattern built again from the same
+ * parts finds the matcher compiled for the first one. When the cache is full
+ * the least recently used matcher is evicted.
+ * <p/>
+ * Instances are thread safe. Threads asking for the same pattern at the same
+ * time wait for one of them to compile it instead of compiling it each.
+ *
+ * @author Christer Sandberg
+ */
+public final class PatternCache {
+
+    private final int maximumSize;
+
+    private final LinkedHashMap<Key, FutureTask<PatternMatcher>> map;
+
+    /**
+     * Create a new cache.
+     *
+     * @param maximumSize The maximum number of matchers to keep {@code > 0}.
+     */
+    public PatternCache(final int maximumSize) {
+        if (maximumSize <= 0)
+            throw new IllegalArgumentException("maximumSize <= 0");
+
+        this.maximumSize = maximumSize;
+        this.map = new LinkedHashMap<Key, FutureTask<PatternMatcher>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, FutureTask<PatternMatcher>> eldest) {
+                return size() > maximumSize;
+            }
+        };
+    }
+
+    /**
+     * Returns a matcher for the specified pattern compiled with the default options.
+     *
+     * @param pattern The pattern.
+     * @return A pattern matcher.
+     */
+    public PatternMatcher get(Pattern pattern) {
+        return get(pattern, CompileOptions.DEFAULT);
+    }
+
+    /**
+     * Returns a matcher for the specified pattern compiled with the specified
+     * options, compiling it unless it's already cached.
+     * <p/>
+     * Exceptions thrown by {@link Pattern#compile(CompileOptions)} are
+     * rethrown and nothing is cached.
+     *
+     * @param pattern The pattern.
+     * @param options The options to compile with.
+     * @return A pattern matcher.
+     */
+    public PatternMatcher get(final Pattern pattern, final CompileOptions options) {
+        if (pattern == null || options == null)
+            throw new IllegalArgumentException("pattern and options must not be null");
+
+        Key key = new Key(pattern, options);
+
+        FutureTask<PatternMatcher> task;
+        boolean owner = false;
+        synchronized (map) {
+            task = map.get(key);
+            if (task == null) {
+                task = new FutureTask<>(() -> pattern.compile(options));
+                map.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner)
+            task.run();
+
+        try {
+            return await(task);
+        } catch (ExecutionException e) {
+            synchronized (map) {
+                map.remove(key, task);
+            }
+
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+
+            if (cause instanceof Error)
+                throw (Error) cause;
+
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Returns the number of cached matchers, including those being compiled.
+     *
+     * @return The number of matchers.
+     */
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    /**
+     * Returns the maximum number of matchers kept.
+     *
+     * @return The maximum number of matchers.
+     */
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Remove all matchers from the cache.
+     */
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+        }
+    }
+
+    /**
+     * Wait for the task to complete, without giving up if interrupted.
+     * The interrupt is restored before returning.
+     */
+    private static PatternMatcher await(FutureTask<PatternMatcher> task) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Key {
+
+        final Pattern pattern;
+
+        final CompileOptions options;
+
+        Key(Pattern pattern, CompileOptions options) {
+            this.pattern = pattern;
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+
+            Key other = (Key) o;
+            return pattern.equals(other.pattern) && options.equals(other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return pattern.hashCode() * 31 + options.hashCode();
+        }
+
+    }
+
+}
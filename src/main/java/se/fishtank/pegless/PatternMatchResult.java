@@ -2,13 +2,16 @@ package se.fishtank.pegless;
 
 /**
  * Contains the result of a pattern match operation.
+ * <p/>
+ * Offsets are {@code char} indices into the subject, i.e. a supplementary
+ * character counts as two.
  *
  * @author Christer Sandberg
  */
 public class PatternMatchResult {
 
     /** The subject matched against. */
-    private final String subject;
+    private final CharSequence subject;
 
     /** If the pattern was matched successfully or not. */
     private final boolean matched;
@@ -27,7 +30,7 @@ public class PatternMatchResult {
      * @param start The start index of the match (i.e. subject offset).
      * @param end The offset after the last character matched.
      */
-    PatternMatchResult(String subject, boolean matched, int start, int end) {
+    PatternMatchResult(CharSequence subject, boolean matched, int start, int end) {
         this.subject = subject;
         this.matched = matched;
         this.start = start;
@@ -67,7 +70,7 @@ public class PatternMatchResult {
      *
      * @return The subject matched against.
      */
-    public String getSubject() {
+    public CharSequence getSubject() {
         return subject;
     }
 
@@ -1,10 +1,18 @@
 package se.fishtank.pegless;
 
 import java.io.PrintStream;
-import java.util.LinkedList;
-
-import se.fishtank.pegless.internal.compiler.Instruction;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import se.fishtank.pegless.internal.bytecode.CompiledProgram;
 import se.fishtank.pegless.internal.compiler.Instructions;
+import se.fishtank.pegless.internal.util.Utf8Sequence;
 import se.fishtank.pegless.internal.util.Printer;
 
 /**
@@ -22,245 +30,207 @@ public class PatternMatcher {
     /** The number of instructions. */
     final int numberOfInstructions;
 
+    /** The pattern compiled for another engine or {@code null} to use the <em>VM</em>. */
+    final CompiledProgram program;
+
+    /** The number of entries in the table memoizing rules, for every session. */
+    final int memoTableSize;
+
     /**
      * Create a new instance.
      *
      * @param instructions The instructions for this pattern.
+     * @param program The pattern compiled for another engine or {@code null}.
+     * @param memoTableSize The number of entries in the table memoizing rules.
      */
-    PatternMatcher(Instructions instructions) {
+    PatternMatcher(Instructions instructions, CompiledProgram program, int memoTableSize) {
         this.instructions = instructions;
         this.numberOfInstructions = instructions.size();
+        this.program = program;
+        this.memoTableSize = memoTableSize;
     }
 
     /**
-     * Attempt to match this pattern against the given subject string.
+     * Attempt to match this pattern against the given subject.
      *
      * @param subject The subject to match against this pattern.
      * @return A match result.
      */
-    public PatternMatchResult match(String subject) {
+    public PatternMatchResult match(CharSequence subject) {
         return match(subject, 0);
     }
 
     /**
-     * Attempt to match this pattern against the given subject string
+     * Attempt to match this pattern against the given subject
      * starting at the specified offset.
      *
      * @param subject The subject to match against this pattern.
+     * @param offset The offset to start matching at.
      * @return A match result.
      */
-    public PatternMatchResult match(String subject, int offset) {
-        if (subject == null || offset < 0 || offset > subject.codePointCount(0, subject.length()))
-            throw new IllegalArgumentException("Invalid subject or offset");
-
-        int[] end = new int[1];
-        boolean matched = match(subject, offset, end);
-        return new PatternMatchResult(subject, matched, offset, end[0]);
+    public PatternMatchResult match(CharSequence subject, int offset) {
+        int end = newSession().matchEnd(subject, offset);
+        return new PatternMatchResult(subject, end >= 0, offset, end);
     }
 
     /**
-     * Print the instructions for this pattern matcher to
-     * the specified {@linkplain java.io.PrintStream print stream}.
+     * Find the first match of this pattern in the given subject.
      *
-     * @param ps Print stream to print to.
+     * @see MatchSession#find(CharSequence, int)
+     *
+     * @param subject The subject to search.
+     * @return A match result, starting where the match was found.
      */
-    public void print(PrintStream ps) {
-        Printer.printInstructions(ps, instructions);
+    public PatternMatchResult find(CharSequence subject) {
+        return find(subject, 0);
     }
 
-    private boolean match(String subject, int offset, int[] end) {
-        int len = subject.codePointCount(offset, subject.length());
-        int pos = offset;
-
-        int instructionIndex = 0;
-
-        boolean fail = false;
-
-        LinkedList<ActionEntry> actions = new LinkedList<>();
-
-        LinkedList<StackEntry> stack = new LinkedList<>();
-        stack.push(new StackEntry(-1, 0, 0));
-
-        StackEntry entry;
-
-        for (;;) {
-            if (fail) {
-                fail = false;
-                do {
-                    entry = stack.pop();
-                    pos = entry.pos;
-                } while (pos == -1);
-
-                instructionIndex = entry.instructionIndex;
-                correctActionEntries(actions, entry.numberOfActions);
-            }
-
-            Instruction instruction = instructionIndex == -1 ?
-                    Instruction.GIVE_UP : instructions.get(instructionIndex);
-
-            switch (instruction.opcode) {
-            case END:
-                end[0] = pos;
-                return true;
-            case GIVE_UP:
-                end[0] = pos;
-                return false;
-            case RET:
-                entry = stack.pop();
-                instructionIndex = entry.instructionIndex;
-                continue;
-            case ANY:
-                if (pos < len) {
-                    ++pos;
-                    ++instructionIndex;
-                } else {
-                    fail = true;
-                }
-
-                continue;
-            case TEST_ANY:
-                if (pos < len) {
-                    ++instructionIndex;
-                } else {
-                    instructionIndex += instruction.offset;
-                }
-
-                continue;
-            case CHAR: case SET:
-                if (pos < len && match(subject.codePointAt(pos), instruction)) {
-                    ++pos;
-                    ++instructionIndex;
-                } else {
-                    fail = true;
-                }
-
-                continue;
-            case TEST_CHAR: case TEST_SET:
-                if (pos < len && match(subject.codePointAt(pos), instruction)) {
-                    ++instructionIndex;
-                } else {
-                    instructionIndex += instruction.offset;
-                }
-
-                continue;
-            case BEHIND:
-                int n = instruction.aux;
-                if (n > pos - offset) {
-                    fail = true;
-                } else {
-                    pos -= n;
-                    ++instructionIndex;
-                }
-
-                continue;
-            case SPAN:
-                for (; pos < len; ++pos) {
-                    int c = subject.codePointAt(pos);
-                    if (!match(c, instruction))
-                        break;
-                }
-
-                ++instructionIndex;
-                continue;
-            case JMP:
-                instructionIndex += instruction.offset;
-                continue;
-            case CHOICE:
-                entry = new StackEntry(instructionIndex + instruction.offset, pos, actions.size());
-                stack.push(entry);
-                ++instructionIndex;
-                continue;
-            case CALL:
-                entry = new StackEntry(instructionIndex + 1, -1, actions.size());
-                stack.push(entry);
-                instructionIndex += instruction.offset;
-                continue;
-            case COMMIT:
-                stack.pop();
-                instructionIndex += instruction.offset;
-                continue;
-            case PARTIAL_COMMIT:
-                entry = stack.peek();
-                entry.pos = pos;
-                entry.numberOfActions = actions.size();
-                instructionIndex += instruction.offset;
-                continue;
-            case BACK_COMMIT:
-                entry = stack.pop();
-                pos = entry.pos;
-                correctActionEntries(actions, entry.numberOfActions);
-                instructionIndex += instruction.offset;
-                continue;
-            case FAIL_TWICE:
-                stack.pop();
-
-                // Fall through
-            case FAIL:
-                fail = true;
-                continue;
-            case CLOSE_ACTION:
-                ActionEntry actionEntry = actions.pollLast();
-                int p = actionEntry.action.match(subject, actionEntry.offset, pos);
-                if (p < 0) {
-                    fail = true;
-                    continue;
-                }
-
-                if (p < pos || p > len)
-                    throw new IllegalStateException("Invalid position returned from action");
-
-                ++instructionIndex;
-                continue;
-            case OPEN_ACTION:
-                actions.add(new ActionEntry(pos, instruction.action));
-                ++instructionIndex;
-                continue;
-            default:
-                throw new IllegalStateException("Bug alert!");
-            }
-        }
+    /**
+     * Find the first match of this pattern in the given subject, starting
+     * at any offset from {@code from} and on.
+     *
+     * @see MatchSession#find(CharSequence, int)
+     *
+     * @param subject The subject to search.
+     * @param from The offset to start searching at.
+     * @return A match result, starting where the match was found.
+     */
+    public PatternMatchResult find(CharSequence subject, int from) {
+        MatchSession session = newSession();
+        session.find(subject, from);
+        return new PatternMatchResult(subject, session.matched(), session.getStart(), session.getEnd());
     }
 
-    private void correctActionEntries(LinkedList<ActionEntry> actions, int n) {
-        int size = actions.size() - n;
-        while (size-- > 0)
-            actions.pollLast();
+    /**
+     * Returns an iterator over the successive, non-overlapping matches of
+     * this pattern in the given subject.
+     * <p/>
+     * After a match the next one is searched for where it ended, or one
+     * character later if it was empty. The iterator uses a single session.
+     *
+     * @param subject The subject to search.
+     * @return An iterator over the matches.
+     */
+    public Iterator<PatternMatchResult> gmatch(CharSequence subject) {
+        return Spliterators.iterator(spliterator(subject));
     }
 
-    private boolean match(int c, Instruction instruction) {
-        if (instruction.matcher != null)
-            return instruction.matcher.match(c);
-
-        return instruction.aux == c;
+    /**
+     * Returns a stream of the successive, non-overlapping matches of
+     * this pattern in the given subject.
+     * <p/>
+     * Same as {@link #gmatch(CharSequence)}, but the stream can be made
+     * parallel. Large subjects are then split right after characters that
+     * no match can consume, such as white space for a pattern matching words,
+     * and every part gets a session of its own. The matches are the same as
+     * for a sequential stream. Subjects are never split for patterns that
+     * might consume any character or that contain actions.
+     *
+     * @param subject The subject to search.
+     * @return A sequential stream of the matches.
+     */
+    public Stream<PatternMatchResult> matches(CharSequence subject) {
+        return StreamSupport.stream(spliterator(subject), false);
     }
 
-    static class ActionEntry {
+    private MatchSpliterator spliterator(CharSequence subject) {
+        if (subject == null)
+            throw new IllegalArgumentException("Invalid subject");
 
-        int offset;
+        return new MatchSpliterator(this, subject, 0, subject.length());
+    }
 
-        Action action;
+    /**
+     * Attempt to match this pattern against the given slice of a char array.
+     *
+     * @see MatchSession#matchEnd(char[], int, int)
+     *
+     * @param subject The subject to match against this pattern.
+     * @param offset The offset to start matching at.
+     * @param length The number of characters in the slice.
+     * @return A match result with offsets being indices into {@code subject}.
+     */
+    public PatternMatchResult match(char[] subject, int offset, int length) {
+        int end = newSession().matchEnd(subject, offset, length);
+        return new PatternMatchResult(CharBuffer.wrap(subject), end >= 0, offset, end);
+    }
 
-        ActionEntry(int offset, Action action) {
-            this.offset = offset;
-            this.action = action;
-        }
+    /**
+     * Attempt to match this pattern against the given UTF-8 encoded subject
+     * starting at its position.
+     *
+     * @see MatchSession#matchEnd(ByteBuffer, int)
+     *
+     * @param subject The UTF-8 encoded subject to match against this pattern.
+     * @return A match result with offsets being byte indices into {@code subject}.
+     */
+    public PatternMatchResult match(ByteBuffer subject) {
+        int offset = subject.position();
+        int end = newSession().matchEnd(subject, offset);
+        return new PatternMatchResult(new Utf8Sequence(subject, subject.limit()), end >= 0, offset, end);
+    }
 
+    /**
+     * Match this pattern against every subject in the given list,
+     * in parallel using the common fork join pool.
+     *
+     * @see #matchAll(List, ForkJoinPool)
+     *
+     * @param subjects The subjects to match against this pattern.
+     * @return The offset after the last character matched for every
+     * subject, or {@code -1} where the match failed.
+     */
+    public int[] matchAll(List<? extends CharSequence> subjects) {
+        return matchAll(subjects, ForkJoinPool.commonPool());
     }
 
-    static class StackEntry {
+    /**
+     * Match this pattern against every subject in the given list,
+     * in parallel using the specified fork join pool.
+     * <p/>
+     * The subjects are split in ranges between the workers of the pool,
+     * and every range is matched with a session of its own. Actions are
+     * called from the workers and must be thread safe.
+     *
+     * @param subjects The subjects to match against this pattern.
+     * @param pool The pool to match in.
+     * @return The offset after the last character matched for every
+     * subject, or {@code -1} where the match failed.
+     */
+    public int[] matchAll(List<? extends CharSequence> subjects, ForkJoinPool pool) {
+        if (subjects == null || pool == null)
+            throw new IllegalArgumentException("Invalid subjects or pool");
 
-        int instructionIndex;
+        CharSequence[] array = subjects.toArray(new CharSequence[subjects.size()]);
+        int[] ends = new int[array.length];
+        int threshold = Math.max(array.length / (pool.getParallelism() * 8), 64);
 
-        int pos;
+        pool.invoke(new MatchAllTask(this, array, ends, 0, array.length, threshold));
 
-        int numberOfActions;
+        return ends;
+    }
 
-        StackEntry(int instructionIndex, int pos, int numberOfActions) {
-            this.instructionIndex = instructionIndex;
-            this.pos = pos;
-            this.numberOfActions = numberOfActions;
-        }
+    /**
+     * Create a new match session for this pattern matcher.
+     * <p/>
+     * A session owns the state needed while matching and reuses it
+     * between matches. Prefer a session per thread over calling
+     * {@link #match(CharSequence)} repeatedly when matching many subjects.
+     *
+     * @return A new match session.
+     */
+    public MatchSession newSession() {
+        return new MatchSession(this);
+    }
 
+    /**
+     * Print the instructions for this pattern matcher to
+     * the specified {@linkplain java.io.PrintStream print stream}.
+     *
+     * @param ps Print stream to print to.
+     */
+    public void print(PrintStream ps) {
+        Printer.printInstructions(ps, instructions);
     }
 
 }
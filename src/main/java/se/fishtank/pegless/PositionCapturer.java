@@ -59,7 +59,7 @@ public class PositionCapturer implements Action {
      * {@inheritDoc}
      */
     @Override
-    public int match(String subject, int offset, int position) {
+    public int match(CharSequence subject, int offset, int position) {
         positions.addFirst(position);
         return position;
     }
@@ -1,5 +1,7 @@
 package se.fishtank.pegless.internal.ast;
 
+import java.util.Objects;
+
 import se.fishtank.pegless.Action;
 
 /**
@@ -26,8 +28,8 @@ public class ActionNode extends UnaryNode<ActionNode> {
      * {@inheritDoc}
      */
     @Override
-    public ActionNode copy() {
-        return new ActionNode(action, sibling.copy());
+    ActionNode withSibling(Node<?> sibling) {
+        return new ActionNode(action, sibling);
     }
 
     /**
@@ -58,8 +60,24 @@ public class ActionNode extends UnaryNode<ActionNode> {
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
+    protected int getFixedLength(int length) {
         return -1;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    boolean equalsIgnoringSibling(UnaryNode<?> other) {
+        return Objects.equals(action, ((ActionNode) other).action);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    int hashCodeIgnoringSibling() {
+        return Objects.hashCode(action);
+    }
+
 }
@@ -20,8 +20,8 @@ public class AndNode extends UnaryNode<AndNode> {
      * {@inheritDoc}
      */
     @Override
-    public AndNode copy() {
-        return new AndNode(sibling.copy());
+    AndNode withSibling(Node<?> sibling) {
+        return new AndNode(sibling);
     }
 
     /**
@@ -52,7 +52,7 @@ public class AndNode extends UnaryNode<AndNode> {
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
+    protected int getFixedLength(int length) {
         return length;
     }
 
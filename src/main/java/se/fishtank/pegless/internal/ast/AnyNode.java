@@ -52,7 +52,7 @@ public class AnyNode extends Node<AnyNode> {
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
+    protected int getFixedLength(int length) {
         return length + 1;
     }
 
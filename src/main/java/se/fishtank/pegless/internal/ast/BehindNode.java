@@ -25,8 +25,8 @@ public class BehindNode extends UnaryNode<BehindNode> {
      * {@inheritDoc}
      */
     @Override
-    public BehindNode copy() {
-        return new BehindNode(n, sibling.copy());
+    BehindNode withSibling(Node<?> sibling) {
+        return new BehindNode(n, sibling);
     }
 
     /**
@@ -57,8 +57,24 @@ public class BehindNode extends UnaryNode<BehindNode> {
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
+    protected int getFixedLength(int length) {
         return length;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    boolean equalsIgnoringSibling(UnaryNode<?> other) {
+        return n == ((BehindNode) other).n;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    int hashCodeIgnoringSibling() {
+        return n;
+    }
+
 }
@@ -11,6 +11,12 @@ public abstract class BinaryNode<T extends Node> extends Node<T> {
 
     protected Node<?> secondSibling;
 
+    // Properties tested by Support: bit n is set if property n is known and
+    // bit n + 3 holds its value. Nodes are shared between threads, so both
+    // are read and written in a single volatile access, and a lost update
+    // only forgets a property. Must be cleared if the siblings are changed.
+    volatile int cachedProperties;
+
     /**
      * Returns the first sibling.
      *
@@ -34,4 +40,38 @@ public abstract class BinaryNode<T extends Node> extends Node<T> {
      */
     public abstract void correctAssociativity();
 
+    /**
+     * Create a node like this one with the specified siblings.
+     *
+     * @param firstSibling First sibling
+     * @param secondSibling Second sibling
+     * @return A new node.
+     */
+    abstract T withSiblings(Node<?> firstSibling, Node<?> secondSibling);
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T copy() {
+        return (T) Support.copy(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object o) {
+        return this == o || Support.equals(this, o);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return Support.hashCode(this);
+    }
+
 }
@@ -9,8 +9,17 @@ package se.fishtank.pegless.internal.ast;
  */
 public class CallNode extends UnaryNode<CallNode> {
 
-    /** The index for the rule that this node is associated with. */
-    public int ruleIndex = 0;
+    /** The name of the rule that this node calls. */
+    public final String name;
+
+    /**
+     * Create a new <em>open call</em> node.
+     *
+     * @param name The name of the rule to call.
+     */
+    public CallNode(String name) {
+        this.name = name;
+    }
 
     /**
      * Returns whether this node represents an <em>open call</em>.
@@ -41,8 +50,6 @@ public class CallNode extends UnaryNode<CallNode> {
      * @param ruleNode The rule node to set.
      */
     public void setRuleNode(RuleNode ruleNode) {
-        // TODO: Is this really needed? Are they always the same?
-        ruleIndex = ruleNode.index;
         sibling = ruleNode;
     }
 
@@ -51,8 +58,15 @@ public class CallNode extends UnaryNode<CallNode> {
      */
     @Override
     public CallNode copy() {
-        CallNode node = new CallNode();
-        node.ruleIndex = ruleIndex;
+        return withSibling(sibling);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    CallNode withSibling(Node<?> sibling) {
+        CallNode node = new CallNode(name);
         node.sibling = sibling;
 
         return node;
@@ -86,14 +100,28 @@ public class CallNode extends UnaryNode<CallNode> {
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
+    protected int getFixedLength(int length) {
         if (isOpen())
             return -1;
 
-        if (callCount++ >= 200)
-            return -1;
+        return sibling.getFixedLength(length);
+    }
 
-        return sibling.getFixedLength(callCount, length);
+    /**
+     * Two calls are equal if they call rules with the same name. The
+     * rules themselves are compared with their grammars.
+     */
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof CallNode && name.equals(((CallNode) o).name));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return CallNode.class.hashCode() * 31 + name.hashCode();
     }
 
 }
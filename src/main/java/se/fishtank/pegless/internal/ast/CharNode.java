@@ -8,7 +8,7 @@ package se.fishtank.pegless.internal.ast;
 public class CharNode extends Node<CharNode> {
 
     /** Character value */
-    public int ch;
+    public final int ch;
 
     /**
      * Create a new <em>char</em> node.
@@ -55,8 +55,24 @@ public class CharNode extends Node<CharNode> {
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
+    protected int getFixedLength(int length) {
         return length + 1;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof CharNode && ch == ((CharNode) o).ch);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return ch;
+    }
+
 }
@@ -22,8 +22,8 @@ public class ChoiceNode extends BinaryNode<ChoiceNode> {
      * {@inheritDoc}
      */
     @Override
-    public ChoiceNode copy() {
-        return new ChoiceNode(firstSibling.copy(), secondSibling.copy());
+    ChoiceNode withSiblings(Node<?> firstSibling, Node<?> secondSibling) {
+        return new ChoiceNode(firstSibling, secondSibling);
     }
 
     /**
@@ -31,7 +31,7 @@ public class ChoiceNode extends BinaryNode<ChoiceNode> {
      */
     @Override
     public boolean isHeadFail() {
-        return firstSibling.isHeadFail() && secondSibling.isHeadFail();
+        return Support.isHeadFail(this);
     }
 
     /**
@@ -39,7 +39,7 @@ public class ChoiceNode extends BinaryNode<ChoiceNode> {
      */
     @Override
     public boolean isNoFail() {
-        return secondSibling.isNoFail() || firstSibling.isNoFail();
+        return Support.isNoFail(this);
     }
 
     /**
@@ -47,23 +47,16 @@ public class ChoiceNode extends BinaryNode<ChoiceNode> {
      */
     @Override
     public boolean isNullable() {
-        return secondSibling.isNullable() || firstSibling.isNullable();
+        return Support.isNullable(this);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
-        int len1 = firstSibling.getFixedLength(callCount, length);
-        if (len1 < 0)
-            return -1;
-
-        int len2 = secondSibling.getFixedLength(callCount, length);
-        if (len1 == len2)
-            return len1;
-
-        return -1;
+    protected int getFixedLength(int length) {
+        int fixedLength = Support.getFixedLength(this);
+        return fixedLength < 0 ? -1 : length + fixedLength;
     }
 
     /**
@@ -78,9 +71,11 @@ public class ChoiceNode extends BinaryNode<ChoiceNode> {
             Node<?> ff = c.firstSibling;
             c.firstSibling = c.secondSibling;
             c.secondSibling = this.secondSibling;
+            c.cachedProperties = 0;
 
             this.firstSibling = ff;
             this.secondSibling = firstSibling;
+            this.cachedProperties = 0;
 
             firstSibling = ff;
         }
@@ -52,7 +52,7 @@ public class FalseNode extends Node<FalseNode> {
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
+    protected int getFixedLength(int length) {
         return length;
     }
 
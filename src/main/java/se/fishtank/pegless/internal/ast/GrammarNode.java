@@ -1,6 +1,9 @@
 package se.fishtank.pegless.internal.ast;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 /**
  * Represents an AST <em>grammar</em> node.
@@ -9,12 +12,15 @@ import java.util.ArrayList;
  */
 public class GrammarNode extends Node<GrammarNode> {
 
-    /** Maximum number of rules allowed. */
-    public static final int MAX_RULES = 200;
-
     /** The rules for this grammar. */
     public final ArrayList<RuleNode> ruleNodes;
 
+    /** The rules by name. */
+    private final HashMap<String, RuleNode> ruleNodesByName;
+
+    /** Rule indices ordered by {@link #verify()}, see {@link #getRuleOrder()}. */
+    private int[] ruleOrder;
+
     /**
      * Create a new <em>grammar</em> node.
      *
@@ -25,15 +31,50 @@ public class GrammarNode extends Node<GrammarNode> {
             throw new IllegalArgumentException("No rules");
 
         this.ruleNodes = ruleNodes;
+        this.ruleNodesByName = new HashMap<>(ruleNodes.size() * 2);
+        for (RuleNode ruleNode : ruleNodes)
+            ruleNodesByName.put(ruleNode.name, ruleNode);
+    }
+
+    /**
+     * Returns the rule with the specified name.
+     *
+     * @param name The name of the rule.
+     * @return The rule node or {@code null} if there is none.
+     */
+    public RuleNode getRuleNode(String name) {
+        return ruleNodesByName.get(name);
+    }
+
+    /**
+     * Returns the indices of the rules, ordered so that every rule comes
+     * after the rules it may call before consuming anything.
+     *
+     * @return Rule indices, must not be modified.
+     */
+    public int[] getRuleOrder() {
+        return ruleOrder;
     }
 
+    /**
+     * Create a copy of this grammar. The calls in the copy call the
+     * copied rules.
+     *
+     * @return A copy of this grammar.
+     */
     @Override
     public GrammarNode copy() {
         ArrayList<RuleNode> rules = new ArrayList<>(ruleNodes.size());
         for (RuleNode ruleNode : ruleNodes)
             rules.add(ruleNode.copy());
 
-        return new GrammarNode(rules);
+        for (RuleNode ruleNode : rules)
+            rebind(ruleNode.sibling, rules);
+
+        GrammarNode grammarNode = new GrammarNode(rules);
+        grammarNode.ruleOrder = ruleOrder;
+
+        return grammarNode;
     }
 
     /**
@@ -62,11 +103,137 @@ public class GrammarNode extends Node<GrammarNode> {
 
     /**
      * Verify this grammar.
+     * <p/>
+     * Rejects left recursive rules and loops that may match the empty
+     * string, and computes the properties of the rules the other nodes
+     * ask for. Takes time linear in the size of the grammar.
      */
     public void verify() {
-        RuleNode[] passed = new RuleNode[MAX_RULES];
-        for (RuleNode ruleNode : ruleNodes)
-            verifyRule(ruleNode.sibling, passed, 0, false);
+        int n = ruleNodes.size();
+        int[][] calls = new int[n][];
+        int[][] callers = new int[n][];
+        IntList[] callerLists = new IntList[n];
+        for (int i = 0; i < n; ++i)
+            callerLists[i] = new IntList();
+
+        for (int i = 0; i < n; ++i) {
+            IntList list = new IntList();
+            addCalls(ruleNodes.get(i).sibling, list);
+            calls[i] = list.toArray();
+            for (int callee : calls[i])
+                callerLists[callee].add(i);
+        }
+
+        for (int i = 0; i < n; ++i)
+            callers[i] = callerLists[i].toArray();
+
+        // Rules running actions themselves, and then the rules calling them.
+        boolean[] actions = new boolean[n];
+        int[] pending = new int[n];
+        int count = 0;
+        for (int i = 0; i < n; ++i) {
+            if (hasOwnActions(ruleNodes.get(i).sibling)) {
+                actions[i] = true;
+                pending[count++] = i;
+            }
+        }
+
+        while (count > 0) {
+            for (int caller : callers[pending[--count]]) {
+                if (!actions[caller]) {
+                    actions[caller] = true;
+                    pending[count++] = caller;
+                }
+            }
+        }
+
+        for (int i = 0; i < n; ++i)
+            ruleNodes.get(i).actions = actions[i];
+
+        // Nullable rules, the least fixed point. A rule is checked again
+        // only when a rule it calls turns out to be nullable.
+        boolean[] nullable = new boolean[n];
+        boolean[] queued = new boolean[n];
+        int[] queue = new int[n];
+        int head = 0;
+        int size = n;
+        for (int i = 0; i < n; ++i) {
+            queue[i] = i;
+            queued[i] = true;
+        }
+
+        while (size > 0) {
+            int i = queue[head];
+            head = (head + 1) % n;
+            --size;
+            queued[i] = false;
+
+            if (nullable[i] || !Support.isNullable(ruleNodes.get(i).sibling, nullable))
+                continue;
+
+            nullable[i] = true;
+            for (int caller : callers[i]) {
+                if (!nullable[caller] && !queued[caller]) {
+                    queue[(head + size++) % n] = caller;
+                    queued[caller] = true;
+                }
+            }
+        }
+
+        // A rule is left recursive if it may call a rule in its own
+        // component of the graph of calls made before consuming anything.
+        int[][] leftCalls = new int[n][];
+        for (int i = 0; i < n; ++i) {
+            IntList list = new IntList();
+            addLeftCalls(ruleNodes.get(i).sibling, nullable, list);
+            leftCalls[i] = list.toArray();
+        }
+
+        int[] component = new int[n];
+        int[] order = order(leftCalls, component);
+        for (int i = 0; i < n; ++i) {
+            for (int callee : leftCalls[i]) {
+                if (component[callee] == component[i])
+                    throw new IllegalStateException("Rule may be left recursive: " + ruleNodes.get(i).name);
+            }
+        }
+
+        // Without left recursion, these only follow left calls, so rules
+        // called are done before the rules calling them.
+        for (int i = 0; i < n; ++i)
+            ruleNodes.get(i).nullable = nullable[i];
+
+        for (int i : order) {
+            RuleNode ruleNode = ruleNodes.get(i);
+            ruleNode.noFail = ruleNode.sibling.isNoFail();
+        }
+
+        for (int i : order) {
+            RuleNode ruleNode = ruleNodes.get(i);
+            ruleNode.headFail = ruleNode.sibling.isHeadFail();
+        }
+
+        ruleOrder = order;
+
+        // Rules calling each other where their lengths add up have no fixed
+        // length, the rest are done after the rules they call.
+        int[][] lengthCalls = new int[n][];
+        for (int i = 0; i < n; ++i) {
+            IntList list = new IntList();
+            addLengthCalls(ruleNodes.get(i).sibling, list);
+            lengthCalls[i] = list.toArray();
+        }
+
+        int[] lengthOrder = order(lengthCalls, component);
+        for (int i = 0; i < n; ++i) {
+            for (int callee : lengthCalls[i]) {
+                if (component[callee] == component[i])
+                    ruleNodes.get(i).fixedLength = -1;
+            }
+        }
+
+        for (int i : lengthOrder)
+            ruleNodes.get(i).getFixedLength(0);
 
         for (RuleNode ruleNode : ruleNodes) {
             if (Support.hasPotentialInfiniteLoop(ruleNode.sibling))
@@ -78,82 +245,207 @@ public class GrammarNode extends Node<GrammarNode> {
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
-        return ruleNodes.get(0).getFixedLength(callCount, length);
+    protected int getFixedLength(int length) {
+        return ruleNodes.get(0).getFixedLength(length);
     }
 
-    private boolean verifyRule(Node<?> node, RuleNode[] passed, int numberOfPassed, boolean nullable) {
-        for (;;) {
-            if (node instanceof CharNode || node instanceof SetNode ||
-                    node instanceof AnyNode || node instanceof FalseNode)
-                return nullable;
-
-            if (node instanceof TrueNode || node instanceof BehindNode)
-                return true;
-
-            if (node instanceof GrammarNode)
-                return node.isNullable();
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof GrammarNode && ruleNodes.equals(((GrammarNode) o).ruleNodes));
+    }
 
-            if (node instanceof ActionNode) {
-                node = ((ActionNode) node).sibling;
-                continue;
-            }
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return ruleNodes.hashCode();
+    }
 
+    private static void rebind(Node<?> root, ArrayList<RuleNode> rules) {
+        ArrayDeque<Node<?>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<?> node = stack.pop();
             if (node instanceof CallNode) {
                 CallNode callNode = (CallNode) node;
-                if (callNode.isOpen())
-                    throw new IllegalStateException("Unexpected open call node");
+                callNode.setRuleNode(rules.get(callNode.getRuleNode().index));
+            } else if (node instanceof UnaryNode) {
+                stack.push(((UnaryNode) node).sibling);
+            } else if (node instanceof BinaryNode) {
+                stack.push(((BinaryNode) node).secondSibling);
+                stack.push(((BinaryNode) node).firstSibling);
+            }
+            // Nested grammars are already bound to their copies
+        }
+    }
 
-                node = callNode.sibling;
-                continue;
+    private static void addCalls(Node<?> root, IntList calls) {
+        ArrayDeque<Node<?>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<?> node = stack.pop();
+            if (node instanceof CallNode) {
+                calls.add(Support.ruleIndex((CallNode) node));
+            } else if (node instanceof UnaryNode) {
+                stack.push(((UnaryNode) node).sibling);
+            } else if (node instanceof BinaryNode) {
+                stack.push(((BinaryNode) node).secondSibling);
+                stack.push(((BinaryNode) node).firstSibling);
             }
+            // Nested grammars only call their own rules
+        }
+    }
 
-            if (node instanceof NotNode || node instanceof AndNode || node instanceof RepeatNode) {
-                UnaryNode unaryNode = (UnaryNode) node;
-                node = unaryNode.sibling;
-                nullable = true;
-                continue;
+    private static boolean hasOwnActions(Node<?> root) {
+        ArrayDeque<Node<?>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<?> node = stack.pop();
+            if (node instanceof ActionNode)
+                return true;
+
+            if (node instanceof GrammarNode) {
+                // Nested grammars are verified first
+                for (RuleNode ruleNode : ((GrammarNode) node).ruleNodes) {
+                    if (ruleNode.hasActions())
+                        return true;
+                }
+            } else if (node instanceof UnaryNode && !(node instanceof CallNode)) {
+                stack.push(((UnaryNode) node).sibling);
+            } else if (node instanceof BinaryNode) {
+                stack.push(((BinaryNode) node).secondSibling);
+                stack.push(((BinaryNode) node).firstSibling);
             }
+        }
+
+        return false;
+    }
 
-            if (node instanceof SeqNode) {
+    private static void addLeftCalls(Node<?> root, boolean[] nullable, IntList calls) {
+        ArrayDeque<Node<?>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<?> node = stack.pop();
+            if (node instanceof CallNode) {
+                calls.add(Support.ruleIndex((CallNode) node));
+            } else if (node instanceof SeqNode) {
                 SeqNode seqNode = (SeqNode) node;
-                if (!verifyRule(seqNode.firstSibling, passed, numberOfPassed, false))
-                    return nullable;
+                if (Support.isNullable(seqNode.firstSibling, nullable))
+                    stack.push(seqNode.secondSibling);
 
-                node = seqNode.secondSibling;
-                continue;
+                stack.push(seqNode.firstSibling);
+            } else if (node instanceof ChoiceNode) {
+                stack.push(((ChoiceNode) node).secondSibling);
+                stack.push(((ChoiceNode) node).firstSibling);
+            } else if (node instanceof UnaryNode && !(node instanceof BehindNode)) {
+                stack.push(((UnaryNode) node).sibling);
             }
+        }
+    }
 
-            if (node instanceof ChoiceNode) {
-                ChoiceNode choiceNode = (ChoiceNode) node;
-                nullable = verifyRule(choiceNode.firstSibling, passed, numberOfPassed, nullable);
-                node = choiceNode.secondSibling;
-                continue;
+    private static void addLengthCalls(Node<?> root, IntList calls) {
+        ArrayDeque<Node<?>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<?> node = stack.pop();
+            if (node instanceof CallNode) {
+                calls.add(Support.ruleIndex((CallNode) node));
+            } else if (node instanceof BinaryNode) {
+                stack.push(((BinaryNode) node).secondSibling);
+                stack.push(((BinaryNode) node).firstSibling);
             }
+            // Other nodes have no length or don't add their sibling's
+        }
+    }
 
-            if (node instanceof RuleNode) {
-                RuleNode ruleNode = (RuleNode) node;
-                if (numberOfPassed >= MAX_RULES)
-                    throw verifyError(passed, numberOfPassed);
+    /**
+     * Order rules so that every rule comes after the rules it calls, unless
+     * they call each other. Rules calling each other, directly or not, get
+     * the same component. Tarjan's algorithm, with explicit stacks.
+     */
+    private static int[] order(int[][] calls, int[] component) {
+        int n = calls.length;
+        int[] order = new int[n];
+        int[] number = new int[n];
+        int[] lowLink = new int[n];
+        int[] next = new int[n];
+        int[] stack = new int[n];
+        int[] path = new int[n];
+        int ordered = 0;
+        int counter = 0;
+        int components = 0;
+        int top = 0;
 
-                passed[numberOfPassed++] = ruleNode;
-                node = ruleNode.sibling;
+        Arrays.fill(component, -1);
+        for (int root = 0; root < n; ++root) {
+            if (number[root] != 0)
                 continue;
-            }
 
-            throw new IllegalStateException("Did not expect node: " + node.getClass());
+            int depth = 0;
+            path[depth++] = root;
+            number[root] = lowLink[root] = ++counter;
+            stack[top++] = root;
+
+            while (depth > 0) {
+                int v = path[depth - 1];
+                if (next[v] < calls[v].length) {
+                    int w = calls[v][next[v]++];
+                    if (number[w] == 0) {
+                        number[w] = lowLink[w] = ++counter;
+                        stack[top++] = w;
+                        path[depth++] = w;
+                    } else if (component[w] < 0) {
+                        lowLink[v] = Math.min(lowLink[v], number[w]);
+                    }
+
+                    continue;
+                }
+
+                if (--depth > 0) {
+                    int u = path[depth - 1];
+                    lowLink[u] = Math.min(lowLink[u], lowLink[v]);
+                }
+
+                if (lowLink[v] == number[v]) {
+                    int w;
+                    do {
+                        w = stack[--top];
+                        component[w] = components;
+                        order[ordered++] = w;
+                    } while (w != v);
+
+                    ++components;
+                }
+            }
         }
+
+        return order;
     }
 
-    private IllegalStateException verifyError(RuleNode[] passed, int numberOfPassed) {
-        for (int i = numberOfPassed - 1; i >= 0; --i) {
-            for (int j = i - 1; j >= 0; --j) {
-                if (passed[i].index == passed[j].index)
-                    return new IllegalStateException("Rule may be left recursive: " + passed[i].name);
-            }
+    /**
+     * A growable list of ints.
+     */
+    private static final class IntList {
+
+        private int[] values = new int[4];
+
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
         }
 
-        return new IllegalStateException("Too many left calls in grammar");
     }
 
 }
@@ -2,13 +2,20 @@ package se.fishtank.pegless.internal.ast;
 
 /**
  * Represents an AST node.
+ * <p/>
+ * Nodes are shared by every pattern built from them and must not be
+ * modified, except for copies made while compiling or creating a grammar.
+ * The properties cached on {@link BinaryNode}s are safe to share since
+ * every thread computes the same values.
  *
  * @author Christer Sandberg
  */
 public abstract class Node<T extends Node> {
 
     /**
-     * Create a copy of this node.
+     * Create a copy of this node that may be modified.
+     * <p/>
+     * Nodes without siblings are never modified, so they return themselves.
      *
      * @return A copy of this node.
      */
@@ -44,16 +51,15 @@ public abstract class Node<T extends Node> {
      * @return The number of characters ({@code -1} if variable).
      */
     public int getFixedLength() {
-        return getFixedLength(0, 0);
+        return getFixedLength(0);
     }
 
     /**
      * Get the number of characters this node matches.
      *
-     * @param callCount Number of calls so far (used to avoid infinite loops for grammars).
      * @param length Accumulated length.
      * @return The number of characters ({@code -1} if variable).
      */
-    protected abstract int getFixedLength(int callCount, int length);
+    protected abstract int getFixedLength(int length);
 
 }
@@ -20,8 +20,8 @@ public class NotNode extends UnaryNode<NotNode> {
      * {@inheritDoc}
      */
     @Override
-    public NotNode copy() {
-        return new NotNode(sibling.copy());
+    NotNode withSibling(Node<?> sibling) {
+        return new NotNode(sibling);
     }
 
     /**
@@ -52,7 +52,7 @@ public class NotNode extends UnaryNode<NotNode> {
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
+    protected int getFixedLength(int length) {
         return length;
     }
 
@@ -20,8 +20,8 @@ public class RepeatNode extends UnaryNode<RepeatNode> {
      * {@inheritDoc}
      */
     @Override
-    public RepeatNode copy() {
-        return new RepeatNode(sibling.copy());
+    RepeatNode withSibling(Node<?> sibling) {
+        return new RepeatNode(sibling);
     }
 
     /**
@@ -52,7 +52,7 @@ public class RepeatNode extends UnaryNode<RepeatNode> {
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
+    protected int getFixedLength(int length) {
         return -1;
     }
 
@@ -1,5 +1,7 @@
 package se.fishtank.pegless.internal.ast;
 
+import se.fishtank.pegless.internal.util.CharacterSet;
+
 /**
  * Represents an AST <em>rule</em> node.
  *
@@ -8,11 +10,35 @@ package se.fishtank.pegless.internal.ast;
 public class RuleNode extends UnaryNode<RuleNode> {
 
     /** The index for this rule. */
-    public int index;
+    public final int index;
 
     /** The name of this rule. */
     public final String name;
 
+    /** Value of {@link #fixedLength} until it's known. */
+    static final int UNKNOWN = -2;
+
+    /** Value of {@link #fixedLength} while it's being computed. */
+    static final int IN_PROGRESS = -3;
+
+    // Properties computed once by the grammar when it's verified, or null
+    // until then. Rules call each other, so computing them from the
+    // rules' nodes every time might take exponential time.
+    Boolean nullable;
+    Boolean noFail;
+    Boolean headFail;
+    Boolean actions;
+    int fixedLength = UNKNOWN;
+
+    /**
+     * The characters this rule can start with, cached by the emitter if the
+     * rule isn't nullable since it then doesn't depend on what follows.
+     */
+    public CharacterSet firstSet;
+
+    /** The value returned along with {@link #firstSet}. */
+    public int firstSetResult;
+
     /**
      * Create a new <em>rule</em> node.
      *
@@ -30,8 +56,27 @@ public class RuleNode extends UnaryNode<RuleNode> {
      * {@inheritDoc}
      */
     @Override
-    public RuleNode copy() {
-        return new RuleNode(index, name, sibling.copy());
+    RuleNode withSibling(Node<?> sibling) {
+        RuleNode ruleNode = new RuleNode(index, name, sibling);
+        ruleNode.nullable = nullable;
+        ruleNode.noFail = noFail;
+        ruleNode.headFail = headFail;
+        ruleNode.actions = actions;
+        ruleNode.fixedLength = fixedLength;
+        ruleNode.firstSet = firstSet;
+        ruleNode.firstSetResult = firstSetResult;
+
+        return ruleNode;
+    }
+
+    /**
+     * Returns whether this rule may run actions, itself or in the rules
+     * it calls.
+     *
+     * @return {@code true} or {@code false}
+     */
+    public boolean hasActions() {
+        return actions != null ? actions : Support.hasActions(this);
     }
 
     /**
@@ -39,7 +84,7 @@ public class RuleNode extends UnaryNode<RuleNode> {
      */
     @Override
     public boolean isHeadFail() {
-        return sibling.isHeadFail();
+        return headFail != null ? headFail : sibling.isHeadFail();
     }
 
     /**
@@ -47,7 +92,7 @@ public class RuleNode extends UnaryNode<RuleNode> {
      */
     @Override
     public boolean isNoFail() {
-        return sibling.isNoFail();
+        return noFail != null ? noFail : sibling.isNoFail();
     }
 
     /**
@@ -55,15 +100,39 @@ public class RuleNode extends UnaryNode<RuleNode> {
      */
     @Override
     public boolean isNullable() {
-        return sibling.isNullable();
+        return nullable != null ? nullable : sibling.isNullable();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected int getFixedLength(int length) {
+        if (fixedLength == UNKNOWN) {
+            // A rule reached again while computing its length calls itself,
+            // so it has no fixed length.
+            fixedLength = IN_PROGRESS;
+            fixedLength = sibling.getFixedLength(0);
+        }
+
+        return fixedLength < 0 ? -1 : length + fixedLength;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    boolean equalsIgnoringSibling(UnaryNode<?> other) {
+        RuleNode ruleNode = (RuleNode) other;
+        return index == ruleNode.index && name.equals(ruleNode.name);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
-        return sibling.getFixedLength(callCount, length);
+    int hashCodeIgnoringSibling() {
+        return index * 31 + name.hashCode();
     }
 
 }
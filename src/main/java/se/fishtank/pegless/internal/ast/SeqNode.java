@@ -22,8 +22,8 @@ public class SeqNode extends BinaryNode<SeqNode> {
      * {@inheritDoc}
      */
     @Override
-    public SeqNode copy() {
-        return new SeqNode(firstSibling.copy(), secondSibling.copy());
+    SeqNode withSiblings(Node<?> firstSibling, Node<?> secondSibling) {
+        return new SeqNode(firstSibling, secondSibling);
     }
 
     /**
@@ -31,7 +31,7 @@ public class SeqNode extends BinaryNode<SeqNode> {
      */
     @Override
     public boolean isHeadFail() {
-        return secondSibling.isNoFail() && firstSibling.isHeadFail();
+        return Support.isHeadFail(this);
     }
 
     /**
@@ -39,7 +39,7 @@ public class SeqNode extends BinaryNode<SeqNode> {
      */
     @Override
     public boolean isNoFail() {
-        return firstSibling.isNoFail() && secondSibling.isNoFail();
+        return Support.isNoFail(this);
     }
 
     /**
@@ -47,19 +47,16 @@ public class SeqNode extends BinaryNode<SeqNode> {
      */
     @Override
     public boolean isNullable() {
-        return firstSibling.isNullable() && secondSibling.isNullable();
+        return Support.isNullable(this);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
-        length = firstSibling.getFixedLength(callCount, length);
-        if (length < 0)
-            return -1;
-
-        return secondSibling.getFixedLength(callCount, length);
+    protected int getFixedLength(int length) {
+        int fixedLength = Support.getFixedLength(this);
+        return fixedLength < 0 ? -1 : length + fixedLength;
     }
 
     /**
@@ -74,9 +71,11 @@ public class SeqNode extends BinaryNode<SeqNode> {
             Node<?> ff = s.firstSibling;
             s.firstSibling = s.secondSibling;
             s.secondSibling = this.secondSibling;
+            s.cachedProperties = 0;
 
             this.firstSibling = ff;
             this.secondSibling = firstSibling;
+            this.cachedProperties = 0;
 
             firstSibling = ff;
         }
@@ -1,6 +1,6 @@
 package se.fishtank.pegless.internal.ast;
 
-import java.util.BitSet;
+import se.fishtank.pegless.internal.util.CharacterSet;
 
 /**
  * Represents an AST <em>set</em> node.
@@ -10,14 +10,14 @@ import java.util.BitSet;
 public class SetNode extends Node<SetNode> {
 
     /** A set of characters. */
-    public final BitSet characterSet;
+    public final CharacterSet characterSet;
 
     /**
      * Create a new <em>set</em> node.
      *
      * @param characterSet A set of characters.
      */
-    public SetNode(BitSet characterSet) {
+    public SetNode(CharacterSet characterSet) {
         this.characterSet = characterSet;
     }
 
@@ -57,8 +57,24 @@ public class SetNode extends Node<SetNode> {
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
+    protected int getFixedLength(int length) {
         return length + 1;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof SetNode && characterSet.equals(((SetNode) o).characterSet));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return characterSet.hashCode();
+    }
+
 }
@@ -0,0 +1,86 @@
+package se.fishtank.pegless.internal.ast;
+
+/**
+ * Represents an AST <em>string</em> node, a run of at least two
+ * characters fused by {@link Support#fuseStrings(Node)}.
+ * <p/>
+ * The string never contains a lone surrogate, so comparing its chars
+ * gives the same result as comparing its characters one at a time.
+ *
+ * @author Christer Sandberg
+ */
+public class StringNode extends Node<StringNode> {
+
+    /** The string value */
+    public final String str;
+
+    /** The number of characters (code points) in the string. */
+    public final int length;
+
+    /**
+     * Create a new <em>string</em> node.
+     *
+     * @param str The string value
+     */
+    public StringNode(String str) {
+        this.str = str;
+        this.length = str.codePointCount(0, str.length());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StringNode copy() {
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isHeadFail() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isNoFail() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isNullable() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected int getFixedLength(int length) {
+        return length + this.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof StringNode && str.equals(((StringNode) o).str));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return str.hashCode();
+    }
+
+}
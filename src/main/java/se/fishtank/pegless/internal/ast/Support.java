@@ -1,98 +1,476 @@
 package se.fishtank.pegless.internal.ast;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
 /**
  * Support methods for AST nodes.
+ * <p/>
+ * Sequences and choices are chained thousands of nodes deep by long
+ * literals and repetitions, so nodes are traversed with explicit stacks
+ * rather than recursively.
  *
  * @author Christer Sandberg
  */
 public abstract class Support {
 
+    private static final int NULLABLE = 0;
+    private static final int NO_FAIL = 1;
+    private static final int HEAD_FAIL = 2;
+
+    /** The shift of the value bits in {@link BinaryNode#cachedProperties}. */
+    private static final int VALUE_SHIFT = 3;
+
     /**
-     * Correct rule indices for the specified node.
+     * Returns whether the specified node has actions.
+     * <p/>
+     * Calls are followed into their rules, each rule at most once since
+     * rules may call themselves.
      *
-     * @param node The node to correct rule indices for.
-     * @param n The number to increment the rule index by.
+     * @param root The node to check.
+     * @return {@code true} or {@code false}
      */
-    public static void correctRuleIndices(Node<?> node, int n) {
-        if (n == 0)
-            return;
+    public static boolean hasActions(Node<?> root) {
+        Set<RuleNode> visited = Collections.newSetFromMap(new IdentityHashMap<RuleNode, Boolean>());
+        ArrayDeque<Node<?>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<?> node = stack.pop();
+            if (node instanceof ActionNode)
+                return true;
 
-        for (;;) {
             if (node instanceof CallNode) {
-                ((CallNode) node).ruleIndex += n;
-            } else if (node instanceof RuleNode) {
-                ((RuleNode) node).index += n;
-            }
-
-            if (node instanceof UnaryNode) {
-                node = ((UnaryNode) node).sibling;
+                RuleNode ruleNode = ((CallNode) node).getRuleNode();
+                if (ruleNode != null && visited.add(ruleNode))
+                    stack.push(ruleNode);
+            } else if (node instanceof GrammarNode) {
+                for (RuleNode ruleNode : ((GrammarNode) node).ruleNodes) {
+                    if (visited.add(ruleNode))
+                        stack.push(ruleNode);
+                }
+            } else if (node instanceof UnaryNode) {
+                stack.push(((UnaryNode<?>) node).sibling);
             } else if (node instanceof BinaryNode) {
-                BinaryNode x = (BinaryNode) node;
-                correctRuleIndices(x.firstSibling, n);
-
-                node = x.secondSibling;
-            } else {
-                return;
+                stack.push(((BinaryNode<?>) node).secondSibling);
+                stack.push(((BinaryNode<?>) node).firstSibling);
             }
         }
+
+        return false;
     }
 
     /**
-     * Returns whether the specified node has actions.
+     * Returns whether the specified node has a potential infinite loop.
      *
-     * @param root The node to check.
      * @return {@code true} or {@code false}
      */
-    public static boolean hasActions(Node<?> root) {
-        Node<?> node = root;
-        for (;;) {
-            if (node instanceof ActionNode)
+    public static boolean hasPotentialInfiniteLoop(Node<?> root) {
+        ArrayDeque<Node<?>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<?> node = stack.pop();
+            if (node instanceof RepeatNode && ((RepeatNode) node).sibling.isNullable())
                 return true;
 
+            if (node instanceof GrammarNode || node instanceof CallNode)
+                continue; // Grammars and their rules are checked by themselves
+
             if (node instanceof UnaryNode) {
-                node = ((UnaryNode) node).sibling;
+                stack.push(((UnaryNode<?>) node).sibling);
+            } else if (node instanceof BinaryNode) {
+                stack.push(((BinaryNode<?>) node).secondSibling);
+                stack.push(((BinaryNode<?>) node).firstSibling);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Fuse runs of characters in sequences into strings.
+     * <p/>
+     * Sequences must be right associative. Rules are fused through their
+     * grammars, never through the calls to them. Lone surrogates are left
+     * alone.
+     *
+     * @param root The node to fuse characters in.
+     * @return The node, or a string node if all of it was fused.
+     */
+    public static Node<?> fuseStrings(Node<?> root) {
+        root = fuseHead(root);
+
+        // Nodes whose siblings are still to be fused.
+        ArrayDeque<Node<?>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<?> node = stack.pop();
+            if (node instanceof GrammarNode) {
+                stack.addAll(((GrammarNode) node).ruleNodes);
+            } else if (node instanceof CallNode) {
                 continue;
+            } else if (node instanceof UnaryNode) {
+                UnaryNode<?> unaryNode = (UnaryNode<?>) node;
+                unaryNode.sibling = fuseHead(unaryNode.sibling);
+                stack.push(unaryNode.sibling);
+            } else if (node instanceof BinaryNode) {
+                BinaryNode<?> binaryNode = (BinaryNode<?>) node;
+                binaryNode.firstSibling = fuseHead(binaryNode.firstSibling);
+                binaryNode.secondSibling = fuseHead(binaryNode.secondSibling);
+                stack.push(binaryNode.secondSibling);
+                stack.push(binaryNode.firstSibling);
             }
+        }
+
+        return root;
+    }
+
+    /**
+     * Fuse the characters the specified node starts with, leaving the
+     * rest of it to {@link #fuseStrings(Node)}.
+     */
+    private static Node<?> fuseHead(Node<?> node) {
+        if (!(node instanceof SeqNode))
+            return node;
+
+        SeqNode seqNode = (SeqNode) node;
+
+        StringBuilder sb = new StringBuilder();
+        Node<?> rest = seqNode;
+        while (rest instanceof SeqNode && isFusable(((SeqNode) rest).firstSibling)) {
+            sb.appendCodePoint(((CharNode) ((SeqNode) rest).firstSibling).ch);
+            rest = ((SeqNode) rest).secondSibling;
+        }
 
-            if (node instanceof BinaryNode) {
-                BinaryNode n = (BinaryNode) node;
-                if (hasActions(n))
-                    return true;
+        if (isFusable(rest)) {
+            sb.appendCodePoint(((CharNode) rest).ch);
+            return sb.codePointCount(0, sb.length()) > 1 ? new StringNode(sb.toString()) : rest;
+        }
+
+        if (sb.codePointCount(0, sb.length()) > 1) {
+            seqNode.firstSibling = new StringNode(sb.toString());
+            seqNode.secondSibling = rest;
+            seqNode.cachedProperties = 0;
+        }
+
+        return seqNode;
+    }
+
+    private static boolean isFusable(Node<?> node) {
+        if (!(node instanceof CharNode))
+            return false;
+
+        int c = ((CharNode) node).ch;
+        return c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE;
+    }
 
-                node = n.secondSibling;
+    /**
+     * Copy the specified node and its siblings. Nodes without siblings,
+     * calls and grammars copy themselves.
+     */
+    static Node<?> copy(Node<?> root) {
+        // Every node comes before its siblings, so the copies are made from the end.
+        ArrayList<Node<?>> nodes = new ArrayList<>();
+        ArrayDeque<Node<?>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<?> node = stack.pop();
+            nodes.add(node);
+            if (node instanceof CallNode) {
                 continue;
+            } else if (node instanceof UnaryNode) {
+                stack.push(((UnaryNode<?>) node).sibling);
+            } else if (node instanceof BinaryNode) {
+                stack.push(((BinaryNode<?>) node).secondSibling);
+                stack.push(((BinaryNode<?>) node).firstSibling);
             }
+        }
 
+        ArrayDeque<Node<?>> copies = new ArrayDeque<>();
+        for (int i = nodes.size() - 1; i >= 0; --i) {
+            Node<?> node = nodes.get(i);
+            if (node instanceof CallNode) {
+                copies.push(node.copy());
+            } else if (node instanceof UnaryNode) {
+                copies.push(((UnaryNode<?>) node).withSibling(copies.pop()));
+            } else if (node instanceof BinaryNode) {
+                Node<?> firstSibling = copies.pop();
+                copies.push(((BinaryNode<?>) node).withSiblings(firstSibling, copies.pop()));
+            } else {
+                copies.push(node.copy());
+            }
+        }
+
+        return copies.pop();
+    }
+
+    /**
+     * Compare two nodes and their siblings by structure.
+     */
+    static boolean equals(Node<?> root, Object o) {
+        if (!(o instanceof Node))
             return false;
+
+        ArrayDeque<Node<?>> left = new ArrayDeque<>();
+        ArrayDeque<Node<?>> right = new ArrayDeque<>();
+        left.push(root);
+        right.push((Node<?>) o);
+        while (!left.isEmpty()) {
+            Node<?> a = left.pop();
+            Node<?> b = right.pop();
+            if (a == b)
+                continue;
+
+            if (a.getClass() != b.getClass())
+                return false;
+
+            if (a instanceof CallNode) {
+                if (!a.equals(b))
+                    return false;
+            } else if (a instanceof UnaryNode) {
+                if (!((UnaryNode<?>) a).equalsIgnoringSibling((UnaryNode<?>) b))
+                    return false;
+
+                left.push(((UnaryNode<?>) a).sibling);
+                right.push(((UnaryNode<?>) b).sibling);
+            } else if (a instanceof BinaryNode) {
+                left.push(((BinaryNode<?>) a).secondSibling);
+                left.push(((BinaryNode<?>) a).firstSibling);
+                right.push(((BinaryNode<?>) b).secondSibling);
+                right.push(((BinaryNode<?>) b).firstSibling);
+            } else if (!a.equals(b)) {
+                return false;
+            }
         }
+
+        return true;
     }
 
     /**
-     * Returns whether the specified node has a potential infinite loop.
+     * Hash a node and its siblings, consistent with {@link #equals(Node, Object)}.
+     */
+    static int hashCode(Node<?> root) {
+        int hash = 0;
+        ArrayDeque<Node<?>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<?> node = stack.pop();
+            if (node instanceof CallNode) {
+                hash = hash * 31 + node.hashCode();
+            } else if (node instanceof UnaryNode) {
+                hash = hash * 31 + node.getClass().hashCode() * 31 + ((UnaryNode<?>) node).hashCodeIgnoringSibling();
+                stack.push(((UnaryNode<?>) node).sibling);
+            } else if (node instanceof BinaryNode) {
+                hash = hash * 31 + node.getClass().hashCode();
+                stack.push(((BinaryNode<?>) node).secondSibling);
+                stack.push(((BinaryNode<?>) node).firstSibling);
+            } else {
+                hash = hash * 31 + node.hashCode();
+            }
+        }
+
+        return hash;
+    }
+
+    static boolean isNullable(Node<?> node) {
+        return test(node, NULLABLE, null);
+    }
+
+    /**
+     * Returns whether the specified node is nullable, given whether the
+     * rules it calls are.
+     */
+    static boolean isNullable(Node<?> node, boolean[] rules) {
+        return test(node, NULLABLE, rules);
+    }
+
+    static boolean isNoFail(Node<?> node) {
+        return test(node, NO_FAIL, null);
+    }
+
+    static boolean isHeadFail(Node<?> node) {
+        return test(node, HEAD_FAIL, null);
+    }
+
+    /**
+     * Test a property of the specified node. Sequences and choices combine
+     * the property of their siblings with <em>and</em> or <em>or</em>, and
+     * the second sibling is only tested if the first doesn't settle it.
+     * <p/>
+     * The value is remembered by every sequence and choice it was tested
+     * for, unless it depends on a call, which is bound later.
      *
-     * @return {@code true} or {@code false}
+     * @param rules The property of every rule called, or {@code null} to
+     * ask the rules themselves.
      */
-    public static boolean hasPotentialInfiniteLoop(Node<?> node) {
+    private static boolean test(Node<?> root, int rootProperty, boolean[] rules) {
+        // Nodes waiting for the value of a sibling, with the property tested
+        // and whether the sibling tested last is being tested.
+        BinaryNode<?>[] nodes = null;
+        int[] properties = null;
+        boolean[] last = null;
+        int size = 0;
+
+        // The pending nodes below this depth depend on a call.
+        int calls = 0;
+
+        Node<?> node = root;
+        int property = rootProperty;
         for (;;) {
-            if (node instanceof RepeatNode && ((RepeatNode) node).sibling.isNullable())
-                return true;
+            boolean value;
+            for (;;) {
+                if (node instanceof BinaryNode) {
+                    BinaryNode<?> binaryNode = (BinaryNode<?>) node;
+                    int bit = 1 << property;
+                    int cached = rules == null ? binaryNode.cachedProperties : 0;
+                    if ((cached & bit) != 0) {
+                        value = (cached & bit << VALUE_SHIFT) != 0;
+                        break;
+                    }
 
-            if (node instanceof GrammarNode)
-                return false; // Grammars have already been checked
+                    if (nodes == null) {
+                        nodes = new BinaryNode<?>[8];
+                        properties = new int[8];
+                        last = new boolean[8];
+                    } else if (size == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, size * 2);
+                        properties = Arrays.copyOf(properties, size * 2);
+                        last = Arrays.copyOf(last, size * 2);
+                    }
 
-            if (node instanceof UnaryNode) {
-                node = ((UnaryNode) node).sibling;
-            } else if (node instanceof BinaryNode) {
-                BinaryNode n = (BinaryNode) node;
-                if (hasPotentialInfiniteLoop(n.firstSibling))
-                    return true;
+                    nodes[size] = binaryNode;
+                    properties[size] = property;
+                    last[size++] = false;
 
-                node = n.secondSibling;
-            } else {
-                return false;
+                    if (binaryNode instanceof SeqNode && property == HEAD_FAIL) {
+                        // A sequence can only fail on the head of its first sibling if the second can't fail.
+                        node = binaryNode.secondSibling;
+                        property = NO_FAIL;
+                    } else {
+                        node = testedFirst(binaryNode, property);
+                    }
+                } else if ((node instanceof ActionNode && property == NULLABLE) ||
+                        (node instanceof AndNode && property != NULLABLE)) {
+                    node = ((UnaryNode<?>) node).sibling;
+                } else {
+                    if (node instanceof CallNode) {
+                        calls = size;
+                        if (rules != null) {
+                            value = rules[ruleIndex((CallNode) node)];
+                            break;
+                        }
+                    }
+
+                    value = property == NULLABLE ? node.isNullable() :
+                            property == NO_FAIL ? node.isNoFail() : node.isHeadFail();
+                    break;
+                }
+            }
+
+            // Pass the value on until a node needs its other sibling tested.
+            for (;;) {
+                if (size == 0)
+                    return value;
+
+                BinaryNode<?> binaryNode = nodes[size - 1];
+                property = properties[size - 1];
+                if (!last[size - 1]) {
+                    boolean and = binaryNode instanceof SeqNode || property == HEAD_FAIL;
+                    if (value == and) {
+                        last[size - 1] = true;
+                        if (binaryNode instanceof SeqNode && property == HEAD_FAIL) {
+                            node = binaryNode.firstSibling;
+                        } else {
+                            node = testedFirst(binaryNode, property) == binaryNode.firstSibling ?
+                                    binaryNode.secondSibling : binaryNode.firstSibling;
+                        }
+
+                        break;
+                    }
+                }
+
+                nodes[--size] = null;
+                if (rules == null && size >= calls) {
+                    int bit = 1 << property;
+                    int cached = binaryNode.cachedProperties & ~(bit | bit << VALUE_SHIFT);
+                    binaryNode.cachedProperties = cached | bit | (value ? bit << VALUE_SHIFT : 0);
+                }
+
+                calls = Math.min(calls, size);
             }
         }
     }
 
+    /**
+     * Choices test their second sibling first for properties that any
+     * alternative gives them, which is more often the last one.
+     */
+    private static Node<?> testedFirst(BinaryNode<?> binaryNode, int property) {
+        if (binaryNode instanceof ChoiceNode && property != HEAD_FAIL)
+            return binaryNode.secondSibling;
+
+        return binaryNode.firstSibling;
+    }
+
+    /**
+     * Returns the number of characters the specified node matches, where
+     * sequences add up the lengths of their siblings and choices need them
+     * to be the same.
+     *
+     * @return The number of characters ({@code -1} if variable).
+     */
+    static int getFixedLength(Node<?> root) {
+        // Nodes with the length of their first sibling, or -1 until it's known.
+        ArrayList<BinaryNode<?>> pending = new ArrayList<>();
+        int[] lengths = new int[8];
+
+        Node<?> node = root;
+        for (;;) {
+            while (node instanceof BinaryNode) {
+                if (pending.size() == lengths.length)
+                    lengths = Arrays.copyOf(lengths, lengths.length * 2);
+
+                lengths[pending.size()] = -1;
+                pending.add((BinaryNode<?>) node);
+                node = ((BinaryNode<?>) node).firstSibling;
+            }
+
+            int length = node.getFixedLength(0);
+            for (;;) {
+                if (length < 0)
+                    return -1;
+
+                int top = pending.size() - 1;
+                if (top < 0)
+                    return length;
+
+                if (lengths[top] < 0) {
+                    lengths[top] = length;
+                    node = pending.get(top).secondSibling;
+                    break;
+                }
+
+                BinaryNode<?> binaryNode = pending.remove(top);
+                if (binaryNode instanceof SeqNode) {
+                    length += lengths[top];
+                } else if (length != lengths[top]) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the rule the specified call calls.
+     */
+    static int ruleIndex(CallNode callNode) {
+        if (callNode.isOpen())
+            throw new IllegalStateException("Unexpected open call node");
+
+        return callNode.getRuleNode().index;
+    }
 
 }
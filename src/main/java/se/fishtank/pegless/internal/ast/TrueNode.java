@@ -52,7 +52,7 @@ public class TrueNode extends Node<TrueNode> {
      * {@inheritDoc}
      */
     @Override
-    protected int getFixedLength(int callCount, int length) {
+    protected int getFixedLength(int length) {
         return length;
     }
 
@@ -18,4 +18,57 @@ public abstract class UnaryNode<T extends Node> extends Node<T> {
         return sibling;
     }
 
+    /**
+     * Create a node like this one with the specified sibling.
+     *
+     * @param sibling Sibling
+     * @return A new node.
+     */
+    abstract T withSibling(Node<?> sibling);
+
+    /**
+     * Returns whether this node equals the specified node of the same
+     * class, not counting their siblings.
+     *
+     * @param other A node of the same class.
+     * @return {@code true} or {@code false}
+     */
+    boolean equalsIgnoringSibling(UnaryNode<?> other) {
+        return true;
+    }
+
+    /**
+     * Returns a hash code for this node, not counting its sibling.
+     *
+     * @return A hash code.
+     */
+    int hashCodeIgnoringSibling() {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T copy() {
+        return (T) Support.copy(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object o) {
+        return this == o || Support.equals(this, o);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return Support.hashCode(this);
+    }
+
 }
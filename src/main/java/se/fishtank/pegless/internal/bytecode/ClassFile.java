@@ -0,0 +1,223 @@
+package se.fishtank.pegless.internal.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A minimal writer of class files.
+ * <p/>
+ * Only what's needed for generated programs is supported: a constant pool,
+ * public methods with code and nothing else. Classes are written with
+ * version 49, which is verified by type inference and hence doesn't need
+ * stack map frames.
+ *
+ * @author Christer Sandberg
+ */
+final class ClassFile {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+
+    private final HashMap<String, Integer> constants = new HashMap<>();
+
+    private final ArrayList<byte[]> methods = new ArrayList<>();
+
+    private int poolSize = 1;
+
+    private final String name;
+
+    private final String superName;
+
+    /**
+     * Create a new instance.
+     *
+     * @param name The internal name of the class.
+     * @param superName The internal name of the super class.
+     */
+    ClassFile(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    int utf8(String value) {
+        Integer index = constants.get("U" + value);
+        if (index != null)
+            return index;
+
+        try {
+            poolOut.writeByte(CONSTANT_UTF8);
+            poolOut.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return add("U" + value, 1);
+    }
+
+    int integer(int value) {
+        Integer index = constants.get("I" + value);
+        if (index != null)
+            return index;
+
+        write(CONSTANT_INTEGER, value >>> 16, value & 0xFFFF);
+        return add("I" + value, 1);
+    }
+
+    int string(String value) {
+        Integer index = constants.get("S" + value);
+        if (index != null)
+            return index;
+
+        int valueIndex = utf8(value);
+        write(CONSTANT_STRING, valueIndex);
+        return add("S" + value, 1);
+    }
+
+    int classRef(String internalName) {
+        Integer index = constants.get("C" + internalName);
+        if (index != null)
+            return index;
+
+        int nameIndex = utf8(internalName);
+        write(CONSTANT_CLASS, nameIndex);
+        return add("C" + internalName, 1);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+    }
+
+    /**
+     * Add a public method.
+     *
+     * @param name The name of the method.
+     * @param descriptor The descriptor of the method.
+     * @param code The code of the method.
+     */
+    void addMethod(String name, String descriptor, Code code) {
+        byte[] bytes = code.toByteArray();
+
+        ByteArrayOutputStream method = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(method);
+        try {
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + bytes.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(0);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        methods.add(method.toByteArray());
+    }
+
+    /**
+     * Returns the class file.
+     *
+     * @return The bytes of the class file.
+     */
+    byte[] toByteArray() {
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolSize);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (byte[] method : methods)
+                out.write(method);
+
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = tag + owner + "." + name + descriptor;
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+
+        int classIndex = classRef(owner);
+
+        Integer nameAndType = constants.get("N" + name + descriptor);
+        if (nameAndType == null) {
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            write(CONSTANT_NAME_AND_TYPE, nameIndex, descriptorIndex);
+            nameAndType = add("N" + name + descriptor, 1);
+        }
+
+        write(tag, classIndex, nameAndType);
+        return add(key, 1);
+    }
+
+    private void write(int tag, int first, int second) {
+        pool.write(tag);
+        pool.write(first >>> 8);
+        pool.write(first);
+        pool.write(second >>> 8);
+        pool.write(second);
+    }
+
+    private void write(int tag, int value) {
+        pool.write(tag);
+        pool.write(value >>> 8);
+        pool.write(value);
+    }
+
+    private int add(String key, int slots) {
+        int index = poolSize;
+        constants.put(key, index);
+        poolSize += slots;
+
+        return index;
+    }
+
+}
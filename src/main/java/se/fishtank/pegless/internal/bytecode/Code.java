@@ -0,0 +1,253 @@
+package se.fishtank.pegless.internal.bytecode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The code of a method being written, with support for labels.
+ * <p/>
+ * Branches use 16 bit offsets, so a method must stay below 32 KB.
+ *
+ * @author Christer Sandberg
+ */
+final class Code {
+
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_M1 = 0x02;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int IALOAD = 0x2E;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int ASTORE = 0x3A;
+    static final int IASTORE = 0x4F;
+    static final int AASTORE = 0x53;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IINC = 0x84;
+    static final int WIDE = 0xC4;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9A;
+    static final int IFLT = 0x9B;
+    static final int IF_ICMPEQ = 0x9F;
+    static final int IF_ICMPNE = 0xA0;
+    static final int IF_ICMPLT = 0xA1;
+    static final int IF_ICMPGE = 0xA2;
+    static final int IF_ICMPGT = 0xA3;
+    static final int IF_ICMPLE = 0xA4;
+    static final int GOTO = 0xA7;
+    static final int LOOKUPSWITCH = 0xAB;
+    static final int IRETURN = 0xAC;
+    static final int RETURN = 0xB1;
+    static final int GETFIELD = 0xB4;
+    static final int PUTFIELD = 0xB5;
+    static final int INVOKEVIRTUAL = 0xB6;
+    static final int INVOKESPECIAL = 0xB7;
+    static final int INVOKESTATIC = 0xB8;
+    static final int INVOKEINTERFACE = 0xB9;
+    static final int ARRAYLENGTH = 0xBE;
+    static final int ATHROW = 0xBF;
+
+    /**
+     * A position in the code, possibly not known yet.
+     */
+    static final class Label {
+
+        int position = -1;
+
+        /** Positions of the branch instructions referring to this label. */
+        final ArrayList<Integer> branches = new ArrayList<>();
+
+    }
+
+    int maxStack;
+
+    int maxLocals;
+
+    private byte[] bytes = new byte[1024];
+
+    private int length = 0;
+
+    /** The labels referred to by branches. */
+    private final ArrayList<Label> labels = new ArrayList<>();
+
+    /** The switch instruction and offset positions of every switch target. */
+    private final ArrayList<int[]> switches = new ArrayList<>();
+
+    private final ArrayList<Label> switchLabels = new ArrayList<>();
+
+    /**
+     * Create a new instance.
+     *
+     * @param maxStack The maximum depth of the operand stack.
+     * @param maxLocals The number of local variables.
+     */
+    Code(int maxStack, int maxLocals) {
+        this.maxStack = maxStack;
+        this.maxLocals = maxLocals;
+    }
+
+    int length() {
+        return length;
+    }
+
+    void op(int opcode) {
+        u1(opcode);
+    }
+
+    void op(int opcode, int operand) {
+        u1(opcode);
+        u1(operand);
+    }
+
+    void ref(int opcode, int index) {
+        u1(opcode);
+        u2(index);
+    }
+
+    void invokeInterface(int index, int arguments) {
+        u1(INVOKEINTERFACE);
+        u2(index);
+        u1(arguments + 1);
+        u1(0);
+    }
+
+    void iload(int local) {
+        op(ILOAD, local);
+    }
+
+    void istore(int local) {
+        op(ISTORE, local);
+    }
+
+    void aload(int local) {
+        op(ALOAD, local);
+    }
+
+    void astore(int local) {
+        op(ASTORE, local);
+    }
+
+    void iinc(int local, int value) {
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            u1(IINC);
+            u1(local);
+            u1(value);
+        } else {
+            // A wide increment is a signed short, longer literals take several.
+            int step = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+            u1(WIDE);
+            u1(IINC);
+            u2(local);
+            u2(step);
+            if (step != value)
+                iinc(local, value - step);
+        }
+    }
+
+    void push(ClassFile classFile, int value) {
+        if (value >= -1 && value <= 5) {
+            op(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            op(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            u1(SIPUSH);
+            u2(value);
+        } else {
+            ref(LDC_W, classFile.integer(value));
+        }
+    }
+
+    void branch(int opcode, Label label) {
+        label.branches.add(length);
+        if (label.branches.size() == 1)
+            labels.add(label);
+
+        u1(opcode);
+        u2(0);
+    }
+
+    void mark(Label label) {
+        label.position = length;
+    }
+
+    /**
+     * Write a lookup switch jumping to the label of every key.
+     *
+     * @param keys The keys in ascending order.
+     * @param targets The label for every key.
+     * @param otherwise The label to jump to for other values.
+     */
+    void lookupSwitch(int[] keys, Label[] targets, Label otherwise) {
+        int start = length;
+        u1(LOOKUPSWITCH);
+        while (length % 4 != 0)
+            u1(0);
+
+        switches.add(new int[] { start, length });
+        switchLabels.add(otherwise);
+        u4(0);
+        u4(keys.length);
+        for (int i = 0; i < keys.length; ++i) {
+            u4(keys[i]);
+            switches.add(new int[] { start, length });
+            switchLabels.add(targets[i]);
+            u4(0);
+        }
+    }
+
+    /**
+     * Returns the code with all branches resolved.
+     *
+     * @return The code.
+     * @throws IllegalStateException If a branch is too far or a label isn't marked.
+     */
+    byte[] toByteArray() {
+        for (Label label : labels) {
+            if (label.position < 0)
+                throw new IllegalStateException("Label not marked");
+
+            for (int branch : label.branches) {
+                int offset = label.position - branch;
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                    throw new IllegalStateException("Branch too far");
+
+                bytes[branch + 1] = (byte) (offset >>> 8);
+                bytes[branch + 2] = (byte) offset;
+            }
+        }
+
+        for (int i = 0; i < switches.size(); ++i) {
+            int[] position = switches.get(i);
+            int offset = switchLabels.get(i).position - position[0];
+            bytes[position[1]] = (byte) (offset >>> 24);
+            bytes[position[1] + 1] = (byte) (offset >>> 16);
+            bytes[position[1] + 2] = (byte) (offset >>> 8);
+            bytes[position[1] + 3] = (byte) offset;
+        }
+
+        return Arrays.copyOf(bytes, length);
+    }
+
+    private void u1(int value) {
+        if (length == bytes.length)
+            bytes = Arrays.copyOf(bytes, length * 2);
+
+        bytes[length++] = (byte) value;
+    }
+
+    private void u2(int value) {
+        u1(value >>> 8);
+        u1(value);
+    }
+
+    private void u4(int value) {
+        u2(value >>> 16);
+        u2(value);
+    }
+
+}
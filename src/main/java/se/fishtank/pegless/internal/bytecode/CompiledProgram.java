@@ -0,0 +1,123 @@
+package se.fishtank.pegless.internal.bytecode;
+
+import java.util.Arrays;
+
+import se.fishtank.pegless.Action;
+import se.fishtank.pegless.internal.compiler.CharacterMatcher;
+import se.fishtank.pegless.internal.compiler.Instructions;
+import se.fishtank.pegless.internal.compiler.SwitchTable;
+
+/**
+ * Base class for patterns compiled to something other than instructions
+ * for the <em>VM</em>.
+ * <p/>
+ * Subclasses are generated by {@link ProgramGenerator}, one per pattern,
+ * or built from matchers by the closure compiler. Either way they match
+ * a character sequence exactly like the <em>VM</em> runs the instructions
+ * of the same pattern.
+ *
+ * @author Christer Sandberg
+ */
+public abstract class CompiledProgram {
+
+    /** Matchers for the character sets not tested inline. */
+    protected final CharacterMatcher[] matchers;
+
+    /** The actions of the instructions. */
+    protected final Action[] actions;
+
+    /** The tables of the switch instructions not switched on inline. */
+    protected final SwitchTable[] switches;
+
+    /**
+     * Create a new instance.
+     *
+     * @param instructions The instructions this program was generated from.
+     */
+    protected CompiledProgram(Instructions instructions) {
+        this.matchers = instructions.matchers;
+        this.actions = instructions.actions;
+        this.switches = instructions.switches;
+    }
+
+    /**
+     * Match the specified subject.
+     *
+     * @param subject The subject to match.
+     * @param offset The offset to start matching at.
+     * @param stacks The stacks to use, grown arrays are written back.
+     * @return The end of the match or {@code -1} if it didn't match.
+     */
+    public abstract int match(CharSequence subject, int offset, Stacks stacks);
+
+    /**
+     * Returns the index after the code point at {@code index}.
+     */
+    protected static int next(CharSequence subject, int index, int len) {
+        if (Character.isHighSurrogate(subject.charAt(index++)) && index < len &&
+                Character.isLowSurrogate(subject.charAt(index)))
+            ++index;
+
+        return index;
+    }
+
+    /**
+     * Returns the index {@code n} code points before {@code index}
+     * or {@code -1} if that would pass {@code offset}.
+     */
+    protected static int back(CharSequence subject, int index, int offset, int n) {
+        while (n-- > 0) {
+            if (index <= offset)
+                return -1;
+
+            if (Character.isLowSurrogate(subject.charAt(--index)) && index > offset &&
+                    Character.isHighSurrogate(subject.charAt(index - 1)))
+                --index;
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns whether the subject has the specified string at {@code index},
+     * which must leave room for all of it.
+     */
+    protected static boolean regionMatches(CharSequence subject, int index, String str) {
+        if (subject instanceof String)
+            return ((String) subject).startsWith(str, index);
+
+        for (int i = 0; i < str.length(); ++i) {
+            if (subject.charAt(index + i) != str.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    protected static int[] grow(int[] stack) {
+        return Arrays.copyOf(stack, stack.length * 2);
+    }
+
+    protected static Action[] grow(Action[] stack) {
+        return Arrays.copyOf(stack, stack.length * 2);
+    }
+
+    protected static void clear(Action[] actions, int from, int to) {
+        Arrays.fill(actions, from, to, null);
+    }
+
+    /**
+     * Returns the position an action matched to after checking it.
+     */
+    protected static int checkPosition(int p, int pos, int len) {
+        if (p < pos || p > len)
+            throw new IllegalStateException("Invalid position returned from action");
+
+        return p;
+    }
+
+    protected static IllegalStateException bug() {
+        return new IllegalStateException("Bug alert!");
+    }
+
+}
@@ -0,0 +1,672 @@
+package se.fishtank.pegless.internal.bytecode;
+
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.fishtank.pegless.internal.bytecode.Code.Label;
+import se.fishtank.pegless.internal.compiler.CharacterMatcher;
+import se.fishtank.pegless.internal.compiler.Instructions;
+import se.fishtank.pegless.internal.compiler.SwitchTable;
+
+import static se.fishtank.pegless.internal.bytecode.Code.*;
+
+/**
+ * Translates instructions to a class of its own.
+ * <p/>
+ * Every instruction becomes a block of bytecode: jumps become branches,
+ * characters are compared inline and small character sets become a few
+ * range comparisons. Only returns from calls and backtracking need to
+ * dispatch on an address, which is done with a single switch. The JIT
+ * can then optimize every pattern like code written by hand for it.
+ *
+ * @author Christer Sandberg
+ */
+public final class ProgramGenerator {
+
+    /**
+     * Methods larger than this are never compiled by HotSpot, which would
+     * make a generated program slower than the <em>VM</em>.
+     */
+    private static final int MAX_CODE_LENGTH = 8000;
+
+    /** Sets with at most this many ranges are tested inline. */
+    private static final int MAX_INLINE_RANGES = 4;
+
+    /** Strings with at most this many chars are compared inline. */
+    private static final int MAX_INLINE_STRING = 16;
+
+    /** Switches on at most this many characters are made by a switch on the character. */
+    private static final int MAX_INLINE_SWITCH = 64;
+
+    private static final String PROGRAM = "se/fishtank/pegless/internal/bytecode/CompiledProgram";
+    private static final String STACKS = "se/fishtank/pegless/internal/bytecode/Stacks";
+    private static final String INSTRUCTIONS = "se/fishtank/pegless/internal/compiler/Instructions";
+    private static final String MATCHER = "se/fishtank/pegless/internal/compiler/CharacterMatcher";
+    private static final String SWITCH_TABLE = "se/fishtank/pegless/internal/compiler/SwitchTable";
+    private static final String ACTION = "se/fishtank/pegless/Action";
+    private static final String CHAR_SEQUENCE = "java/lang/CharSequence";
+    private static final String CHARACTER = "java/lang/Character";
+
+    private static final String INT_ARRAY = "[I";
+    private static final String ACTION_ARRAY = "[L" + ACTION + ";";
+    private static final String MATCHER_ARRAY = "[L" + MATCHER + ";";
+
+    // Local variables of the generated match method.
+    private static final int THIS = 0;
+    private static final int SUBJECT = 1;
+    private static final int OFFSET = 2;
+    private static final int STACKS_ = 3;
+    private static final int LEN = 4;
+    private static final int POS = 5;
+    private static final int TOP = 6;
+    private static final int CALL_DEPTH = 7;
+    private static final int NUMBER_OF_ACTIONS = 8;
+    private static final int BACKTRACK = 9;
+    private static final int CALLS = 10;
+    private static final int ACTION_OFFSETS = 11;
+    private static final int ACTIONS = 12;
+    private static final int PC = 13;
+    private static final int C = 14;
+    private static final int MATCHERS = 15;
+    private static final int PROGRAM_ACTIONS = 16;
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private final Instructions instructions;
+
+    private final ClassFile classFile;
+
+    private final Code code = new Code(8, 17);
+
+    private final Label[] labels;
+
+    private final Label fail = new Label();
+
+    private final Label dispatch = new Label();
+
+    private ProgramGenerator(Instructions instructions, String name) {
+        this.instructions = instructions;
+        this.classFile = new ClassFile(name, PROGRAM);
+        this.labels = new Label[instructions.size()];
+        for (int i = 0; i < labels.length; ++i)
+            labels[i] = new Label();
+    }
+
+    /**
+     * Generate a program for the specified instructions.
+     *
+     * @param instructions The instructions.
+     * @return A new program or {@code null} if the instructions can't be
+     * translated, in which case they should be run by the <em>VM</em>.
+     */
+    public static CompiledProgram generate(Instructions instructions) {
+        String name = "se/fishtank/pegless/internal/bytecode/Program" + counter.incrementAndGet();
+
+        try {
+            byte[] bytes = new ProgramGenerator(instructions, name).generate();
+            if (bytes == null)
+                return null;
+
+            Class<?> type = new ProgramLoader().define(name.replace('/', '.'), bytes);
+            return (CompiledProgram) type.getConstructor(Instructions.class).newInstance(instructions);
+        } catch (ReflectiveOperationException | LinkageError | IllegalStateException e) {
+            return null;
+        }
+    }
+
+    private byte[] generate() {
+        Code constructor = new Code(2, 2);
+        constructor.aload(THIS);
+        constructor.aload(1);
+        constructor.ref(INVOKESPECIAL, classFile.methodRef(PROGRAM, "<init>", "(L" + INSTRUCTIONS + ";)V"));
+        constructor.op(RETURN);
+        classFile.addMethod("<init>", "(L" + INSTRUCTIONS + ";)V", constructor);
+
+        prologue();
+        for (int address = 0; address < instructions.code.length; address += Instructions.SIZE) {
+            code.mark(labels[address / Instructions.SIZE]);
+            if (!instruction(address))
+                return null;
+        }
+
+        failure();
+        if (code.length() > MAX_CODE_LENGTH)
+            return null;
+
+        classFile.addMethod("match", "(L" + CHAR_SEQUENCE + ";IL" + STACKS + ";)I", code);
+        return classFile.toByteArray();
+    }
+
+    private void prologue() {
+        code.aload(SUBJECT);
+        code.invokeInterface(classFile.interfaceMethodRef(CHAR_SEQUENCE, "length", "()I"), 0);
+        code.istore(LEN);
+        code.iload(OFFSET);
+        code.istore(POS);
+
+        for (int local : new int[] { TOP, CALL_DEPTH, NUMBER_OF_ACTIONS, PC, C }) {
+            code.op(ICONST_0);
+            code.istore(local);
+        }
+
+        code.aload(STACKS_);
+        code.ref(GETFIELD, classFile.fieldRef(STACKS, "backtrack", INT_ARRAY));
+        code.astore(BACKTRACK);
+        code.aload(STACKS_);
+        code.ref(GETFIELD, classFile.fieldRef(STACKS, "calls", INT_ARRAY));
+        code.astore(CALLS);
+        code.aload(STACKS_);
+        code.ref(GETFIELD, classFile.fieldRef(STACKS, "actionOffsets", INT_ARRAY));
+        code.astore(ACTION_OFFSETS);
+        code.aload(STACKS_);
+        code.ref(GETFIELD, classFile.fieldRef(STACKS, "actions", ACTION_ARRAY));
+        code.astore(ACTIONS);
+        code.aload(THIS);
+        code.ref(GETFIELD, classFile.fieldRef(PROGRAM, "matchers", MATCHER_ARRAY));
+        code.astore(MATCHERS);
+        code.aload(THIS);
+        code.ref(GETFIELD, classFile.fieldRef(PROGRAM, "actions", ACTION_ARRAY));
+        code.astore(PROGRAM_ACTIONS);
+    }
+
+    /**
+     * Generate the code for the instruction at the specified address.
+     */
+    private boolean instruction(int address) {
+        int aux = instructions.aux(address);
+        Label target = null;
+        if (instructions.target(address) >= 0 && instructions.target(address) < instructions.code.length)
+            target = labels[instructions.target(address) / Instructions.SIZE];
+
+        switch (instructions.opcode(address)) {
+        case Instructions.END:
+            code.iload(POS);
+            code.op(IRETURN);
+            break;
+        case Instructions.RET:
+            code.aload(CALLS);
+            code.iinc(CALL_DEPTH, -1);
+            code.iload(CALL_DEPTH);
+            code.op(IALOAD);
+            code.istore(PC);
+            code.branch(GOTO, dispatch);
+            break;
+        case Instructions.ANY:
+            available(fail);
+            code.aload(SUBJECT);
+            code.iload(POS);
+            code.iload(LEN);
+            code.ref(INVOKESTATIC, classFile.methodRef(PROGRAM, "next", "(L" + CHAR_SEQUENCE + ";II)I"));
+            code.istore(POS);
+            break;
+        case Instructions.TEST_ANY:
+            available(target);
+            break;
+        case Instructions.CHAR:
+            character(aux, fail, true);
+            break;
+        case Instructions.TEST_CHAR:
+            character(aux, target, false);
+            break;
+        case Instructions.SET:
+            set(instructions.matchers[aux], aux, fail, true);
+            break;
+        case Instructions.TEST_SET:
+            set(instructions.matchers[aux], aux, target, false);
+            break;
+        case Instructions.SPAN:
+            span(instructions.matchers[aux], aux);
+            break;
+        case Instructions.STRING:
+            string(instructions.strings[aux], fail, true);
+            break;
+        case Instructions.TEST_STRING:
+            string(instructions.strings[aux], target, false);
+            break;
+        case Instructions.SWITCH:
+            dispatch(instructions.switches[aux], aux, target);
+            break;
+        case Instructions.BEHIND:
+            code.aload(SUBJECT);
+            code.iload(POS);
+            code.iload(OFFSET);
+            code.push(classFile, aux);
+            code.ref(INVOKESTATIC, classFile.methodRef(PROGRAM, "back", "(L" + CHAR_SEQUENCE + ";III)I"));
+            code.istore(C);
+            code.iload(C);
+            code.branch(IFLT, fail);
+            code.iload(C);
+            code.istore(POS);
+            break;
+        case Instructions.JMP:
+            code.branch(GOTO, target);
+            break;
+        case Instructions.CHOICE:
+            ensureCapacity(BACKTRACK, TOP, "backtrack", null);
+            store(BACKTRACK, TOP, 0);
+            code.push(classFile, instructions.target(address));
+            code.op(IASTORE);
+            store(BACKTRACK, TOP, 1);
+            code.iload(POS);
+            code.op(IASTORE);
+            store(BACKTRACK, TOP, 2);
+            code.iload(NUMBER_OF_ACTIONS);
+            code.op(IASTORE);
+            store(BACKTRACK, TOP, 3);
+            code.iload(CALL_DEPTH);
+            code.op(IASTORE);
+            code.iinc(TOP, 4);
+            break;
+        case Instructions.CALL:
+            ensureCapacity(CALLS, CALL_DEPTH, "calls", null);
+            store(CALLS, CALL_DEPTH, 0);
+            code.push(classFile, address + Instructions.SIZE);
+            code.op(IASTORE);
+            code.iinc(CALL_DEPTH, 1);
+            code.branch(GOTO, target);
+            break;
+        case Instructions.COMMIT:
+            code.iinc(TOP, -4);
+            code.branch(GOTO, target);
+            break;
+        case Instructions.PARTIAL_COMMIT:
+            store(BACKTRACK, TOP, -3);
+            code.iload(POS);
+            code.op(IASTORE);
+            store(BACKTRACK, TOP, -2);
+            code.iload(NUMBER_OF_ACTIONS);
+            code.op(IASTORE);
+            code.branch(GOTO, target);
+            break;
+        case Instructions.BACK_COMMIT:
+            code.iinc(TOP, -4);
+            load(BACKTRACK, TOP, 1);
+            code.istore(POS);
+            load(BACKTRACK, TOP, 2);
+            code.istore(C);
+            code.iload(NUMBER_OF_ACTIONS);
+            code.iload(C);
+            code.branch(IF_ICMPLE, target);
+            code.iload(C);
+            code.istore(NUMBER_OF_ACTIONS);
+            code.branch(GOTO, target);
+            break;
+        case Instructions.FAIL_TWICE:
+            code.iinc(TOP, -4);
+            code.branch(GOTO, fail);
+            break;
+        case Instructions.FAIL:
+            code.branch(GOTO, fail);
+            break;
+        case Instructions.OPEN_ACTION:
+            ensureCapacity(ACTION_OFFSETS, NUMBER_OF_ACTIONS, "actionOffsets", "actions");
+            store(ACTION_OFFSETS, NUMBER_OF_ACTIONS, 0);
+            code.iload(POS);
+            code.op(IASTORE);
+            store(ACTIONS, NUMBER_OF_ACTIONS, 0);
+            code.aload(PROGRAM_ACTIONS);
+            code.push(classFile, aux);
+            code.op(AALOAD);
+            code.op(AASTORE);
+            code.iinc(NUMBER_OF_ACTIONS, 1);
+            break;
+        case Instructions.CLOSE_ACTION:
+            code.iinc(NUMBER_OF_ACTIONS, -1);
+            load(ACTIONS, NUMBER_OF_ACTIONS, 0, AALOAD);
+            code.aload(SUBJECT);
+            load(ACTION_OFFSETS, NUMBER_OF_ACTIONS, 0);
+            code.iload(POS);
+            code.invokeInterface(classFile.interfaceMethodRef(ACTION, "match", "(L" + CHAR_SEQUENCE + ";II)I"), 3);
+            code.istore(C);
+            store(ACTIONS, NUMBER_OF_ACTIONS, 0);
+            code.op(ACONST_NULL);
+            code.op(AASTORE);
+            code.iload(C);
+            code.branch(IFLT, fail);
+            code.iload(C);
+            code.iload(POS);
+            code.iload(LEN);
+            code.ref(INVOKESTATIC, classFile.methodRef(PROGRAM, "checkPosition", "(III)I"));
+            code.istore(POS);
+            break;
+        default:
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Branch to the specified label if there is no character left.
+     */
+    private void available(Label otherwise) {
+        code.iload(POS);
+        code.iload(LEN);
+        code.branch(IF_ICMPGE, otherwise);
+    }
+
+    private void character(int c, Label otherwise, boolean advance) {
+        available(otherwise);
+
+        code.aload(SUBJECT);
+        code.iload(POS);
+        if (isSimple(c, c)) {
+            code.invokeInterface(classFile.interfaceMethodRef(CHAR_SEQUENCE, "charAt", "(I)C"), 1);
+        } else {
+            code.ref(INVOKESTATIC, classFile.methodRef(CHARACTER, "codePointAt", "(L" + CHAR_SEQUENCE + ";I)I"));
+        }
+
+        code.push(classFile, c);
+        code.branch(IF_ICMPNE, otherwise);
+        if (advance)
+            code.iinc(POS, Character.charCount(c));
+    }
+
+    private void string(String str, Label otherwise, boolean advance) {
+        code.iload(POS);
+        code.push(classFile, str.length());
+        code.op(IADD);
+        code.iload(LEN);
+        code.branch(IF_ICMPGT, otherwise);
+
+        if (str.length() <= MAX_INLINE_STRING) {
+            for (int i = 0; i < str.length(); ++i) {
+                code.aload(SUBJECT);
+                code.iload(POS);
+                if (i > 0) {
+                    code.push(classFile, i);
+                    code.op(IADD);
+                }
+
+                code.invokeInterface(classFile.interfaceMethodRef(CHAR_SEQUENCE, "charAt", "(I)C"), 1);
+                code.push(classFile, str.charAt(i));
+                code.branch(IF_ICMPNE, otherwise);
+            }
+        } else {
+            code.aload(SUBJECT);
+            code.iload(POS);
+            code.ref(LDC_W, classFile.string(str));
+            code.ref(INVOKESTATIC, classFile.methodRef(PROGRAM, "regionMatches",
+                    "(L" + CHAR_SEQUENCE + ";ILjava/lang/String;)Z"));
+            code.branch(IFEQ, otherwise);
+        }
+
+        if (advance)
+            code.iinc(POS, str.length());
+    }
+
+    /**
+     * Branch to the label the character at the current position is mapped
+     * to, either by a switch on the character or, for larger tables, by a
+     * switch on the address looked up in the table.
+     */
+    private void dispatch(SwitchTable table, int index, Label otherwise) {
+        available(otherwise);
+
+        int[] ranges = table.ranges();
+        int size = 0;
+        boolean simple = true;
+        for (int i = 0; i < ranges.length; i += 3) {
+            size += ranges[i + 1] - ranges[i] + 1;
+            simple &= isSimple(ranges[i], ranges[i + 1]);
+        }
+
+        code.aload(SUBJECT);
+        code.iload(POS);
+        if (simple) {
+            code.invokeInterface(classFile.interfaceMethodRef(CHAR_SEQUENCE, "charAt", "(I)C"), 1);
+        } else {
+            code.ref(INVOKESTATIC, classFile.methodRef(CHARACTER, "codePointAt", "(L" + CHAR_SEQUENCE + ";I)I"));
+        }
+
+        if (size <= MAX_INLINE_SWITCH) {
+            int[] keys = new int[size];
+            Label[] targets = new Label[size];
+            int k = 0;
+            for (int i = 0; i < ranges.length; i += 3) {
+                for (int c = ranges[i]; c <= ranges[i + 1]; ++c) {
+                    keys[k] = c;
+                    targets[k++] = labels[ranges[i + 2] / Instructions.SIZE];
+                }
+            }
+
+            code.lookupSwitch(keys, targets, otherwise);
+            return;
+        }
+
+        code.istore(C);
+        code.aload(THIS);
+        code.ref(GETFIELD, classFile.fieldRef(PROGRAM, "switches", "[L" + SWITCH_TABLE + ";"));
+        code.push(classFile, index);
+        code.op(AALOAD);
+        code.iload(C);
+        code.op(ICONST_M1);
+        code.ref(INVOKEVIRTUAL, classFile.methodRef(SWITCH_TABLE, "target", "(II)I"));
+
+        TreeSet<Integer> addresses = new TreeSet<>();
+        for (int i = 0; i < ranges.length; i += 3)
+            addresses.add(ranges[i + 2]);
+
+        int[] keys = new int[addresses.size()];
+        Label[] targets = new Label[addresses.size()];
+        int k = 0;
+        for (int address : addresses) {
+            keys[k] = address;
+            targets[k++] = labels[address / Instructions.SIZE];
+        }
+
+        code.lookupSwitch(keys, targets, otherwise);
+    }
+
+    private void set(CharacterMatcher matcher, int index, Label otherwise, boolean advance) {
+        available(otherwise);
+
+        boolean simple = decode(matcher);
+        test(matcher, index, otherwise);
+        if (advance)
+            advance(simple);
+    }
+
+    private void span(CharacterMatcher matcher, int index) {
+        Label loop = new Label();
+        Label done = new Label();
+
+        code.mark(loop);
+        available(done);
+        boolean simple = decode(matcher);
+        test(matcher, index, done);
+        advance(simple);
+        code.branch(GOTO, loop);
+        code.mark(done);
+    }
+
+    /**
+     * Load the character at the current position into {@code C}. Returns
+     * whether a single char is enough, which is the case when the set only
+     * has characters that aren't surrogates in the basic multilingual plane.
+     * A surrogate pair then never matches anyway.
+     */
+    private boolean decode(CharacterMatcher matcher) {
+        int[] ranges = matcher.ranges();
+        boolean simple = true;
+        for (int i = 0; i < ranges.length; i += 2)
+            simple &= isSimple(ranges[i], ranges[i + 1]);
+
+        code.aload(SUBJECT);
+        code.iload(POS);
+        if (simple) {
+            code.invokeInterface(classFile.interfaceMethodRef(CHAR_SEQUENCE, "charAt", "(I)C"), 1);
+        } else {
+            code.ref(INVOKESTATIC, classFile.methodRef(CHARACTER, "codePointAt", "(L" + CHAR_SEQUENCE + ";I)I"));
+        }
+
+        code.istore(C);
+        return simple;
+    }
+
+    /**
+     * Branch to the specified label unless {@code C} is in the set.
+     */
+    private void test(CharacterMatcher matcher, int index, Label otherwise) {
+        int[] ranges = matcher.ranges();
+        if (ranges.length / 2 > MAX_INLINE_RANGES) {
+            code.aload(MATCHERS);
+            code.push(classFile, index);
+            code.op(AALOAD);
+            code.iload(C);
+            code.ref(INVOKEVIRTUAL, classFile.methodRef(MATCHER, "match", "(I)Z"));
+            code.branch(IFEQ, otherwise);
+            return;
+        }
+
+        Label matched = new Label();
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] == ranges[i + 1]) {
+                code.iload(C);
+                code.push(classFile, ranges[i]);
+                code.branch(IF_ICMPEQ, matched);
+            } else {
+                Label next = new Label();
+                code.iload(C);
+                code.push(classFile, ranges[i]);
+                code.branch(IF_ICMPLT, next);
+                code.iload(C);
+                code.push(classFile, ranges[i + 1]);
+                code.branch(IF_ICMPLE, matched);
+                code.mark(next);
+            }
+        }
+
+        code.branch(GOTO, otherwise);
+        code.mark(matched);
+    }
+
+    private void advance(boolean simple) {
+        if (simple) {
+            code.iinc(POS, 1);
+        } else {
+            code.iload(POS);
+            code.iload(C);
+            code.ref(INVOKESTATIC, classFile.methodRef(CHARACTER, "charCount", "(I)I"));
+            code.op(IADD);
+            code.istore(POS);
+        }
+    }
+
+    /**
+     * Grow the specified stack(s) if {@code index} is at the end of the first one.
+     */
+    private void ensureCapacity(int stack, int index, String field, String actionsField) {
+        Label enough = new Label();
+        code.iload(index);
+        code.aload(stack);
+        code.op(ARRAYLENGTH);
+        code.branch(IF_ICMPLT, enough);
+
+        grow(stack, field, INT_ARRAY);
+        if (actionsField != null)
+            grow(ACTIONS, actionsField, ACTION_ARRAY);
+
+        code.mark(enough);
+    }
+
+    private void grow(int stack, String field, String type) {
+        code.aload(stack);
+        code.ref(INVOKESTATIC, classFile.methodRef(PROGRAM, "grow", "(" + type + ")" + type));
+        code.astore(stack);
+        code.aload(STACKS_);
+        code.aload(stack);
+        code.ref(PUTFIELD, classFile.fieldRef(STACKS, field, type));
+    }
+
+    /**
+     * Push a stack and the index {@code index + delta} to store into.
+     */
+    private void store(int stack, int index, int delta) {
+        code.aload(stack);
+        code.iload(index);
+        if (delta != 0) {
+            code.push(classFile, delta);
+            code.op(IADD);
+        }
+    }
+
+    private void load(int stack, int index, int delta) {
+        load(stack, index, delta, IALOAD);
+    }
+
+    private void load(int stack, int index, int delta, int opcode) {
+        store(stack, index, delta);
+        code.op(opcode);
+    }
+
+    /**
+     * Generate the code for failing, which backtracks to the latest
+     * choice and dispatches to its address.
+     */
+    private void failure() {
+        Label backtrack = new Label();
+
+        code.mark(fail);
+        code.iload(TOP);
+        code.branch(IFNE, backtrack);
+        code.aload(ACTIONS);
+        code.op(ICONST_0);
+        code.iload(NUMBER_OF_ACTIONS);
+        code.ref(INVOKESTATIC, classFile.methodRef(PROGRAM, "clear", "(" + ACTION_ARRAY + "II)V"));
+        code.op(ICONST_M1);
+        code.op(IRETURN);
+
+        code.mark(backtrack);
+        code.iinc(TOP, -4);
+        load(BACKTRACK, TOP, 0);
+        code.istore(PC);
+        load(BACKTRACK, TOP, 1);
+        code.istore(POS);
+        load(BACKTRACK, TOP, 3);
+        code.istore(CALL_DEPTH);
+        load(BACKTRACK, TOP, 2);
+        code.istore(C);
+        code.iload(NUMBER_OF_ACTIONS);
+        code.iload(C);
+        code.branch(IF_ICMPLE, dispatch);
+        code.aload(ACTIONS);
+        code.iload(C);
+        code.iload(NUMBER_OF_ACTIONS);
+        code.ref(INVOKESTATIC, classFile.methodRef(PROGRAM, "clear", "(" + ACTION_ARRAY + "II)V"));
+        code.iload(C);
+        code.istore(NUMBER_OF_ACTIONS);
+
+        // Every address pushed by a choice or a call can be jumped to.
+        TreeSet<Integer> addresses = new TreeSet<>();
+        for (int address = 0; address < instructions.code.length; address += Instructions.SIZE) {
+            int opcode = instructions.opcode(address);
+            if (opcode == Instructions.CHOICE)
+                addresses.add(instructions.target(address));
+            else if (opcode == Instructions.CALL)
+                addresses.add(address + Instructions.SIZE);
+        }
+
+        int[] keys = new int[addresses.size()];
+        Label[] targets = new Label[addresses.size()];
+        int i = 0;
+        for (int address : addresses) {
+            keys[i] = address;
+            targets[i++] = labels[address / Instructions.SIZE];
+        }
+
+        Label otherwise = new Label();
+        code.mark(dispatch);
+        code.iload(PC);
+        code.lookupSwitch(keys, targets, otherwise);
+        code.mark(otherwise);
+        code.ref(INVOKESTATIC, classFile.methodRef(PROGRAM, "bug", "()Ljava/lang/IllegalStateException;"));
+        code.op(ATHROW);
+    }
+
+    private static boolean isSimple(int first, int last) {
+        return last < Character.MIN_SUPPLEMENTARY_CODE_POINT &&
+                (last < Character.MIN_SURROGATE || first > Character.MAX_SURROGATE);
+    }
+
+}
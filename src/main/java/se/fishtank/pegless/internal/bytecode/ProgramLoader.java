@@ -0,0 +1,28 @@
+package se.fishtank.pegless.internal.bytecode;
+
+/**
+ * Loads a single generated program.
+ * <p/>
+ * Every program gets a loader of its own, so that the class can be
+ * unloaded as soon as its pattern matcher is no longer reachable.
+ *
+ * @author Christer Sandberg
+ */
+final class ProgramLoader extends ClassLoader {
+
+    ProgramLoader() {
+        super(CompiledProgram.class.getClassLoader());
+    }
+
+    /**
+     * Define the class with the specified name.
+     *
+     * @param name The binary name of the class.
+     * @param bytes The class file.
+     * @return The class.
+     */
+    Class<?> define(String name, byte[] bytes) {
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+
+}
@@ -0,0 +1,27 @@
+package se.fishtank.pegless.internal.bytecode;
+
+import se.fishtank.pegless.Action;
+
+/**
+ * The stacks used by a {@link CompiledProgram} while matching.
+ * <p/>
+ * Owned by a match session, so that stacks grown during one match are
+ * reused by the next. A compiled program writes grown arrays back here.
+ *
+ * @author Christer Sandberg
+ */
+public final class Stacks {
+
+    /** Backtrack entries, each made up of four ints. */
+    public int[] backtrack;
+
+    /** Return addresses for calls. */
+    public int[] calls;
+
+    /** Offsets for the pending actions. */
+    public int[] actionOffsets;
+
+    /** The pending actions. */
+    public Action[] actions;
+
+}
@@ -0,0 +1,40 @@
+package se.fishtank.pegless.internal.closure;
+
+import se.fishtank.pegless.Action;
+
+/**
+ * Matches a matcher and then runs an action for what it matched.
+ *
+ * @author Christer Sandberg
+ */
+final class ActionMatcher extends Matcher {
+
+    private final Action action;
+
+    private final Matcher matcher;
+
+    ActionMatcher(Action action, Matcher matcher) {
+        this.action = action;
+        this.matcher = matcher;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        int end = matcher.match(subject, offset, pos);
+        if (end < 0)
+            return -1;
+
+        int p = action.match(subject, pos, end);
+        if (p < 0)
+            return -1;
+
+        if (p < end || p > subject.length())
+            throw new IllegalStateException("Invalid position returned from action");
+
+        return p;
+    }
+
+}
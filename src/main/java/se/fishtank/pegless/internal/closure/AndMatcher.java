@@ -0,0 +1,24 @@
+package se.fishtank.pegless.internal.closure;
+
+/**
+ * Matches if a matcher matches, without consuming anything.
+ *
+ * @author Christer Sandberg
+ */
+final class AndMatcher extends Matcher {
+
+    private final Matcher matcher;
+
+    AndMatcher(Matcher matcher) {
+        this.matcher = matcher;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        return matcher.match(subject, offset, pos) >= 0 ? pos : -1;
+    }
+
+}
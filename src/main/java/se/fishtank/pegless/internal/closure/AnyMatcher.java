@@ -0,0 +1,24 @@
+package se.fishtank.pegless.internal.closure;
+
+/**
+ * Matches any character.
+ *
+ * @author Christer Sandberg
+ */
+final class AnyMatcher extends Matcher {
+
+    static final AnyMatcher SINGLETON = new AnyMatcher();
+
+    private AnyMatcher() {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        int len = subject.length();
+        return pos < len ? next(subject, pos, len) : -1;
+    }
+
+}
@@ -0,0 +1,36 @@
+package se.fishtank.pegless.internal.closure;
+
+/**
+ * Matches a matcher of a fixed length ending at the current position.
+ *
+ * @author Christer Sandberg
+ */
+final class BehindMatcher extends Matcher {
+
+    private final int n;
+
+    private final Matcher matcher;
+
+    BehindMatcher(int n, Matcher matcher) {
+        this.n = n;
+        this.matcher = matcher;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        for (int i = 0; i < n; ++i) {
+            if (pos <= offset)
+                return -1;
+
+            if (Character.isLowSurrogate(subject.charAt(--pos)) && pos > offset &&
+                    Character.isHighSurrogate(subject.charAt(pos - 1)))
+                --pos;
+        }
+
+        return matcher.match(subject, offset, pos);
+    }
+
+}
@@ -0,0 +1,30 @@
+package se.fishtank.pegless.internal.closure;
+
+/**
+ * Matches a single character, possibly outside the basic multilingual
+ * plane or a lone surrogate.
+ * <p/>
+ * Other characters are matched by a {@link StringMatcher}.
+ *
+ * @author Christer Sandberg
+ */
+final class CharMatcher extends Matcher {
+
+    private final int c;
+
+    CharMatcher(int c) {
+        this.c = c;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        if (pos < subject.length() && Character.codePointAt(subject, pos) == c)
+            return pos + Character.charCount(c);
+
+        return -1;
+    }
+
+}
@@ -0,0 +1,52 @@
+package se.fishtank.pegless.internal.closure;
+
+import se.fishtank.pegless.internal.compiler.CharacterMatcher;
+
+/**
+ * Matches the first of a number of alternatives that matches.
+ * <p/>
+ * An alternative that can only match starting with certain characters
+ * has a guard, and is skipped without being tried when the next
+ * character isn't one of them. A choice where the alternatives start
+ * with different characters then never backtracks.
+ *
+ * @author Christer Sandberg
+ */
+final class ChoiceMatcher extends Matcher {
+
+    private final Matcher[] alternatives;
+
+    /** The characters every alternative must start with or {@code null} for any. */
+    private final CharacterMatcher[] guards;
+
+    ChoiceMatcher(Matcher[] alternatives, CharacterMatcher[] guards) {
+        this.alternatives = alternatives;
+        this.guards = guards;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        // The next character, decoded when first needed.
+        int c = -2;
+        for (int i = 0; i < alternatives.length; ++i) {
+            CharacterMatcher guard = guards[i];
+            if (guard != null) {
+                if (c == -2)
+                    c = pos < subject.length() ? Character.codePointAt(subject, pos) : -1;
+
+                if (c < 0 || !guard.match(c))
+                    continue;
+            }
+
+            int p = alternatives[i].match(subject, offset, pos);
+            if (p >= 0)
+                return p;
+        }
+
+        return -1;
+    }
+
+}
@@ -0,0 +1,240 @@
+package se.fishtank.pegless.internal.closure;
+
+import java.util.ArrayList;
+
+import se.fishtank.pegless.internal.ast.ActionNode;
+import se.fishtank.pegless.internal.ast.AndNode;
+import se.fishtank.pegless.internal.ast.AnyNode;
+import se.fishtank.pegless.internal.ast.BehindNode;
+import se.fishtank.pegless.internal.ast.BinaryNode;
+import se.fishtank.pegless.internal.ast.CallNode;
+import se.fishtank.pegless.internal.ast.CharNode;
+import se.fishtank.pegless.internal.ast.ChoiceNode;
+import se.fishtank.pegless.internal.ast.FalseNode;
+import se.fishtank.pegless.internal.ast.GrammarNode;
+import se.fishtank.pegless.internal.ast.Node;
+import se.fishtank.pegless.internal.ast.NotNode;
+import se.fishtank.pegless.internal.ast.RepeatNode;
+import se.fishtank.pegless.internal.ast.SeqNode;
+import se.fishtank.pegless.internal.ast.SetNode;
+import se.fishtank.pegless.internal.ast.StringNode;
+import se.fishtank.pegless.internal.ast.TrueNode;
+import se.fishtank.pegless.internal.bytecode.CompiledProgram;
+import se.fishtank.pegless.internal.compiler.CharacterMatcher;
+import se.fishtank.pegless.internal.compiler.Emitter;
+import se.fishtank.pegless.internal.compiler.Instructions;
+import se.fishtank.pegless.internal.util.CharacterSet;
+
+/**
+ * Compiles the nodes of a pattern into a tree of matchers.
+ * <p/>
+ * Sequences and choices are flattened, consecutive characters are
+ * fused into strings, repetitions of a character set become spans and
+ * alternatives get guards from their first sets. A choice needs no
+ * backtrack entry, its position is kept on the call stack of the thread.
+ * That also means that the depth of recursive rules is limited by the
+ * size of that stack, and that patterns nesting matchers deeper than
+ * {@link #MAX_DEPTH} are left to the VM.
+ *
+ * @author Christer Sandberg
+ */
+public final class ClosureCompiler {
+
+    /** Matchers nested deeper than this could overflow the stack when matching. */
+    private static final int MAX_DEPTH = 256;
+
+    private ClosureCompiler() {
+    }
+
+    /**
+     * Compile the specified node, which must have been fixed for emitting.
+     *
+     * @param node The node to compile.
+     * @param instructions The instructions emitted for the same node.
+     * @return A new program or {@code null} if the matchers would be
+     * nested too deep.
+     */
+    public static CompiledProgram compile(Node<?> node, Instructions instructions) {
+        try {
+            return new ClosureProgram(instructions, compile(node, null, 0));
+        } catch (TooDeepException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compile the specified node, where calls refer to the specified rules.
+     */
+    private static Matcher compile(Node<?> node, RuleMatcher[] rules, int depth) {
+        if (depth > MAX_DEPTH)
+            throw new TooDeepException();
+
+        if (node instanceof CharNode) {
+            int c = ((CharNode) node).ch;
+            return isSimple(c) ? new StringMatcher(String.valueOf(Character.toChars(c))) : new CharMatcher(c);
+        } else if (node instanceof StringNode) {
+            return new StringMatcher(((StringNode) node).str);
+        } else if (node instanceof AnyNode) {
+            return AnyMatcher.SINGLETON;
+        } else if (node instanceof SetNode) {
+            return new SetMatcher(CharacterMatcher.newCharacterMatcher(((SetNode) node).characterSet));
+        } else if (node instanceof TrueNode) {
+            return TrueMatcher.SINGLETON;
+        } else if (node instanceof FalseNode) {
+            return FalseMatcher.SINGLETON;
+        } else if (node instanceof SeqNode) {
+            return compileSeq((SeqNode) node, rules, depth);
+        } else if (node instanceof ChoiceNode) {
+            return compileChoice((ChoiceNode) node, rules, depth);
+        } else if (node instanceof RepeatNode) {
+            Node<?> sibling = ((RepeatNode) node).getSibling();
+            CharacterSet characterSet = CharacterSet.getCharacterSet(sibling);
+            if (characterSet != null)
+                return new SpanMatcher(CharacterMatcher.newCharacterMatcher(characterSet));
+
+            return new RepeatMatcher(compile(sibling, rules, depth + 1));
+        } else if (node instanceof AndNode) {
+            return new AndMatcher(compile(((AndNode) node).getSibling(), rules, depth + 1));
+        } else if (node instanceof NotNode) {
+            return compileNot(((NotNode) node).getSibling(), rules, depth);
+        } else if (node instanceof BehindNode) {
+            BehindNode behindNode = (BehindNode) node;
+            return new BehindMatcher(behindNode.n, compile(behindNode.getSibling(), rules, depth + 1));
+        } else if (node instanceof ActionNode) {
+            ActionNode actionNode = (ActionNode) node;
+            return new ActionMatcher(actionNode.action, compile(actionNode.getSibling(), rules, depth + 1));
+        } else if (node instanceof GrammarNode) {
+            GrammarNode grammarNode = (GrammarNode) node;
+            RuleMatcher[] grammarRules = new RuleMatcher[grammarNode.ruleNodes.size()];
+            for (int i = 0; i < grammarRules.length; ++i)
+                grammarRules[i] = new RuleMatcher();
+
+            for (int i = 0; i < grammarRules.length; ++i)
+                grammarRules[i].body = compile(grammarNode.ruleNodes.get(i).getSibling(), grammarRules, depth + 1);
+
+            return grammarRules[0];
+        } else if (node instanceof CallNode) {
+            return rules[((CallNode) node).getRuleNode().index];
+        }
+
+        throw new IllegalStateException("Did not expect node: " + node.getClass());
+    }
+
+    private static Matcher compileSeq(SeqNode seqNode, RuleMatcher[] rules, int depth) {
+        ArrayList<Node<?>> nodes = new ArrayList<>();
+        flatten(seqNode, SeqNode.class, nodes);
+
+        ArrayList<Matcher> matchers = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (Node<?> node : nodes) {
+            if (node instanceof CharNode && isSimple(((CharNode) node).ch)) {
+                sb.appendCodePoint(((CharNode) node).ch);
+                continue;
+            }
+
+            if (sb.length() > 0) {
+                matchers.add(new StringMatcher(sb.toString()));
+                sb.setLength(0);
+            }
+
+            Matcher matcher = compile(node, rules, depth + 1);
+            if (matcher != TrueMatcher.SINGLETON)
+                matchers.add(matcher);
+        }
+
+        if (sb.length() > 0)
+            matchers.add(new StringMatcher(sb.toString()));
+
+        if (matchers.isEmpty())
+            return TrueMatcher.SINGLETON;
+
+        if (matchers.size() == 1)
+            return matchers.get(0);
+
+        return new SeqMatcher(matchers.toArray(new Matcher[matchers.size()]));
+    }
+
+    private static Matcher compileChoice(ChoiceNode choiceNode, RuleMatcher[] rules, int depth) {
+        ArrayList<Node<?>> nodes = new ArrayList<>();
+        flatten(choiceNode, ChoiceNode.class, nodes);
+
+        ArrayList<Matcher> alternatives = new ArrayList<>();
+        ArrayList<CharacterMatcher> guards = new ArrayList<>();
+        for (Node<?> node : nodes) {
+            Matcher matcher = compile(node, rules, depth + 1);
+            if (matcher == FalseMatcher.SINGLETON)
+                continue;
+
+            alternatives.add(matcher);
+            guards.add(getGuard(node));
+        }
+
+        if (alternatives.isEmpty())
+            return FalseMatcher.SINGLETON;
+
+        if (alternatives.size() == 1)
+            return alternatives.get(0);
+
+        return new ChoiceMatcher(alternatives.toArray(new Matcher[alternatives.size()]),
+                guards.toArray(new CharacterMatcher[guards.size()]));
+    }
+
+    private static Matcher compileNot(Node<?> node, RuleMatcher[] rules, int depth) {
+        // Like the emitted code, a body failing on its first character is
+        // only tested for that, and other bodies are only tried when the
+        // next character may start them, so actions run the same.
+        CharacterMatcher guard = getGuard(node);
+        if (node.isHeadFail())
+            return new NotMatcher(guard != null ? new SetMatcher(guard) : AnyMatcher.SINGLETON, null);
+
+        return new NotMatcher(compile(node, rules, depth + 1), guard);
+    }
+
+    /**
+     * Returns a matcher of the characters the specified node must start
+     * with, or {@code null} if it may start with any or match nothing.
+     */
+    private static CharacterMatcher getGuard(Node<?> node) {
+        CharacterSet[] firstSet = new CharacterSet[1];
+        if (Emitter.getFirstSet(node, CharacterSet.FULL_SET, firstSet) != 0 || firstSet[0].equals(CharacterSet.FULL_SET))
+            return null;
+
+        return CharacterMatcher.newCharacterMatcher(firstSet[0]);
+    }
+
+    /**
+     * Add the operands of a chain of nodes of the specified type in order.
+     */
+    private static void flatten(Node<?> node, Class<? extends BinaryNode<?>> type, ArrayList<Node<?>> nodes) {
+        while (type.isInstance(node)) {
+            BinaryNode<?> binaryNode = (BinaryNode<?>) node;
+            flatten(binaryNode.getFirstSibling(), type, nodes);
+            node = binaryNode.getSecondSibling();
+        }
+
+        nodes.add(node);
+    }
+
+    /**
+     * Returns whether comparing the chars of the character is the
+     * same as comparing the code point, which it isn't for surrogates.
+     */
+    private static boolean isSimple(int c) {
+        return c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE;
+    }
+
+    /**
+     * Thrown when matchers would be nested deeper than {@link #MAX_DEPTH}.
+     */
+    private static final class TooDeepException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        // Only signals the fallback, so there's no need for a stack trace.
+        TooDeepException() {
+            super(null, null, false, false);
+        }
+
+    }
+
+}
@@ -0,0 +1,31 @@
+package se.fishtank.pegless.internal.closure;
+
+import se.fishtank.pegless.internal.bytecode.CompiledProgram;
+import se.fishtank.pegless.internal.bytecode.Stacks;
+import se.fishtank.pegless.internal.compiler.Instructions;
+
+/**
+ * A program made up of matchers compiled from the nodes of a pattern.
+ * <p/>
+ * The stacks are never used, the call stack of the thread is used instead.
+ *
+ * @author Christer Sandberg
+ */
+final class ClosureProgram extends CompiledProgram {
+
+    private final Matcher matcher;
+
+    ClosureProgram(Instructions instructions, Matcher matcher) {
+        super(instructions);
+        this.matcher = matcher;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, Stacks stacks) {
+        return matcher.match(subject, offset, offset);
+    }
+
+}
@@ -0,0 +1,23 @@
+package se.fishtank.pegless.internal.closure;
+
+/**
+ * Never matches.
+ *
+ * @author Christer Sandberg
+ */
+final class FalseMatcher extends Matcher {
+
+    static final FalseMatcher SINGLETON = new FalseMatcher();
+
+    private FalseMatcher() {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        return -1;
+    }
+
+}
@@ -0,0 +1,50 @@
+package se.fishtank.pegless.internal.closure;
+
+/**
+ * A matcher for a part of a pattern.
+ * <p/>
+ * Matchers are compiled from the nodes of a pattern by the
+ * {@link ClosureCompiler}. Instead of pushing backtrack entries,
+ * a matcher that fails returns {@code -1} and the position to
+ * backtrack to is simply kept by its caller.
+ *
+ * @author Christer Sandberg
+ */
+public abstract class Matcher {
+
+    /**
+     * Match the subject at the specified position.
+     *
+     * @param subject The subject.
+     * @param offset The offset the match started at, looking behind stops there.
+     * @param pos The position to match at.
+     * @return The position after the match or {@code -1} if it didn't match.
+     */
+    public abstract int match(CharSequence subject, int offset, int pos);
+
+    /**
+     * Returns the index after the code point at {@code index}.
+     */
+    static int next(CharSequence subject, int index, int len) {
+        if (Character.isHighSurrogate(subject.charAt(index++)) && index < len &&
+                Character.isLowSurrogate(subject.charAt(index)))
+            ++index;
+
+        return index;
+    }
+
+    /**
+     * Returns whether every character in the specified ranges is a single
+     * char that isn't a surrogate, so that testing a char is enough.
+     */
+    static boolean isSimple(int[] ranges) {
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i + 1] >= Character.MIN_SUPPLEMENTARY_CODE_POINT ||
+                    (ranges[i + 1] >= Character.MIN_SURROGATE && ranges[i] <= Character.MAX_SURROGATE))
+                return false;
+        }
+
+        return true;
+    }
+
+}
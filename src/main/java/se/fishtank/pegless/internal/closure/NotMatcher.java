@@ -0,0 +1,36 @@
+package se.fishtank.pegless.internal.closure;
+
+import se.fishtank.pegless.internal.compiler.CharacterMatcher;
+
+/**
+ * Matches if a matcher doesn't match, without consuming anything.
+ * <p/>
+ * A matcher that can only match starting with certain characters has a
+ * guard, and isn't tried when the next character isn't one of them.
+ *
+ * @author Christer Sandberg
+ */
+final class NotMatcher extends Matcher {
+
+    private final Matcher matcher;
+
+    /** The characters the matcher must start with or {@code null} for any. */
+    private final CharacterMatcher guard;
+
+    NotMatcher(Matcher matcher, CharacterMatcher guard) {
+        this.matcher = matcher;
+        this.guard = guard;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        if (guard != null && (pos >= subject.length() || !guard.match(Character.codePointAt(subject, pos))))
+            return pos;
+
+        return matcher.match(subject, offset, pos) < 0 ? pos : -1;
+    }
+
+}
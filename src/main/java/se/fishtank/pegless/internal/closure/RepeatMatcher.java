@@ -0,0 +1,30 @@
+package se.fishtank.pegless.internal.closure;
+
+/**
+ * Matches a matcher as many times as possible.
+ *
+ * @author Christer Sandberg
+ */
+final class RepeatMatcher extends Matcher {
+
+    private final Matcher matcher;
+
+    RepeatMatcher(Matcher matcher) {
+        this.matcher = matcher;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        for (;;) {
+            int p = matcher.match(subject, offset, pos);
+            if (p < 0)
+                return pos;
+
+            pos = p;
+        }
+    }
+
+}
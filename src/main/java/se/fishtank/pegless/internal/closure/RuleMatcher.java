@@ -0,0 +1,25 @@
+package se.fishtank.pegless.internal.closure;
+
+/**
+ * Matches a rule of a grammar.
+ * <p/>
+ * Calls to a rule refer to its matcher, which is created before the
+ * body of the rule, so that rules can refer to each other and to
+ * themselves.
+ *
+ * @author Christer Sandberg
+ */
+final class RuleMatcher extends Matcher {
+
+    /** The matcher for the body of the rule, set once compiled. */
+    Matcher body;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        return body.match(subject, offset, pos);
+    }
+
+}
@@ -0,0 +1,30 @@
+package se.fishtank.pegless.internal.closure;
+
+/**
+ * Matches a sequence of matchers, one after the other.
+ *
+ * @author Christer Sandberg
+ */
+final class SeqMatcher extends Matcher {
+
+    private final Matcher[] matchers;
+
+    SeqMatcher(Matcher[] matchers) {
+        this.matchers = matchers;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        for (Matcher matcher : matchers) {
+            pos = matcher.match(subject, offset, pos);
+            if (pos < 0)
+                return -1;
+        }
+
+        return pos;
+    }
+
+}
@@ -0,0 +1,37 @@
+package se.fishtank.pegless.internal.closure;
+
+import se.fishtank.pegless.internal.compiler.CharacterMatcher;
+
+/**
+ * Matches a character in a set.
+ *
+ * @author Christer Sandberg
+ */
+final class SetMatcher extends Matcher {
+
+    private final CharacterMatcher matcher;
+
+    /** Whether testing a single char is enough. */
+    private final boolean simple;
+
+    SetMatcher(CharacterMatcher matcher) {
+        this.matcher = matcher;
+        this.simple = isSimple(matcher.ranges());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        if (pos >= subject.length())
+            return -1;
+
+        if (simple)
+            return matcher.match(subject.charAt(pos)) ? pos + 1 : -1;
+
+        int c = Character.codePointAt(subject, pos);
+        return matcher.match(c) ? pos + Character.charCount(c) : -1;
+    }
+
+}
@@ -0,0 +1,47 @@
+package se.fishtank.pegless.internal.closure;
+
+import se.fishtank.pegless.internal.compiler.CharacterMatcher;
+
+/**
+ * Matches as many characters in a set as possible.
+ *
+ * @author Christer Sandberg
+ */
+final class SpanMatcher extends Matcher {
+
+    private final CharacterMatcher matcher;
+
+    /** Whether testing a single char is enough. */
+    private final boolean simple;
+
+    SpanMatcher(CharacterMatcher matcher) {
+        this.matcher = matcher;
+        this.simple = isSimple(matcher.ranges());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        CharacterMatcher matcher = this.matcher;
+        int len = subject.length();
+        if (simple) {
+            while (pos < len && matcher.match(subject.charAt(pos)))
+                ++pos;
+
+            return pos;
+        }
+
+        while (pos < len) {
+            int c = Character.codePointAt(subject, pos);
+            if (!matcher.match(c))
+                break;
+
+            pos += Character.charCount(c);
+        }
+
+        return pos;
+    }
+
+}
@@ -0,0 +1,34 @@
+package se.fishtank.pegless.internal.closure;
+
+/**
+ * Matches a string of characters that aren't surrogates, where
+ * comparing chars gives the same result as comparing code points.
+ *
+ * @author Christer Sandberg
+ */
+final class StringMatcher extends Matcher {
+
+    private final char[] chars;
+
+    StringMatcher(String str) {
+        this.chars = str.toCharArray();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        char[] chars = this.chars;
+        if (pos + chars.length > subject.length())
+            return -1;
+
+        for (int i = 0; i < chars.length; ++i) {
+            if (subject.charAt(pos + i) != chars[i])
+                return -1;
+        }
+
+        return pos + chars.length;
+    }
+
+}
@@ -0,0 +1,23 @@
+package se.fishtank.pegless.internal.closure;
+
+/**
+ * Always matches without consuming anything.
+ *
+ * @author Christer Sandberg
+ */
+final class TrueMatcher extends Matcher {
+
+    static final TrueMatcher SINGLETON = new TrueMatcher();
+
+    private TrueMatcher() {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int match(CharSequence subject, int offset, int pos) {
+        return pos;
+    }
+
+}
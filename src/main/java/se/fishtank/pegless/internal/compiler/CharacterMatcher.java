@@ -1,16 +1,46 @@
 package se.fishtank.pegless.internal.compiler;
 
-import java.util.Arrays;
-import java.util.BitSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import se.fishtank.pegless.internal.util.CharacterSet;
 
 /**
  * Character matching.
+ * <p/>
+ * Characters below 256 are looked up in a bitmap, others by a binary
+ * search among the sorted ranges of the set. Either way a character is
+ * matched in at most logarithmic time, however fragmented the set is.
  *
  * @author Christer Sandberg
  */
-public abstract class CharacterMatcher {
+public final class CharacterMatcher {
+
+    /** The number of characters looked up in the bitmap. */
+    private static final int LATIN1 = 256;
+
+    /** The same set lowered to UTF-8 bytes or {@code null} if it isn't. */
+    public final Utf8Automaton utf8Automaton;
+
+    /** Bitmap of the characters below {@link #LATIN1}. */
+    private final long[] latin1 = new long[LATIN1 / 64];
+
+    /** Pairs of first and last characters of each range. */
+    private final int[] ranges;
+
+    /** The first pair in {@link #ranges} ending at or above {@link #LATIN1}. */
+    private final int firstHigh;
+
+    private CharacterMatcher(int[] ranges, Utf8Automaton utf8Automaton) {
+        this.ranges = ranges;
+        this.utf8Automaton = utf8Automaton;
+
+        int i = 0;
+        for (; i < ranges.length && ranges[i + 1] < LATIN1; i += 2)
+            set(ranges[i], ranges[i + 1]);
+
+        if (i < ranges.length && ranges[i] < LATIN1)
+            set(ranges[i], LATIN1 - 1);
+
+        this.firstHigh = i / 2;
+    }
 
     /**
      * Returns whether this character matcher matches character {@code c}.
@@ -18,9 +48,37 @@ public abstract class CharacterMatcher {
      * @param c The character to match.
      * @return {@code true} or {@code false}
      */
-    public abstract boolean match(int c);
+    public boolean match(int c) {
+        if ((c & ~(LATIN1 - 1)) == 0)
+            return (latin1[c >>> 6] & (1L << c)) != 0;
+
+        if (c < 0)
+            return false;
+
+        int[] ranges = this.ranges;
+        int low = firstHigh;
+        int high = (ranges.length >> 1) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (c > ranges[mid * 2 + 1]) {
+                low = mid + 1;
+            } else if (c < ranges[mid * 2]) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
 
-    CharacterMatcher() {
+        return false;
+    }
+
+    /**
+     * Returns the characters matched as sorted, non-overlapping ranges.
+     *
+     * @return Pairs of first and last characters of each range.
+     */
+    public int[] ranges() {
+        return ranges.clone();
     }
 
     /**
@@ -29,170 +87,44 @@ public abstract class CharacterMatcher {
      * @param characterSet A character set.
      * @return A new character matcher.
      */
-    public static CharacterMatcher newCharacterMatcher(BitSet characterSet) {
-        if (characterSet.isEmpty())
-            return new CharacterMatcher() {
-                @Override
-                public boolean match(int c) {
-                    return false;
-                }
-
-                @Override
-                public String toString() {
-                    return "()";
-                }
-            };
-
-        if (characterSet.nextClearBit(0) == 0x110000)
-            return new CharacterMatcher() {
-                @Override
-                public boolean match(int c) {
-                    return true;
-                }
-
-                @Override
-                public String toString() {
-                    return "(0-10ffff)";
-                }
-            };
-
-        // TODO: Maybe one set should suffice?
-        LinkedList<CharacterMatcher> result = new LinkedList<>();
-
-        LinkedList<Integer> set = null;
-        for (int i = characterSet.nextSetBit(0); i >= 0; i = characterSet.nextSetBit(i + 1)) {
-            int j = characterSet.nextClearBit(i);
-            if ((j - i) > 1) {
-                if (set != null) {
-                    result.add(toCharMatcher(set));
-                    set = null;
-                }
-
-                result.add(new RangeMatcher(i, j - 1));
-                i = j;
-            } else {
-                if (set == null)
-                    set = new LinkedList<>();
-
-                set.add(i);
-            }
-        }
-
-        if (set != null)
-            result.add(toCharMatcher(set));
-
-        return compose(result);
-    }
-
-    private static CharacterMatcher compose(LinkedList<CharacterMatcher> matchers) {
-        Iterator<CharacterMatcher> iterator = matchers.iterator();
-
-        CharacterMatcher first = iterator.next();
-        if (!iterator.hasNext())
-            return first;
-
-        ComposedMatcher composed = new ComposedMatcher(first, iterator.next());
-        while (iterator.hasNext())
-            composed = new ComposedMatcher(composed, iterator.next());
-
-        return composed;
-    }
-
-    private static CharacterMatcher toCharMatcher(LinkedList<Integer> set) {
-        if (set.size() == 1) {
-            final int value = set.getFirst();
-            return new CharacterMatcher() {
-                @Override
-                public boolean match(int c) {
-                    return c == value;
-                }
-
-                @Override
-                public String toString() {
-                    return String.format("(%x)", value);
-                }
-            };
-        }
-
-        int i = 0;
-        int[] array = new int[set.size()];
-        for (Integer n : set)
-            array[i++] = n;
-
-        return new SetMatcher(array);
+    public static CharacterMatcher newCharacterMatcher(CharacterSet characterSet) {
+        return new CharacterMatcher(characterSet.ranges(), null);
     }
 
-    static class RangeMatcher extends CharacterMatcher {
-
-        final int start;
-
-        final int end;
-
-        RangeMatcher(int start, int end) {
-            this.start = start;
-            this.end = end;
-        }
-
-        @Override
-        public boolean match(int c) {
-            return c >= start && c <= end;
-        }
-
-        @Override
-        public String toString() {
-            return String.format("(%x-%x)", start, end);
-        }
-
+    /**
+     * Create a new character matcher from the given character set, along
+     * with the set lowered to UTF-8 bytes.
+     *
+     * @param characterSet A character set.
+     * @return A new character matcher.
+     */
+    public static CharacterMatcher newUtf8CharacterMatcher(CharacterSet characterSet) {
+        return new CharacterMatcher(characterSet.ranges(), Utf8Automaton.newUtf8Automaton(characterSet));
     }
 
-    static class SetMatcher extends CharacterMatcher {
-
-        final int[] characters;
-
-        SetMatcher(int[] characters) {
-            this.characters = characters;
-        }
-
-        @Override
-        public boolean match(int c) {
-            int low = characters[0];
-            int high = characters[characters.length - 1];
-
-            return (c == low || c == high) || (c > low && c < high && Arrays.binarySearch(characters, c) >= 0);
-        }
-
-        @Override
-        public String toString() {
-            StringBuilder sb = new StringBuilder(characters.length * 2);
-            for (int character : characters)
-                sb.append("(").append(Integer.toHexString(character)).append(")");
-
-            return sb.toString();
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        if (ranges.length == 0)
+            return "()";
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] == ranges[i + 1]) {
+                sb.append(String.format("(%x)", ranges[i]));
+            } else {
+                sb.append(String.format("(%x-%x)", ranges[i], ranges[i + 1]));
+            }
         }
 
+        return sb.toString();
     }
 
-    static class ComposedMatcher extends CharacterMatcher {
-
-        final CharacterMatcher first;
-
-        final CharacterMatcher second;
-
-        ComposedMatcher(CharacterMatcher first, CharacterMatcher second) {
-            this.first = first;
-            this.second = second;
-        }
-
-        @Override
-        public boolean match(int c) {
-            return first.match(c) || second.match(c);
-        }
-
-        @Override
-        public String toString() {
-            return first.toString() + second.toString();
-        }
-
+    private void set(int first, int last) {
+        for (int c = first; c <= last; ++c)
+            latin1[c >>> 6] |= 1L << c;
     }
 
 }
@@ -1,8 +1,15 @@
 package se.fishtank.pegless.internal.compiler;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.TreeSet;
 
+import se.fishtank.pegless.Action;
 import se.fishtank.pegless.internal.ast.*;
 import se.fishtank.pegless.internal.util.CharacterSet;
 
@@ -14,8 +21,81 @@ import se.fishtank.pegless.internal.util.CharacterSet;
  */
 public class Emitter {
 
+    /** Choices with fewer alternatives than this are never switched on. */
+    private static final int MIN_SWITCH_ALTERNATIVES = 3;
+
+    /** Choices whose first sets split the characters in more ranges than this are never switched on. */
+    private static final int MAX_SWITCH_RANGES = 1024;
+
     final ArrayList<Instruction> instructions = new ArrayList<>();
 
+    /** Choices made up of the alternatives left by a switch, which are never switched on again. */
+    private final Set<Node<?>> dispatched = Collections.newSetFromMap(new IdentityHashMap<Node<?>, Boolean>());
+
+    /** Whether character sets are lowered to UTF-8 automata. */
+    final boolean utf8Automata;
+
+    /** Whether rules without actions are memoized. */
+    final boolean memoize;
+
+    /** The indices of the rules to memoize, or {@code null} for every rule without actions. */
+    private final BitSet memoPlan;
+
+    /** The names of the rules that may be memoized, by the index their calls refer to them with. */
+    private final ArrayList<String> memoRules = new ArrayList<>();
+
+    /**
+     * Steps left to emit, the next one first. Nodes schedule the steps
+     * for their siblings here rather than emitting them recursively, so
+     * deeply nested nodes don't overflow the stack.
+     */
+    private final ArrayDeque<Runnable> work = new ArrayDeque<>();
+
+    /**
+     * Create a new instance.
+     */
+    public Emitter() {
+        this(false);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param utf8Automata Whether character sets should be lowered to
+     * automata over UTF-8 bytes as well.
+     */
+    public Emitter(boolean utf8Automata) {
+        this(utf8Automata, false);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param utf8Automata Whether character sets should be lowered to
+     * automata over UTF-8 bytes as well.
+     * @param memoize Whether the results of calls to rules without
+     * actions should be memoized.
+     */
+    public Emitter(boolean utf8Automata, boolean memoize) {
+        this(utf8Automata, memoize, null);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param utf8Automata Whether character sets should be lowered to
+     * automata over UTF-8 bytes as well.
+     * @param memoize Whether the results of calls to rules without
+     * actions should be memoized.
+     * @param memoPlan The indices of the rules without actions, in the
+     * order they're emitted, to memoize or {@code null} for all of them.
+     */
+    public Emitter(boolean utf8Automata, boolean memoize, BitSet memoPlan) {
+        this.utf8Automata = utf8Automata;
+        this.memoize = memoize;
+        this.memoPlan = memoPlan;
+    }
+
     /**
      * Emit instructions for the specified node.
      *
@@ -23,12 +103,63 @@ public class Emitter {
      * @return The instructions emitted.
      */
     public Instructions emit(Node<?> node) {
-        emit(node, false, -1, CharacterSet.FULL_SET);
+        CharacterSet[] firstSet = new CharacterSet[1];
+        CharacterMatcher firstSetMatcher = null;
+        if (getFirstSet(node, CharacterSet.FULL_SET, firstSet) == 0)
+            firstSetMatcher = CharacterMatcher.newCharacterMatcher(firstSet[0]);
+
+        StringBuilder prefix = new StringBuilder();
+        getLiteralPrefix(node, prefix);
+
+        CharacterSet separators = getConsumedSet(node).complement();
+
+        schedule(emitting(node, false, -1, CharacterSet.FULL_SET));
+        while (!work.isEmpty())
+            work.pop().run();
+
         addInstruction(Opcode.END);
         peephole();
-        instructions.trimToSize();
 
-        return new Instructions(instructions);
+        return assemble(firstSetMatcher, prefix.length() > 0 ? prefix.toString() : null,
+                separators.isEmpty() ? null : CharacterMatcher.newCharacterMatcher(separators));
+    }
+
+    private Instructions assemble(CharacterMatcher firstSet, String prefix, CharacterMatcher separators) {
+        int size = instructions.size();
+        int[] code = new int[size * Instructions.SIZE];
+
+        ArrayList<CharacterMatcher> matchers = new ArrayList<>();
+        ArrayList<Action> actions = new ArrayList<>();
+        ArrayList<String> strings = new ArrayList<>();
+        ArrayList<SwitchTable> switches = new ArrayList<>();
+
+        for (int i = 0; i < size; ++i) {
+            Instruction instruction = getInstruction(i);
+
+            int aux = instruction.aux;
+            if (instruction.matcher != null) {
+                aux = matchers.size();
+                matchers.add(instruction.matcher);
+            } else if (instruction.action != null) {
+                aux = actions.size();
+                actions.add(instruction.action);
+            } else if (instruction.string != null) {
+                aux = strings.size();
+                strings.add(instruction.string);
+            } else if (instruction instanceof SwitchInstruction) {
+                aux = switches.size();
+                switches.add(((SwitchInstruction) instruction).toSwitchTable(i));
+            }
+
+            int address = i * Instructions.SIZE;
+            code[address] = instruction.opcode.code | (aux << Instructions.AUX_SHIFT);
+            code[address + 1] = (i + instruction.offset) * Instructions.SIZE;
+        }
+
+        return new Instructions(code, matchers.toArray(new CharacterMatcher[matchers.size()]),
+                actions.toArray(new Action[actions.size()]), strings.toArray(new String[strings.size()]),
+                switches.toArray(new SwitchTable[switches.size()]), memoRules.toArray(new String[memoRules.size()]),
+                firstSet, prefix, separators);
     }
 
     private void peephole() {
@@ -39,14 +170,22 @@ public class Emitter {
             instruction = getInstruction(i);
             switch (instruction.opcode) {
             case CHOICE: case CALL: case COMMIT: case PARTIAL_COMMIT:
-            case BACK_COMMIT: case TEST_CHAR: case TEST_ANY:
+            case BACK_COMMIT: case TEST_CHAR: case TEST_ANY: case TEST_STRING:
                 jumpToHere(i, finalLabel(i));
                 break;
             case TEST_SET:
                 jumpToHere(i, finalLabel(i));
 
                 TestSetInstruction testSetInstruction = (TestSetInstruction) instruction;
-                instructions.set(i, testSetInstruction.convert());
+                instructions.set(i, testSetInstruction.convert(newCharacterMatcher(testSetInstruction.characterSet)));
+                break;
+            case SWITCH:
+                jumpToHere(i, finalLabel(i));
+
+                int[] offsets = ((SwitchInstruction) instruction).offsets;
+                for (int j = 0; j < offsets.length; ++j)
+                    offsets[j] = finalTarget(i + offsets[j]) - i;
+
                 break;
             case JMP:
                 int finalTarget = finalTarget(i);
@@ -76,53 +215,54 @@ public class Emitter {
         }
     }
 
-    private void emit(Node<?> node, boolean opt, int tt, BitSet followSet) {
-        for (;;) {
-            if (node instanceof CharNode) {
-                emitChar(((CharNode) node).ch, tt);
-                return;
-            } else if (node instanceof AnyNode) {
-                addInstruction(Opcode.ANY);
-                return;
-            } else if (node instanceof SetNode) {
-                emitCharacterSet(((SetNode) node).characterSet, tt);
-                return;
-            } else if (node instanceof TrueNode) {
-                return;
-            } else if (node instanceof FalseNode) {
-                addInstruction(Opcode.FAIL);
-                return;
-            } else if (node instanceof ChoiceNode) {
-                emitChoice((ChoiceNode) node, opt, followSet);
-                return;
-            } else if (node instanceof RepeatNode) {
-                emitRep(((RepeatNode) node).getSibling(), opt, followSet);
-                return;
-            } else if (node instanceof BehindNode) {
-                emitBehind((BehindNode) node);
-                return;
-            } else if (node instanceof NotNode) {
-                emitNot(((NotNode) node).getSibling());
-                return;
-            } else if (node instanceof AndNode) {
-                emitAnd(((AndNode) node).getSibling(), tt);
-                return;
-            } else if (node instanceof ActionNode) {
-                emitAction((ActionNode) node, tt);
-                return;
-            } else if (node instanceof GrammarNode) {
-                emitGrammar((GrammarNode) node);
-                return;
-            } else if (node instanceof CallNode) {
-                emitCall((CallNode) node);
-                return;
-            } else if (node instanceof SeqNode) {
-                SeqNode seqNode = (SeqNode) node;
-                tt = emitSeq(seqNode, tt, followSet);
-                node = seqNode.getSecondSibling();
-                continue;
-            }
+    /**
+     * Schedule the specified steps to run in order, before the steps
+     * scheduled earlier.
+     */
+    private void schedule(Runnable... steps) {
+        for (int i = steps.length - 1; i >= 0; --i)
+            work.push(steps[i]);
+    }
+
+    /**
+     * Returns a step emitting instructions for the specified node.
+     */
+    private Runnable emitting(Node<?> node, boolean opt, int tt, CharacterSet followSet) {
+        return () -> emit(node, opt, tt, followSet);
+    }
 
+    private void emit(Node<?> node, boolean opt, int tt, CharacterSet followSet) {
+        if (node instanceof CharNode) {
+            emitChar(((CharNode) node).ch, tt);
+        } else if (node instanceof StringNode) {
+            emitString(((StringNode) node).str, Opcode.STRING);
+        } else if (node instanceof AnyNode) {
+            addInstruction(Opcode.ANY);
+        } else if (node instanceof SetNode) {
+            emitCharacterSet(((SetNode) node).characterSet, tt);
+        } else if (node instanceof TrueNode) {
+            // Matches without looking at the subject.
+        } else if (node instanceof FalseNode) {
+            addInstruction(Opcode.FAIL);
+        } else if (node instanceof ChoiceNode) {
+            emitChoice((ChoiceNode) node, opt, followSet);
+        } else if (node instanceof RepeatNode) {
+            emitRep(((RepeatNode) node).getSibling(), opt, followSet);
+        } else if (node instanceof BehindNode) {
+            emitBehind((BehindNode) node);
+        } else if (node instanceof NotNode) {
+            emitNot(((NotNode) node).getSibling());
+        } else if (node instanceof AndNode) {
+            emitAnd(((AndNode) node).getSibling(), tt);
+        } else if (node instanceof ActionNode) {
+            emitAction((ActionNode) node, tt);
+        } else if (node instanceof GrammarNode) {
+            emitGrammar((GrammarNode) node);
+        } else if (node instanceof CallNode) {
+            emitCall((CallNode) node);
+        } else if (node instanceof SeqNode) {
+            emitSeq((SeqNode) node, opt, tt, followSet);
+        } else {
             throw new IllegalStateException("Did not expect node: " + node.getClass());
         }
     }
@@ -143,7 +283,13 @@ public class Emitter {
         addInstruction(instruction);
     }
 
-    private void emitCharacterSet(BitSet characterSet, int tt) {
+    private int emitString(String str, Opcode opcode) {
+        Instruction instruction = new Instruction(opcode);
+        instruction.string = str;
+        return addInstruction(instruction);
+    }
+
+    private void emitCharacterSet(CharacterSet characterSet, int tt) {
         int[] charSink = new int[1];
         switch (getCharacterSetType(characterSet, charSink)) {
         case CHAR:
@@ -161,7 +307,7 @@ public class Emitter {
             }
 
             Instruction instruction = new Instruction(Opcode.SET);
-            instruction.matcher = CharacterMatcher.newCharacterMatcher(characterSet);
+            instruction.matcher = newCharacterMatcher(characterSet);
             addInstruction(instruction);
             break;
         case FAIL:
@@ -172,47 +318,201 @@ public class Emitter {
         }
     }
 
-    private void emitChoice(ChoiceNode choiceNode, boolean opt, BitSet followSet) {
+    private CharacterMatcher newCharacterMatcher(CharacterSet characterSet) {
+        return utf8Automata ? CharacterMatcher.newUtf8CharacterMatcher(characterSet)
+                : CharacterMatcher.newCharacterMatcher(characterSet);
+    }
+
+    private void emitChoice(ChoiceNode choiceNode, boolean opt, CharacterSet followSet) {
+        if (emitSwitch(choiceNode, opt, followSet))
+            return;
+
         boolean emptySecondSibling = choiceNode.getSecondSibling() instanceof TrueNode;
 
-        BitSet characterSet = new BitSet();
-        int x = getFirstSet(choiceNode.getFirstSibling(), CharacterSet.FULL_SET, characterSet);
+        String str = getHeadString(choiceNode.getFirstSibling());
+        if (str != null) {
+            // Once the string is there the first sibling can't fail, so there is nothing to backtrack to.
+            int test = emitString(str, Opcode.TEST_STRING);
+            schedule(emitting(choiceNode.getFirstSibling(), false, -1, followSet), () -> {
+                int jmp = emptySecondSibling ? -1 : addInstruction(Opcode.JMP);
+                jumpToHere(test);
+                schedule(emitting(choiceNode.getSecondSibling(), opt, -1, followSet), () -> jumpToHere(jmp));
+            });
+            return;
+        }
+
+        CharacterSet[] firstSet = new CharacterSet[1];
+        int x = getFirstSet(choiceNode.getFirstSibling(), CharacterSet.FULL_SET, firstSet);
+        CharacterSet characterSet = firstSet[0];
         if (choiceNode.getFirstSibling().isHeadFail() || (x == 0 &&
                 checkSecondSiblingInChoice(choiceNode.getSecondSibling(), followSet, characterSet))) {
             int test = emitTestSet(characterSet, false);
-            int jmp = -1;
-            emit(choiceNode.getFirstSibling(), false, test, followSet);
-
-            if (!emptySecondSibling)
-                jmp = addInstruction(Opcode.JMP);
-
-            jumpToHere(test);
-            emit(choiceNode.getSecondSibling(), opt, -1, followSet);
-            jumpToHere(jmp);
+            schedule(emitting(choiceNode.getFirstSibling(), false, test, followSet), () -> {
+                int jmp = emptySecondSibling ? -1 : addInstruction(Opcode.JMP);
+                jumpToHere(test);
+                schedule(emitting(choiceNode.getSecondSibling(), opt, -1, followSet), () -> jumpToHere(jmp));
+            });
         } else if (opt && emptySecondSibling) {
             jumpToHere(addInstruction(Opcode.PARTIAL_COMMIT));
-            emit(choiceNode.getFirstSibling(), true, -1, CharacterSet.FULL_SET);
+            schedule(emitting(choiceNode.getFirstSibling(), true, -1, CharacterSet.FULL_SET));
         } else {
             int test = emitTestSet(characterSet, x != 0);
             int choice = addInstruction(Opcode.CHOICE);
-            emit(choiceNode.getFirstSibling(), emptySecondSibling, test, CharacterSet.FULL_SET);
+            schedule(emitting(choiceNode.getFirstSibling(), emptySecondSibling, test, CharacterSet.FULL_SET), () -> {
+                int commit = addInstruction(Opcode.COMMIT);
+                jumpToHere(choice);
+                jumpToHere(test);
+                schedule(emitting(choiceNode.getSecondSibling(), opt, -1, followSet), () -> jumpToHere(commit));
+            });
+        }
+    }
 
-            int commit = addInstruction(Opcode.COMMIT);
-            jumpToHere(choice);
-            jumpToHere(test);
-            emit(choiceNode.getSecondSibling(), opt, -1, followSet);
-            jumpToHere(commit);
+    /**
+     * Emit a switch on the next character to the alternatives that can
+     * match when the subject continues with it, if that rules out enough
+     * alternatives to be worth it.
+     *
+     * @return {@code true} if a switch was emitted.
+     */
+    private boolean emitSwitch(ChoiceNode choiceNode, boolean opt, CharacterSet followSet) {
+        if (dispatched.contains(choiceNode))
+            return false;
+
+        ArrayList<Node<?>> alternatives = new ArrayList<>();
+        Node<?> node = choiceNode;
+        while (node instanceof ChoiceNode) {
+            // The rest of the chain has been considered along with this choice.
+            if (node != choiceNode)
+                dispatched.add(node);
+
+            alternatives.add(((ChoiceNode) node).getFirstSibling());
+            node = ((ChoiceNode) node).getSecondSibling();
+        }
+
+        alternatives.add(node);
+
+        int k = alternatives.size();
+        if (k < MIN_SWITCH_ALTERNATIVES)
+            return false;
+
+        // Alternatives that may match without looking at the next character are viable for every character.
+        CharacterSet[] firstSets = new CharacterSet[k];
+        BitSet always = new BitSet();
+        TreeSet<Integer> bounds = new TreeSet<>();
+        for (int i = 0; i < k; ++i) {
+            CharacterSet[] firstSet = new CharacterSet[1];
+            if (getFirstSet(alternatives.get(i), CharacterSet.FULL_SET, firstSet) != 0)
+                always.set(i);
+
+            firstSets[i] = firstSet[0];
+            int[] ranges = firstSet[0].ranges();
+            for (int j = 0; j < ranges.length; j += 2) {
+                bounds.add(ranges[j]);
+                bounds.add(ranges[j + 1] + 1);
+            }
+
+            if (bounds.size() > MAX_SWITCH_RANGES)
+                return false;
+        }
+
+        // Group the characters by the alternatives viable for them.
+        LinkedHashMap<BitSet, Integer> groups = new LinkedHashMap<>();
+        ArrayList<Integer> ranges = new ArrayList<>();
+        for (int c : bounds) {
+            Integer next = bounds.higher(c);
+            if (next == null)
+                break;
+
+            int last = next - 1;
+
+            BitSet viable = (BitSet) always.clone();
+            for (int i = 0; i < k; ++i) {
+                if (firstSets[i].get(c))
+                    viable.set(i);
+            }
+
+            if (!viable.equals(always)) {
+                Integer group = groups.get(viable);
+                if (group == null) {
+                    group = groups.size();
+                    groups.put(viable, group);
+                }
+
+                int n = ranges.size();
+                if (n > 0 && ranges.get(n - 2) == c - 1 && ranges.get(n - 1).equals(group)) {
+                    ranges.set(n - 2, last);
+                } else {
+                    ranges.add(c);
+                    ranges.add(last);
+                    ranges.add(group);
+                }
+            }
+        }
+
+        // Alternatives are emitted once for every group they're viable in, so only
+        // switch if it pays off without duplicating too much.
+        int emitted = always.cardinality();
+        int largest = always.cardinality();
+        for (BitSet viable : groups.keySet()) {
+            emitted += viable.cardinality();
+            largest = Math.max(largest, viable.cardinality());
         }
+
+        if (groups.size() < 2 || largest >= k || emitted > 2 * k)
+            return false;
+
+        int[] table = new int[ranges.size()];
+        for (int i = 0; i < table.length; ++i)
+            table[i] = ranges.get(i);
+
+        SwitchInstruction instruction = new SwitchInstruction(table, groups.size());
+        int sw = addInstruction(instruction);
+
+        ArrayList<Integer> jumps = new ArrayList<>();
+        ArrayList<Runnable> steps = new ArrayList<>();
+        for (BitSet viable : groups.keySet()) {
+            int group = groups.get(viable);
+            steps.add(() -> instruction.offsets[group] = instructions.size() - sw);
+            steps.add(emittingAlternatives(alternatives, viable, opt, followSet));
+            steps.add(() -> jumps.add(addInstruction(Opcode.JMP)));
+        }
+
+        steps.add(() -> jumpToHere(sw));
+        steps.add(emittingAlternatives(alternatives, always, opt, followSet));
+        steps.add(() -> {
+            for (int jump : jumps)
+                jumpToHere(jump);
+        });
+
+        schedule(steps.toArray(new Runnable[steps.size()]));
+        return true;
     }
 
-    private boolean checkSecondSiblingInChoice(Node<?> secondSibling, BitSet followSet, BitSet firstSet) {
-        BitSet characterSet = new BitSet();
+    /**
+     * Returns a step emitting a choice between the specified alternatives, in order.
+     */
+    private Runnable emittingAlternatives(ArrayList<Node<?>> alternatives, BitSet viable, boolean opt,
+                                          CharacterSet followSet) {
+        if (viable.isEmpty())
+            return () -> addInstruction(Opcode.FAIL);
+
+        Node<?> node = alternatives.get(viable.length() - 1);
+        for (int i = viable.previousSetBit(viable.length() - 2); i >= 0; i = viable.previousSetBit(i - 1)) {
+            node = new ChoiceNode(alternatives.get(i), node);
+            dispatched.add(node);
+        }
+
+        return emitting(node, opt, -1, followSet);
+    }
+
+    private boolean checkSecondSiblingInChoice(Node<?> secondSibling, CharacterSet followSet, CharacterSet firstSet) {
+        CharacterSet[] characterSet = new CharacterSet[1];
         getFirstSet(secondSibling, followSet, characterSet);
 
-        return !firstSet.intersects(characterSet);
+        return !firstSet.intersects(characterSet[0]);
     }
 
-    private int emitTestSet(BitSet characterSet, boolean acceptEmptyString) {
+    private int emitTestSet(CharacterSet characterSet, boolean acceptEmptyString) {
         if (acceptEmptyString)
             return -1;
 
@@ -233,23 +533,36 @@ public class Emitter {
         }
     }
 
-    private void emitRep(Node<?> node, boolean opt, BitSet followSet) {
-        BitSet characterSet = new BitSet();
-        if (CharacterSet.fillCharacterSet(node, characterSet)) {
+    private void emitRep(Node<?> node, boolean opt, CharacterSet followSet) {
+        CharacterSet characterSet = CharacterSet.getCharacterSet(node);
+        if (characterSet != null) {
             Instruction instruction = new Instruction(Opcode.SPAN);
-            instruction.matcher = CharacterMatcher.newCharacterMatcher(characterSet);
+            instruction.matcher = newCharacterMatcher(characterSet);
             addInstruction(instruction);
             return;
         }
 
-        int x = getFirstSet(node, CharacterSet.FULL_SET, characterSet);
+        String str = getHeadString(node);
+        if (str != null) {
+            int test = emitString(str, Opcode.TEST_STRING);
+            schedule(emitting(node, opt, -1, CharacterSet.FULL_SET), () -> {
+                int jmp = addInstruction(Opcode.JMP);
+                jumpToHere(test);
+                jumpToHere(jmp, test);
+            });
+            return;
+        }
+
+        CharacterSet[] firstSet = new CharacterSet[1];
+        int x = getFirstSet(node, CharacterSet.FULL_SET, firstSet);
+        characterSet = firstSet[0];
         if (node.isHeadFail() || (x == 0 && !characterSet.intersects(followSet))) {
             int test = emitTestSet(characterSet, false);
-            emit(node, opt, test, CharacterSet.FULL_SET);
-
-            int jmp = addInstruction(Opcode.JMP);
-            jumpToHere(test);
-            jumpToHere(jmp, test);
+            schedule(emitting(node, opt, test, CharacterSet.FULL_SET), () -> {
+                int jmp = addInstruction(Opcode.JMP);
+                jumpToHere(test);
+                jumpToHere(jmp, test);
+            });
             return;
         }
 
@@ -262,12 +575,13 @@ public class Emitter {
         }
 
         int index = instructions.size();
-        emit(node, false, -1, CharacterSet.FULL_SET);
-
-        int commit = addInstruction(Opcode.PARTIAL_COMMIT);
-        jumpToHere(commit, index);
-        jumpToHere(choice);
-        jumpToHere(test);
+        int jumpFrom = choice;
+        schedule(emitting(node, false, -1, CharacterSet.FULL_SET), () -> {
+            int commit = addInstruction(Opcode.PARTIAL_COMMIT);
+            jumpToHere(commit, index);
+            jumpToHere(jumpFrom);
+            jumpToHere(test);
+        });
     }
 
     private void emitBehind(BehindNode behindNode) {
@@ -277,42 +591,51 @@ public class Emitter {
             addInstruction(instruction);
         }
 
-        emit(behindNode.getSibling(), false, -1, CharacterSet.FULL_SET);
+        schedule(emitting(behindNode.getSibling(), false, -1, CharacterSet.FULL_SET));
     }
 
     private void emitNot(Node<?> node) {
-        BitSet characterSet = new BitSet();
-        int x = getFirstSet(node, CharacterSet.FULL_SET, characterSet);
-        int test = emitTestSet(characterSet, x != 0);
+        if (node instanceof StringNode) {
+            int test = emitString(((StringNode) node).str, Opcode.TEST_STRING);
+            addInstruction(Opcode.FAIL);
+            jumpToHere(test);
+            return;
+        }
+
+        CharacterSet[] firstSet = new CharacterSet[1];
+        int x = getFirstSet(node, CharacterSet.FULL_SET, firstSet);
+        int test = emitTestSet(firstSet[0], x != 0);
         if (node.isHeadFail()) {
             addInstruction(Opcode.FAIL);
+            jumpToHere(test);
         } else {
             int choice = addInstruction(Opcode.CHOICE);
-            emit(node, false, -1, CharacterSet.FULL_SET);
-            addInstruction(Opcode.FAIL_TWICE);
-            jumpToHere(choice);
+            schedule(emitting(node, false, -1, CharacterSet.FULL_SET), () -> {
+                addInstruction(Opcode.FAIL_TWICE);
+                jumpToHere(choice);
+                jumpToHere(test);
+            });
         }
-
-        jumpToHere(test);
     }
 
     private void emitAnd(Node<?> node, int tt) {
         int len = node.getFixedLength();
         if (len >= 0 && !Support.hasActions(node)) {
-            emit(node, false, tt, CharacterSet.FULL_SET);
-            if (len > 0) {
-                Instruction instruction = new Instruction(Opcode.BEHIND);
-                instruction.aux = len;
-                addInstruction(instruction);
-            }
+            schedule(emitting(node, false, tt, CharacterSet.FULL_SET), () -> {
+                if (len > 0) {
+                    Instruction instruction = new Instruction(Opcode.BEHIND);
+                    instruction.aux = len;
+                    addInstruction(instruction);
+                }
+            });
         } else {
             int choice = addInstruction(Opcode.CHOICE);
-            emit(node, false, tt, CharacterSet.FULL_SET);
-
-            int commit = addInstruction(Opcode.BACK_COMMIT);
-            jumpToHere(choice);
-            addInstruction(Opcode.FAIL);
-            jumpToHere(commit);
+            schedule(emitting(node, false, tt, CharacterSet.FULL_SET), () -> {
+                int commit = addInstruction(Opcode.BACK_COMMIT);
+                jumpToHere(choice);
+                addInstruction(Opcode.FAIL);
+                jumpToHere(commit);
+            });
         }
     }
 
@@ -321,10 +644,8 @@ public class Emitter {
         instruction1.action = actionNode.action;
         addInstruction(instruction1);
 
-        emit(actionNode.getSibling(), false, tt, CharacterSet.FULL_SET);
-
-        Instruction instruction2 = new Instruction(Opcode.CLOSE_ACTION);
-        addInstruction(instruction2);
+        schedule(emitting(actionNode.getSibling(), false, tt, CharacterSet.FULL_SET),
+                () -> addInstruction(new Instruction(Opcode.CLOSE_ACTION)));
     }
 
     private void emitGrammar(GrammarNode grammarNode) {
@@ -334,18 +655,35 @@ public class Emitter {
         int start = instructions.size();
         jumpToHere(firstCall);
 
+        // Rules running actions can't be memoized, their actions must run on every call.
+        int[] memoIds = new int[grammarNode.ruleNodes.size()];
+        for (RuleNode ruleNode : grammarNode.ruleNodes) {
+            memoIds[ruleNode.index] = -1;
+            if (memoize && !ruleNode.hasActions()) {
+                if (memoPlan == null || memoPlan.get(memoRules.size()))
+                    memoIds[ruleNode.index] = memoRules.size();
+
+                memoRules.add(ruleNode.name);
+            }
+        }
+
         ArrayList<Integer> positions = new ArrayList<>();
+        ArrayList<Runnable> steps = new ArrayList<>();
         for (RuleNode ruleNode : grammarNode.ruleNodes) {
-            positions.add(instructions.size());
-            emit(ruleNode.getSibling(), false, -1, CharacterSet.FULL_SET);
-            addInstruction(Opcode.RET);
+            steps.add(() -> positions.add(instructions.size()));
+            steps.add(emitting(ruleNode.getSibling(), false, -1, CharacterSet.FULL_SET));
+            steps.add(() -> addInstruction(Opcode.RET));
         }
 
-        jumpToHere(jumpToEnd);
-        correctCalls(positions, start, instructions.size());
+        steps.add(() -> {
+            jumpToHere(jumpToEnd);
+            correctCalls(positions, memoIds, start, instructions.size());
+        });
+
+        schedule(steps.toArray(new Runnable[steps.size()]));
     }
 
-    private void correctCalls(ArrayList<Integer> positions, int from, int to) {
+    private void correctCalls(ArrayList<Integer> positions, int[] memoIds, int from, int to) {
         for (int i = from; i < to; ++i) {
             Instruction instruction = instructions.get(i);
             if (instruction.opcode == Opcode.OPEN_CALL) {
@@ -353,11 +691,13 @@ public class Emitter {
                 if (rule != from && getInstruction(rule - 1).opcode != Opcode.RET)
                     throw new IllegalStateException("Bug alert!");
 
-                if (instructions.get(finalTarget(i + 1)).opcode == Opcode.RET) {
+                // A memoized rule records its result when it returns, so it needs a call of its own.
+                int memoId = memoIds[instruction.aux];
+                if (memoId < 0 && instructions.get(finalTarget(i + 1)).opcode == Opcode.RET) {
                     instructions.set(i, new Instruction(Opcode.JMP));
                 } else {
                     Instruction call = new Instruction(Opcode.CALL);
-                    call.aux = instruction.aux;
+                    call.aux = memoId;
                     instructions.set(i, call);
                 }
 
@@ -372,19 +712,35 @@ public class Emitter {
         addInstruction(instruction);
     }
 
-    private int emitSeq(SeqNode seqNode, int tt, BitSet followSet) {
+    private void emitSeq(SeqNode seqNode, boolean opt, int tt, CharacterSet followSet) {
+        CharacterSet firstFollowSet = CharacterSet.FULL_SET;
         if (needFollowSet(seqNode.getFirstSibling())) {
-            BitSet characterSet = new BitSet();
-            getFirstSet(seqNode.getSecondSibling(), followSet, characterSet);
-            emit(seqNode.getFirstSibling(), false, tt, characterSet);
-        } else {
-            emit(seqNode.getFirstSibling(), false, tt, CharacterSet.FULL_SET);
+            CharacterSet[] firstSet = new CharacterSet[1];
+            getFirstSet(seqNode.getSecondSibling(), followSet, firstSet);
+            firstFollowSet = firstSet[0];
         }
 
-        if (seqNode.getFirstSibling().getFixedLength() != 0)
-            return -1;
+        // The test is still valid after the first sibling only if it consumed nothing.
+        int secondTt = seqNode.getFirstSibling().getFixedLength() != 0 ? -1 : tt;
+        schedule(emitting(seqNode.getFirstSibling(), false, tt, firstFollowSet),
+                emitting(seqNode.getSecondSibling(), opt, secondTt, followSet));
+    }
 
-        return tt;
+    /**
+     * Returns the string the specified node starts with, if the node
+     * can't fail once the string has matched, otherwise {@code null}.
+     */
+    private String getHeadString(Node<?> node) {
+        if (node instanceof StringNode)
+            return ((StringNode) node).str;
+
+        if (node instanceof SeqNode) {
+            SeqNode seqNode = (SeqNode) node;
+            if (seqNode.getFirstSibling() instanceof StringNode && seqNode.getSecondSibling().isNoFail())
+                return ((StringNode) seqNode.getFirstSibling()).str;
+        }
+
+        return null;
     }
 
     private boolean needFollowSet(Node<?> node) {
@@ -402,17 +758,16 @@ public class Emitter {
         }
     }
 
-    private Opcode getCharacterSetType(BitSet characterSet, int[] charSink) {
+    private Opcode getCharacterSetType(CharacterSet characterSet, int[] charSink) {
         if (characterSet.isEmpty())
             return Opcode.FAIL;
 
         if (characterSet.cardinality() == 1) {
-            charSink[0] = characterSet.nextSetBit(0);
+            charSink[0] = characterSet.first();
             return Opcode.CHAR;
         }
 
-        int lastChar = characterSet.length() - 1;
-        if (lastChar == 0x10FFFF && characterSet.previousClearBit(lastChar) == -1)
+        if (characterSet.equals(CharacterSet.FULL_SET))
             return Opcode.ANY;
 
         return Opcode.SET;
@@ -461,111 +816,317 @@ public class Emitter {
         return finalTarget(target(instructionIndex));
     }
 
-    private int getFirstSet(Node<?> node, BitSet followSet, BitSet firstSet) {
+    /**
+     * Append the string that every match of the specified node starts with.
+     *
+     * @return {@code true} if the node matches nothing but that string.
+     */
+    private boolean getLiteralPrefix(Node<?> root, StringBuilder prefix) {
+        // The nodes matched after the current one, the next one first.
+        ArrayDeque<Node<?>> rest = new ArrayDeque<>();
+        boolean literal = true;
+
+        Node<?> node = root;
         for (;;) {
-            if (node instanceof CharNode || node instanceof SetNode || node instanceof AnyNode) {
-                CharacterSet.fillCharacterSet(node, firstSet);
-                return 0;
+            if (node instanceof CharNode) {
+                prefix.appendCodePoint(((CharNode) node).ch);
+            } else if (node instanceof StringNode) {
+                prefix.append(((StringNode) node).str);
+            } else if (node instanceof SeqNode) {
+                rest.push(((SeqNode) node).getSecondSibling());
+                node = ((SeqNode) node).getFirstSibling();
+                continue;
+            } else if (node instanceof ActionNode) {
+                // The action may move the position, so nothing after it is known.
+                rest.clear();
+                literal = false;
+                node = ((ActionNode) node).getSibling();
+                continue;
+            } else if (node instanceof RuleNode) {
+                node = ((RuleNode) node).getSibling();
+                continue;
+            } else if (node instanceof GrammarNode) {
+                node = ((GrammarNode) node).ruleNodes.get(0);
+                continue;
+            } else {
+                return false;
             }
 
-            if (node instanceof TrueNode) {
-                firstSet.clear();
-                firstSet.or(followSet);
-                return 1;
-            }
+            if (rest.isEmpty())
+                return literal;
 
-            if (node instanceof FalseNode) {
-                firstSet.clear();
-                return 0;
-            }
+            node = rest.pop();
+        }
+    }
 
-            if (node instanceof ActionNode) {
-                int a = getFirstSet(((ActionNode) node).getSibling(), CharacterSet.FULL_SET, firstSet);
-                return a == 0 ? 0 : 2;
+    /**
+     * Returns all characters that the specified node might consume.
+     */
+    private CharacterSet getConsumedSet(Node<?> root) {
+        CharacterSet consumed = CharacterSet.EMPTY_SET;
+
+        ArrayDeque<Node<?>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<?> node = stack.pop();
+            CharacterSet characterSet = CharacterSet.getCharacterSet(node);
+            if (characterSet != null) {
+                consumed = consumed.union(characterSet);
+            } else if (node instanceof StringNode) {
+                consumed = consumed.union(CharacterSet.of(((StringNode) node).str.codePoints().toArray()));
+            } else if (node instanceof ActionNode) {
+                // An action may move the position past anything.
+                return CharacterSet.FULL_SET;
+            } else if (node instanceof GrammarNode) {
+                stack.addAll(((GrammarNode) node).ruleNodes);
+            } else if (node instanceof CallNode) {
+                // The rule is reached from its grammar.
+            } else if (node instanceof UnaryNode) {
+                stack.push(((UnaryNode<?>) node).getSibling());
+            } else if (node instanceof BinaryNode) {
+                stack.push(((BinaryNode<?>) node).getFirstSibling());
+                stack.push(((BinaryNode<?>) node).getSecondSibling());
             }
+        }
 
-            if (node instanceof RuleNode || node instanceof CallNode) {
-                node = ((UnaryNode) node).getSibling();
-                continue;
-            }
+        return consumed;
+    }
 
-            if (node instanceof GrammarNode) {
-                node = ((GrammarNode) node).ruleNodes.get(0);
-                continue;
-            }
+    /**
+     * Get the characters the specified node can start with, given the
+     * characters that may follow it.
+     *
+     * @param root A node.
+     * @param rootFollowSet The characters that may follow the node.
+     * @param firstSet Sink for the characters the node can start with.
+     * @return {@code 0} if the node fails unless the next character is in
+     * the set, otherwise the node may also match without looking at it.
+     */
+    public static int getFirstSet(Node<?> root, CharacterSet rootFollowSet, CharacterSet[] firstSet) {
+        // Nodes waiting for the first set of a sibling, innermost first.
+        ArrayDeque<FirstSetFrame> frames = new ArrayDeque<>();
 
-            if (node instanceof ChoiceNode) {
-                ChoiceNode choiceNode = (ChoiceNode) node;
-                BitSet choiceSet = new BitSet();
-                int c1 = getFirstSet(choiceNode.getFirstSibling(), followSet, firstSet);
-                int c2 = getFirstSet(choiceNode.getSecondSibling(), followSet, choiceSet);
-                firstSet.or(choiceSet);
-                return c1 | c2;
-            }
+        Node<?> node = root;
+        CharacterSet followSet = rootFollowSet;
+        for (;;) {
+            int result;
+            for (;;) {
+                CharacterSet characterSet = CharacterSet.getCharacterSet(node);
+                if (characterSet != null) {
+                    firstSet[0] = characterSet;
+                    result = 0;
+                    break;
+                }
 
-            if (node instanceof SeqNode) {
-                SeqNode seqNode = (SeqNode) node;
-                if (!seqNode.getFirstSibling().isNullable()) {
-                    node = seqNode.getFirstSibling();
+                if (node instanceof StringNode) {
+                    firstSet[0] = CharacterSet.of(((StringNode) node).str.codePointAt(0));
+                    result = 0;
+                    break;
+                }
+
+                if (node instanceof TrueNode) {
+                    firstSet[0] = followSet;
+                    result = 1;
+                    break;
+                }
+
+                if (node instanceof FalseNode) {
+                    firstSet[0] = CharacterSet.EMPTY_SET;
+                    result = 0;
+                    break;
+                }
+
+                if (node instanceof ActionNode) {
+                    frames.push(new FirstSetFrame(node, followSet));
+                    node = ((ActionNode) node).getSibling();
                     followSet = CharacterSet.FULL_SET;
                     continue;
-                } else {
-                    BitSet seqSet = new BitSet();
-                    int s2 = getFirstSet(seqNode.getSecondSibling(), followSet, seqSet);
-                    int s1 = getFirstSet(seqNode.getFirstSibling(), seqSet, firstSet);
-                    if (s1 == 0) {
-                        return 0;
-                    } else if (((s1 | s2) & 2) != 0) {
-                        return 2;
+                }
+
+                if (node instanceof RuleNode || node instanceof CallNode) {
+                    RuleNode ruleNode = node instanceof CallNode ? ((CallNode) node).getRuleNode() : (RuleNode) node;
+                    if (ruleNode.isNullable()) {
+                        node = ruleNode.getSibling();
+                        continue;
+                    }
+
+                    if (ruleNode.firstSet != null) {
+                        firstSet[0] = ruleNode.firstSet;
+                        result = ruleNode.firstSetResult;
+                        break;
+                    }
+
+                    frames.push(new FirstSetFrame(ruleNode, followSet));
+                    node = ruleNode.getSibling();
+                    followSet = CharacterSet.FULL_SET;
+                    continue;
+                }
+
+                if (node instanceof GrammarNode) {
+                    // In order, so rules calling other rules find their first sets cached.
+                    GrammarNode grammarNode = (GrammarNode) node;
+                    for (int i : grammarNode.getRuleOrder()) {
+                        RuleNode ruleNode = grammarNode.ruleNodes.get(i);
+                        if (ruleNode.firstSet == null && !ruleNode.isNullable())
+                            getFirstSet(ruleNode, CharacterSet.FULL_SET, firstSet);
+                    }
+
+                    node = grammarNode.ruleNodes.get(0);
+                    continue;
+                }
+
+                if (node instanceof ChoiceNode) {
+                    frames.push(new FirstSetFrame(node, followSet));
+                    node = ((ChoiceNode) node).getFirstSibling();
+                    continue;
+                }
+
+                if (node instanceof SeqNode) {
+                    SeqNode seqNode = (SeqNode) node;
+                    if (!seqNode.getFirstSibling().isNullable()) {
+                        node = seqNode.getFirstSibling();
+                        followSet = CharacterSet.FULL_SET;
                     } else {
-                        return s2;
+                        // The second sibling is what may follow the first.
+                        frames.push(new FirstSetFrame(node, followSet));
+                        node = seqNode.getSecondSibling();
                     }
+
+                    continue;
                 }
-            }
 
-            if (node instanceof RepeatNode) {
-                getFirstSet(((RepeatNode) node).getSibling(), followSet, firstSet);
-                firstSet.or(followSet);
-                return 1;
-            }
+                if (node instanceof NotNode) {
+                    characterSet = CharacterSet.getCharacterSet(((NotNode) node).getSibling());
+                    if (characterSet != null) {
+                        firstSet[0] = characterSet.complement();
+                        result = 1;
+                        break;
+                    }
+                }
+
+                if (node instanceof RepeatNode || node instanceof AndNode ||
+                        node instanceof NotNode || node instanceof BehindNode) {
+                    frames.push(new FirstSetFrame(node, followSet));
+                    node = ((UnaryNode<?>) node).getSibling();
+                    continue;
+                }
 
-            if (node instanceof AndNode) {
-                int a = getFirstSet(((AndNode) node).getSibling(), followSet, firstSet);
-                firstSet.and(followSet);
-                return a;
+                throw new IllegalStateException("Did not expect node: " + node.getClass());
             }
 
-            if (node instanceof NotNode) {
-                if (CharacterSet.fillCharacterSet(((NotNode) node).getSibling(), firstSet)) {
-                    firstSet.flip(0, CharacterSet.FULL_SET.length());
-                    return 1;
+            // Combine the result with the waiting nodes, until one needs its other sibling.
+            for (;;) {
+                FirstSetFrame frame = frames.peek();
+                if (frame == null)
+                    return result;
+
+                Node<?> waiting = frame.node;
+                if (waiting instanceof BinaryNode && frame.firstSet == null) {
+                    frame.firstSet = firstSet[0];
+                    frame.result = result;
+                    if (waiting instanceof ChoiceNode) {
+                        node = ((ChoiceNode) waiting).getSecondSibling();
+                        followSet = frame.followSet;
+                    } else {
+                        node = ((SeqNode) waiting).getFirstSibling();
+                        followSet = firstSet[0];
+                    }
+
+                    break;
                 }
-            }
 
-            if (node instanceof NotNode || node instanceof BehindNode) {
-                int x = getFirstSet(((UnaryNode) node).getSibling(), followSet, firstSet);
-                firstSet.clear();
-                firstSet.or(followSet);
-                return x | 1;
+                frames.pop();
+                if (waiting instanceof ChoiceNode) {
+                    firstSet[0] = frame.firstSet.union(firstSet[0]);
+                    result |= frame.result;
+                } else if (waiting instanceof SeqNode) {
+                    int s1 = result;
+                    int s2 = frame.result;
+                    if (s1 == 0) {
+                        result = 0;
+                    } else if (((s1 | s2) & 2) != 0) {
+                        result = 2;
+                    } else {
+                        result = s2;
+                    }
+                } else if (waiting instanceof ActionNode) {
+                    result = result == 0 ? 0 : 2;
+                } else if (waiting instanceof RuleNode) {
+                    RuleNode ruleNode = (RuleNode) waiting;
+                    ruleNode.firstSetResult = result;
+                    ruleNode.firstSet = firstSet[0];
+                } else if (waiting instanceof RepeatNode) {
+                    firstSet[0] = firstSet[0].union(frame.followSet);
+                    result = 1;
+                } else if (waiting instanceof AndNode) {
+                    firstSet[0] = firstSet[0].intersection(frame.followSet);
+                } else {
+                    firstSet[0] = frame.followSet;
+                    result |= 1;
+                }
             }
+        }
+    }
 
-            throw new IllegalStateException("Did not expect node: " + node.getClass());
+    /**
+     * A node waiting in {@link #getFirstSet(Node, CharacterSet, CharacterSet[])}
+     * for the first set of a sibling.
+     */
+    private static final class FirstSetFrame {
+
+        final Node<?> node;
+
+        final CharacterSet followSet;
+
+        /** The first set of the sibling done first, for nodes with two siblings. */
+        CharacterSet firstSet;
+
+        int result;
+
+        FirstSetFrame(Node<?> node, CharacterSet followSet) {
+            this.node = node;
+            this.followSet = followSet;
+        }
+
+    }
+
+    static class SwitchInstruction extends Instruction {
+
+        /** Triples of first character, last character and group. */
+        final int[] ranges;
+
+        /** The offset of the alternatives of every group. */
+        final int[] offsets;
+
+        SwitchInstruction(int[] ranges, int groups) {
+            super(Opcode.SWITCH);
+            this.ranges = ranges;
+            this.offsets = new int[groups];
         }
+
+        SwitchTable toSwitchTable(int instructionIndex) {
+            int[] table = ranges.clone();
+            for (int i = 2; i < table.length; i += 3)
+                table[i] = (instructionIndex + offsets[table[i]]) * Instructions.SIZE;
+
+            return new SwitchTable(table);
+        }
+
     }
 
     static class TestSetInstruction extends Instruction {
 
-        final BitSet characterSet;
+        final CharacterSet characterSet;
 
-        TestSetInstruction(BitSet characterSet) {
+        TestSetInstruction(CharacterSet characterSet) {
             super(Opcode.TEST_SET);
             this.characterSet = characterSet;
         }
 
-        Instruction convert() {
+        Instruction convert(CharacterMatcher matcher) {
             Instruction instruction = new Instruction(opcode);
             instruction.offset = this.offset;
-            instruction.matcher = CharacterMatcher.newCharacterMatcher(characterSet);
+            instruction.matcher = matcher;
 
             return instruction;
         }
@@ -3,14 +3,12 @@ package se.fishtank.pegless.internal.compiler;
 import se.fishtank.pegless.Action;
 
 /**
- * A union like container that represents an instruction in the <em>VM</em>.
+ * A union like container that represents an instruction in the <em>VM</em>
+ * while it's being emitted.
  *
  * @author Christer Sandberg
  */
-public class Instruction {
-
-    /** Give up instruction. */
-    public static final Instruction GIVE_UP = new Instruction(Opcode.GIVE_UP);
+class Instruction {
 
     /** Opcode for the instruction. */
     public final Opcode opcode;
@@ -27,6 +25,9 @@ public class Instruction {
     /** The character matcher used with set instructions. */
     public CharacterMatcher matcher = null;
 
+    /** The string used with string instructions. */
+    public String string = null;
+
     /**
      * Create a new instance.
      *
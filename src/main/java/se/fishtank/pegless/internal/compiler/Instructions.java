@@ -1,28 +1,165 @@
 package se.fishtank.pegless.internal.compiler;
 
-import java.util.ArrayList;
+import se.fishtank.pegless.Action;
 
 /**
  * Holds instructions used when matching a pattern against a given subject.
+ * <p/>
+ * Every instruction is encoded as {@link #SIZE} consecutive ints in {@link #code}.
+ * The first int holds the opcode in its lowest 8 bits and the auxiliary value
+ * (a character, a look behind length, a memoized rule or an index into one of the
+ * side tables) in the remaining bits. The second int holds the absolute address
+ * of the jump target, if any. Addresses are indices into {@link #code}.
+ * <p/>
+ * Instances are immutable and the arrays must not be modified.
  *
  * @author Christer Sandberg
  */
-public class Instructions {
+public final class Instructions {
 
-    private final ArrayList<Instruction> instructions;
+    /** The number of ints used for every instruction. */
+    public static final int SIZE = 2;
 
-    Instructions(ArrayList<Instruction> instructions) {
-        this.instructions = instructions;
+    /** The number of bits the auxiliary value is shifted. */
+    public static final int AUX_SHIFT = 8;
+
+    /** Mask for extracting the opcode. */
+    public static final int OPCODE_MASK = 0xFF;
+
+    public static final int ANY = 0;
+    public static final int CHAR = 1;
+    public static final int SET = 2;
+    public static final int TEST_ANY = 3;
+    public static final int TEST_CHAR = 4;
+    public static final int TEST_SET = 5;
+    public static final int SPAN = 6;
+    public static final int BEHIND = 7;
+    public static final int RET = 8;
+    public static final int END = 9;
+    public static final int CHOICE = 10;
+    public static final int JMP = 11;
+    public static final int CALL = 12;
+    public static final int OPEN_CALL = 13;
+    public static final int COMMIT = 14;
+    public static final int PARTIAL_COMMIT = 15;
+    public static final int BACK_COMMIT = 16;
+    public static final int FAIL_TWICE = 17;
+    public static final int FAIL = 18;
+    public static final int OPEN_ACTION = 19;
+    public static final int CLOSE_ACTION = 20;
+    public static final int STRING = 21;
+    public static final int TEST_STRING = 22;
+    public static final int SWITCH = 23;
+
+    /** The encoded instructions. */
+    public final int[] code;
+
+    /** The character matchers referenced by set instructions. */
+    public final CharacterMatcher[] matchers;
+
+    /** The actions referenced by open action instructions. */
+    public final Action[] actions;
+
+    /** The strings referenced by string instructions. */
+    public final String[] strings;
+
+    /** The tables referenced by switch instructions. */
+    public final SwitchTable[] switches;
+
+    /**
+     * The names of the rules that may be memoized, indexed by the auxiliary
+     * value of the calls memoizing them. Other calls have {@code -1} there.
+     */
+    public final String[] memoRules;
+
+    /** Whether any call memoizes its rule. */
+    public final boolean memoizes;
+
+    /**
+     * The number of characters that look behind instructions might move
+     * back from any position, in total.
+     */
+    public final int lookBehind;
+
+    /**
+     * The characters a match must start with or {@code null} if a match
+     * might start with any character, or be empty.
+     */
+    public final CharacterMatcher firstSet;
+
+    /** The string every match starts with or {@code null} if there is none. */
+    public final String prefix;
+
+    /**
+     * The characters no match can consume, and hence never spans,
+     * or {@code null} if there are none.
+     */
+    public final CharacterMatcher separators;
+
+    Instructions(int[] code, CharacterMatcher[] matchers, Action[] actions, String[] strings, SwitchTable[] switches,
+            String[] memoRules, CharacterMatcher firstSet, String prefix, CharacterMatcher separators) {
+        this.code = code;
+        this.matchers = matchers;
+        this.actions = actions;
+        this.strings = strings;
+        this.switches = switches;
+        this.memoRules = memoRules;
+        this.firstSet = firstSet;
+        this.prefix = prefix;
+        this.separators = separators;
+
+        int lookBehind = 0;
+        boolean memoizes = false;
+        for (int address = 0; address < code.length; address += SIZE) {
+            if (opcode(address) == BEHIND)
+                lookBehind += aux(address);
+            else if (opcode(address) == CALL && aux(address) >= 0)
+                memoizes = true;
+        }
+
+        this.lookBehind = lookBehind;
+        this.memoizes = memoizes;
+    }
+
+    /**
+     * Returns whether instructions with the specified opcode look at the
+     * character at the current position.
+     *
+     * @param opcode An opcode.
+     * @return {@code true} or {@code false}
+     */
+    public static boolean readsInput(int opcode) {
+        return opcode <= SPAN || opcode == STRING || opcode == TEST_STRING || opcode == SWITCH;
+    }
+
+    /**
+     * Returns the opcode for the instruction at the specified address.
+     *
+     * @param address Address of the instruction.
+     * @return The opcode.
+     */
+    public int opcode(int address) {
+        return code[address] & OPCODE_MASK;
+    }
+
+    /**
+     * Returns the auxiliary value for the instruction at the specified address.
+     *
+     * @param address Address of the instruction.
+     * @return The auxiliary value.
+     */
+    public int aux(int address) {
+        return code[address] >> AUX_SHIFT;
     }
 
     /**
-     * Get the instruction at the specified index.
+     * Returns the jump target address for the instruction at the specified address.
      *
-     * @param index Index for the instruction to get.
-     * @return The instruction found at {@code index}.
+     * @param address Address of the instruction.
+     * @return The target address.
      */
-    public Instruction get(int index) {
-        return instructions.get(index);
+    public int target(int address) {
+        return code[address + 1];
     }
 
     /**
@@ -31,7 +168,7 @@ public class Instructions {
      * @return The number of instructions available.
      */
     public int size() {
-        return instructions.size();
+        return code.length / SIZE;
     }
 
 }
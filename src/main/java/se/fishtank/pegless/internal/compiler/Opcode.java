@@ -7,14 +7,43 @@ package se.fishtank.pegless.internal.compiler;
  */
 public enum Opcode {
 
-    ANY, CHAR, SET, TEST_ANY, TEST_CHAR, TEST_SET,
+    ANY(Instructions.ANY), CHAR(Instructions.CHAR), SET(Instructions.SET),
 
-    SPAN, BEHIND, RET, END, CHOICE, JMP, CALL,
+    TEST_ANY(Instructions.TEST_ANY), TEST_CHAR(Instructions.TEST_CHAR), TEST_SET(Instructions.TEST_SET),
 
-    OPEN_CALL, COMMIT, PARTIAL_COMMIT, BACK_COMMIT,
+    SPAN(Instructions.SPAN), BEHIND(Instructions.BEHIND), RET(Instructions.RET), END(Instructions.END),
 
-    FAIL_TWICE, FAIL, GIVE_UP,
+    CHOICE(Instructions.CHOICE), JMP(Instructions.JMP), CALL(Instructions.CALL), OPEN_CALL(Instructions.OPEN_CALL),
 
-    OPEN_ACTION, CLOSE_ACTION
+    COMMIT(Instructions.COMMIT), PARTIAL_COMMIT(Instructions.PARTIAL_COMMIT), BACK_COMMIT(Instructions.BACK_COMMIT),
+
+    FAIL_TWICE(Instructions.FAIL_TWICE), FAIL(Instructions.FAIL),
+
+    OPEN_ACTION(Instructions.OPEN_ACTION), CLOSE_ACTION(Instructions.CLOSE_ACTION),
+    STRING(Instructions.STRING), TEST_STRING(Instructions.TEST_STRING), SWITCH(Instructions.SWITCH);
+
+    /** The encoded opcode used in {@link Instructions#code}. */
+    public final int code;
+
+    private static final Opcode[] BY_CODE = new Opcode[values().length];
+
+    static {
+        for (Opcode opcode : values())
+            BY_CODE[opcode.code] = opcode;
+    }
+
+    Opcode(int code) {
+        this.code = code;
+    }
+
+    /**
+     * Returns the opcode for the specified encoded opcode.
+     *
+     * @param code An encoded opcode.
+     * @return The opcode.
+     */
+    public static Opcode valueOf(int code) {
+        return BY_CODE[code];
+    }
 
 }
@@ -0,0 +1,96 @@
+package se.fishtank.pegless.internal.compiler;
+
+import java.util.Arrays;
+
+/**
+ * Maps the character at the current position to the address to continue
+ * at, as used by switch instructions.
+ * <p/>
+ * Characters below 256 are looked up directly, others by a binary search
+ * among sorted ranges.
+ *
+ * @author Christer Sandberg
+ */
+public final class SwitchTable {
+
+    /** The number of characters looked up directly. */
+    private static final int DIRECT = 256;
+
+    /** The target of every character below {@link #DIRECT} or {@code -1}. */
+    private final int[] direct = new int[DIRECT];
+
+    /** Triples of first character, last character and target. */
+    private final int[] ranges;
+
+    /**
+     * Create a new instance.
+     *
+     * @param ranges Sorted, non-overlapping triples of first character,
+     * last character and the address to continue at.
+     */
+    SwitchTable(int[] ranges) {
+        this.ranges = ranges;
+
+        Arrays.fill(direct, -1);
+        for (int i = 0; i < ranges.length && ranges[i] < DIRECT; i += 3)
+            Arrays.fill(direct, ranges[i], Math.min(ranges[i + 1] + 1, DIRECT), ranges[i + 2]);
+    }
+
+    /**
+     * Returns the address to continue at for the specified character.
+     *
+     * @param c A character.
+     * @param otherwise The address to return if there is none for the character.
+     * @return The address.
+     */
+    public int target(int c, int otherwise) {
+        if (c < DIRECT) {
+            int target = direct[c];
+            return target >= 0 ? target : otherwise;
+        }
+
+        int low = 0;
+        int high = ranges.length / 3 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int i = mid * 3;
+            if (c < ranges[i]) {
+                high = mid - 1;
+            } else if (c > ranges[i + 1]) {
+                low = mid + 1;
+            } else {
+                return ranges[i + 2];
+            }
+        }
+
+        return otherwise;
+    }
+
+    /**
+     * Returns the characters that have an address.
+     *
+     * @return Sorted, non-overlapping triples of first character, last
+     * character and the address to continue at.
+     */
+    public int[] ranges() {
+        return ranges.clone();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ranges.length; i += 3) {
+            sb.append('(').append(Integer.toHexString(ranges[i]));
+            if (ranges[i + 1] != ranges[i])
+                sb.append('-').append(Integer.toHexString(ranges[i + 1]));
+
+            sb.append(" -> ").append(ranges[i + 2] / Instructions.SIZE).append(')');
+        }
+
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,263 @@
+package se.fishtank.pegless.internal.compiler;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import se.fishtank.pegless.internal.util.CharacterSet;
+import se.fishtank.pegless.internal.util.Utf8;
+
+/**
+ * A character set lowered to a deterministic automaton over UTF-8 bytes.
+ * <p/>
+ * The automaton accepts exactly the well formed UTF-8 encodings of the
+ * characters in the set, so matching never decodes a character. Every
+ * state is a row of 256 transitions, and ASCII characters are matched by
+ * a single lookup in the first row.
+ * <p/>
+ * Malformed bytes (decoding to U+DC80 - U+DCFF) are never accepted by the
+ * automaton itself, see {@link #malformed}.
+ *
+ * @author Christer Sandberg
+ */
+public final class Utf8Automaton {
+
+    /** Transition to the accepting state. */
+    private static final int ACCEPT = -1;
+
+    /** Transition to the rejecting state. */
+    private static final int REJECT = 0;
+
+    /** Whether the set contains any of the code points malformed bytes decode to. */
+    public final boolean malformed;
+
+    /** The states laid out one row after the other with the start state first. */
+    private final int[] table;
+
+    private Utf8Automaton(int[] table, boolean malformed) {
+        this.table = table;
+        this.malformed = malformed;
+    }
+
+    /**
+     * Match the character starting at the specified index.
+     *
+     * @param buffer The UTF-8 encoded bytes.
+     * @param index An index {@code < end}.
+     * @param end The index after the last byte that may be matched.
+     * @return The index after the character or {@code -1} if it isn't a well
+     * formed character in this set.
+     */
+    public int match(ByteBuffer buffer, int index, int end) {
+        int[] table = this.table;
+
+        int state = 0;
+        while (index < end) {
+            state = table[state + (buffer.get(index++) & 0xFF)];
+            if (state <= 0)
+                return state == ACCEPT ? index : -1;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the number of states, not counting the accepting and rejecting ones.
+     *
+     * @return The number of states.
+     */
+    public int numberOfStates() {
+        return table.length / 256;
+    }
+
+    /**
+     * Create a new automaton for the specified character set.
+     *
+     * @param characterSet A character set.
+     * @return A new automaton.
+     */
+    public static Utf8Automaton newUtf8Automaton(CharacterSet characterSet) {
+        Builder builder = new Builder();
+
+        int root = builder.empty;
+        int[] ranges = characterSet.ranges();
+        for (int i = 0; i < ranges.length; i += 2) {
+            int first = ranges[i];
+            int last = ranges[i + 1];
+            if (first < Character.MIN_SURROGATE && last > Character.MAX_SURROGATE) {
+                root = builder.add(root, first, Character.MIN_SURROGATE - 1);
+                root = builder.add(root, Character.MAX_SURROGATE + 1, last);
+            } else if (first < Character.MIN_SURROGATE) {
+                root = builder.add(root, first, Math.min(last, Character.MIN_SURROGATE - 1));
+            } else if (last > Character.MAX_SURROGATE) {
+                root = builder.add(root, Math.max(first, Character.MAX_SURROGATE + 1), last);
+            }
+        }
+
+        CharacterSet malformed = CharacterSet.ofRanges(Utf8.MALFORMED_BASE | 0x80, Utf8.MALFORMED_BASE | 0xFF);
+        return new Utf8Automaton(builder.layout(root), characterSet.intersects(malformed));
+    }
+
+    /**
+     * Builds the automaton from interned rows, which keeps it minimal
+     * since states with equal transitions are always shared.
+     */
+    private static class Builder {
+
+        final ArrayList<int[]> rows = new ArrayList<>();
+
+        final HashMap<Row, Integer> interned = new HashMap<>();
+
+        /** The state without any transitions. */
+        final int empty = intern(new int[256]);
+
+        int intern(int[] row) {
+            Row key = new Row(row);
+            Integer state = interned.get(key);
+            if (state != null)
+                return state;
+
+            // State 0 is reserved for rejecting, so ids start at 1.
+            rows.add(row);
+            interned.put(key, rows.size());
+
+            return rows.size();
+        }
+
+        int[] row(int state) {
+            return rows.get(state - 1);
+        }
+
+        /**
+         * Add the characters {@code start - end} (not crossing the surrogate
+         * range) to the specified state and return the resulting state.
+         */
+        int add(int state, int start, int end) {
+            int[] limits = { 0x7F, 0x7FF, 0xFFFF };
+            for (int limit : limits) {
+                if (start <= limit && end > limit) {
+                    state = add(state, start, limit);
+                    return add(state, limit + 1, end);
+                }
+            }
+
+            int length = Utf8.length(start);
+            for (int i = 1; i < length; ++i) {
+                int mask = (1 << (6 * i)) - 1;
+                if ((start & ~mask) != (end & ~mask)) {
+                    if ((start & mask) != 0) {
+                        state = add(state, start, start | mask);
+                        return add(state, (start | mask) + 1, end);
+                    }
+
+                    if ((end & mask) != mask) {
+                        state = add(state, start, (end & ~mask) - 1);
+                        return add(state, end & ~mask, end);
+                    }
+                }
+            }
+
+            return add(state, encode(start), encode(end), 0);
+        }
+
+        /**
+         * Add the byte ranges {@code low[i] - high[i]} from {@code index} and on.
+         */
+        int add(int state, byte[] low, byte[] high, int index) {
+            int[] row = row(state).clone();
+
+            boolean last = index == low.length - 1;
+            HashMap<Integer, Integer> added = new HashMap<>();
+            for (int b = low[index] & 0xFF; b <= (high[index] & 0xFF); ++b) {
+                if (last) {
+                    row[b] = ACCEPT;
+                } else {
+                    int next = row[b] == REJECT ? empty : row[b];
+                    Integer result = added.get(next);
+                    if (result == null) {
+                        result = add(next, low, high, index + 1);
+                        added.put(next, result);
+                    }
+
+                    row[b] = result;
+                }
+            }
+
+            return intern(row);
+        }
+
+        /**
+         * Lay out the states reachable from {@code root} in a single table
+         * where transitions are offsets to the rows.
+         */
+        int[] layout(int root) {
+            HashMap<Integer, Integer> offsets = new HashMap<>();
+            ArrayList<Integer> order = new ArrayList<>();
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+
+            offsets.put(root, 0);
+            order.add(root);
+            queue.add(root);
+            while (!queue.isEmpty()) {
+                for (int next : row(queue.poll())) {
+                    if (next > 0 && !offsets.containsKey(next)) {
+                        offsets.put(next, order.size() * 256);
+                        order.add(next);
+                        queue.add(next);
+                    }
+                }
+            }
+
+            int[] table = new int[order.size() * 256];
+            for (int i = 0; i < order.size(); ++i) {
+                int[] row = row(order.get(i));
+                for (int b = 0; b < 256; ++b)
+                    table[i * 256 + b] = row[b] > 0 ? offsets.get(row[b]) : row[b];
+            }
+
+            return table;
+        }
+
+        static byte[] encode(int c) {
+            if (c < 0x80)
+                return new byte[] { (byte) c };
+
+            if (c < 0x800)
+                return new byte[] { (byte) (0xC0 | (c >> 6)), (byte) (0x80 | (c & 0x3F)) };
+
+            if (c < 0x10000)
+                return new byte[] { (byte) (0xE0 | (c >> 12)), (byte) (0x80 | ((c >> 6) & 0x3F)),
+                        (byte) (0x80 | (c & 0x3F)) };
+
+            return new byte[] { (byte) (0xF0 | (c >> 18)), (byte) (0x80 | ((c >> 12) & 0x3F)),
+                    (byte) (0x80 | ((c >> 6) & 0x3F)), (byte) (0x80 | (c & 0x3F)) };
+        }
+
+    }
+
+    private static class Row {
+
+        final int[] transitions;
+
+        final int hashCode;
+
+        Row(int[] transitions) {
+            this.transitions = transitions;
+            this.hashCode = Arrays.hashCode(transitions);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Row && Arrays.equals(transitions, ((Row) obj).transitions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+    }
+
+}
@@ -0,0 +1,63 @@
+package se.fishtank.pegless.internal.input;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A UTF-8 encoded subject read from a {@link ReadableByteChannel} into
+ * a window of bytes.
+ *
+ * @author Christer Sandberg
+ */
+public final class ChannelInput extends Utf8WindowInput {
+
+    private ReadableByteChannel channel;
+
+    /**
+     * Create a new instance.
+     *
+     * @param capacity The initial capacity of the window.
+     */
+    public ChannelInput(int capacity) {
+        super(capacity);
+    }
+
+    /**
+     * Reset this input to the specified channel.
+     *
+     * @param channel The channel or {@code null} to release the current one.
+     */
+    public void reset(ReadableByteChannel channel) {
+        this.channel = channel;
+        resetWindow(channel != null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int fill(int keep, int index) {
+        discard(keep);
+        index -= keep;
+
+        while (!complete && end <= index) {
+            reserve(1);
+
+            int n;
+            try {
+                n = channel.read(buffer);
+            } catch (IOException e) {
+                failure = e;
+                n = -1;
+            }
+
+            if (n < 0)
+                completed();
+            else
+                added(limit + n);
+        }
+
+        return keep;
+    }
+
+}
@@ -0,0 +1,108 @@
+package se.fishtank.pegless.internal.input;
+
+import java.io.IOException;
+
+import se.fishtank.pegless.internal.compiler.CharacterMatcher;
+
+/**
+ * A subject that isn't a UTF-16 character sequence, as seen by the <em>VM</em>.
+ * <p/>
+ * Positions are indices into the subject in whatever unit the input
+ * uses, and every code point decoded knows its own encoded length.
+ * <p/>
+ * Streaming inputs only hold a window of the subject. Indices are then
+ * relative to the start of the window, see {@link #fill(int, int)}.
+ *
+ * @author Christer Sandberg
+ */
+public abstract class Input {
+
+    /**
+     * The index after the last unit that may be matched.
+     * <p/>
+     * A code point starting before it is always available in full.
+     */
+    public int end;
+
+    /** Whether all of the subject is available, i.e. there's nothing more to fill. */
+    public boolean complete = true;
+
+    /** The offset of the start of the window in the subject. */
+    public long base = 0;
+
+    /** The error, if any, that ended the input early. */
+    public IOException failure = null;
+
+    /**
+     * Returns the code point at the specified index.
+     *
+     * @param index An index {@code < end}.
+     * @return The code point.
+     */
+    public abstract int codePointAt(int index);
+
+    /**
+     * Returns the number of units used by the specified code point
+     * as returned by {@link #codePointAt(int)}.
+     *
+     * @param codePoint A code point.
+     * @return The number of units.
+     */
+    public abstract int charCount(int codePoint);
+
+    /**
+     * Match the code point at the specified index against a character matcher.
+     *
+     * @param matcher The character matcher.
+     * @param index An index {@code < end}.
+     * @return The index after the code point or {@code -1} if not matched.
+     */
+    public int match(CharacterMatcher matcher, int index) {
+        int c = codePointAt(index);
+        return matcher.match(c) ? index + charCount(c) : -1;
+    }
+
+    /**
+     * Returns the index after the code point at the specified index.
+     *
+     * @param index An index {@code < end}.
+     * @return The next index.
+     */
+    public abstract int next(int index);
+
+    /**
+     * Returns the index {@code n} code points before the specified index.
+     *
+     * @param index An index.
+     * @param start The index to not move past.
+     * @param n The number of code points to move back.
+     * @return The index or {@code -1} if it would pass {@code start}.
+     */
+    public abstract int back(int index, int start, int n);
+
+    /**
+     * Make more of the subject available.
+     * <p/>
+     * Units before {@code keep} are no longer needed and may be discarded,
+     * in which case the window moves and all indices must be adjusted by
+     * the number of units returned. Returns when {@code index} (adjusted)
+     * is before {@link #end} or when the input is {@link #complete}, unless
+     * the input can't wait for more, in which case matching is suspended.
+     *
+     * @param keep The index of the first unit to keep.
+     * @param index The index to make available.
+     * @return The number of units discarded.
+     */
+    public int fill(int keep, int index) {
+        complete = true;
+        return 0;
+    }
+
+    /**
+     * Returns the subject handed to actions.
+     *
+     * @return The subject.
+     */
+    public abstract CharSequence subject();
+
+}
@@ -0,0 +1,61 @@
+package se.fishtank.pegless.internal.input;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A UTF-8 encoded subject that's pushed to the matcher in chunks.
+ * <p/>
+ * Filling never blocks. When there's not enough input the <em>VM</em>
+ * suspends until more has been {@linkplain #append(ByteBuffer) appended}.
+ *
+ * @author Christer Sandberg
+ */
+public final class PushInput extends Utf8WindowInput {
+
+    /**
+     * Create a new instance.
+     *
+     * @param capacity The initial capacity of the window.
+     */
+    public PushInput(int capacity) {
+        super(capacity);
+    }
+
+    /**
+     * Reset this input.
+     *
+     * @param active Whether a subject is about to be pushed.
+     */
+    public void reset(boolean active) {
+        resetWindow(active);
+    }
+
+    /**
+     * Append the remaining bytes of the specified chunk to the window.
+     *
+     * @param chunk The chunk, its position is moved to its limit.
+     */
+    public void append(ByteBuffer chunk) {
+        reserve(chunk.remaining());
+        int n = chunk.remaining();
+        buffer.put(chunk);
+        added(limit + n);
+    }
+
+    /**
+     * Mark the end of the subject.
+     */
+    public void finish() {
+        completed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int fill(int keep, int index) {
+        discard(keep);
+        return keep;
+    }
+
+}
@@ -0,0 +1,140 @@
+package se.fishtank.pegless.internal.input;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import se.fishtank.pegless.internal.util.CharArraySequence;
+
+/**
+ * A subject read from a {@link Reader} into a window of chars.
+ *
+ * @author Christer Sandberg
+ */
+public final class ReaderInput extends Input {
+
+    private final CharArraySequence sequence = new CharArraySequence();
+
+    private Reader reader;
+
+    private char[] window;
+
+    private int limit;
+
+    /**
+     * Create a new instance.
+     *
+     * @param capacity The initial capacity of the window.
+     */
+    public ReaderInput(int capacity) {
+        this.window = new char[capacity];
+    }
+
+    /**
+     * Reset this input to the specified reader.
+     *
+     * @param reader The reader or {@code null} to release the current one.
+     */
+    public void reset(Reader reader) {
+        this.reader = reader;
+        this.limit = 0;
+        this.end = 0;
+        this.base = 0;
+        this.complete = reader == null;
+        this.failure = null;
+        sequence.reset(reader == null ? null : window, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int codePointAt(int index) {
+        char c = window[index];
+        if (Character.isHighSurrogate(c) && index + 1 < limit && Character.isLowSurrogate(window[index + 1]))
+            return Character.toCodePoint(c, window[index + 1]);
+
+        return c;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int charCount(int codePoint) {
+        return Character.charCount(codePoint);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int next(int index) {
+        return index + Character.charCount(codePointAt(index));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int back(int index, int start, int n) {
+        while (n-- > 0) {
+            if (index <= start)
+                return -1;
+
+            if (Character.isLowSurrogate(window[--index]) && index > start &&
+                    Character.isHighSurrogate(window[index - 1]))
+                --index;
+        }
+
+        return index;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int fill(int keep, int index) {
+        if (keep > 0) {
+            System.arraycopy(window, keep, window, 0, limit - keep);
+            limit -= keep;
+            end -= keep;
+            base += keep;
+            index -= keep;
+        }
+
+        while (!complete && end <= index) {
+            if (limit == window.length)
+                window = Arrays.copyOf(window, window.length * 2);
+
+            int n;
+            try {
+                n = reader.read(window, limit, window.length - limit);
+            } catch (IOException e) {
+                failure = e;
+                n = -1;
+            }
+
+            if (n < 0) {
+                complete = true;
+                end = limit;
+            } else {
+                limit += n;
+                // A high surrogate might be followed by its pair.
+                end = limit > 0 && Character.isHighSurrogate(window[limit - 1]) ? limit - 1 : limit;
+            }
+        }
+
+        sequence.reset(window, limit);
+        return keep;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CharSequence subject() {
+        return sequence;
+    }
+
+}
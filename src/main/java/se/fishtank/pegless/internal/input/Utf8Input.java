@@ -0,0 +1,102 @@
+package se.fishtank.pegless.internal.input;
+
+import java.nio.ByteBuffer;
+
+import se.fishtank.pegless.internal.compiler.CharacterMatcher;
+import se.fishtank.pegless.internal.compiler.Utf8Automaton;
+import se.fishtank.pegless.internal.util.Utf8;
+import se.fishtank.pegless.internal.util.Utf8Sequence;
+
+/**
+ * A UTF-8 encoded subject in a byte buffer.
+ * <p/>
+ * Indices are absolute byte indices into the buffer. Code points are
+ * decoded up to {@link #limit}, which is the same as {@link #end} unless
+ * a subclass only holds a window of the subject.
+ *
+ * @author Christer Sandberg
+ */
+public class Utf8Input extends Input {
+
+    /** The view handed to actions. */
+    protected final Utf8Sequence sequence = new Utf8Sequence();
+
+    /** The bytes. */
+    protected ByteBuffer buffer;
+
+    /** The index after the last byte available. */
+    protected int limit;
+
+    /**
+     * Reset this input to the specified buffer.
+     *
+     * @param buffer The buffer or {@code null} to release the current one.
+     * @param end The index after the last byte that may be matched.
+     */
+    public void reset(ByteBuffer buffer, int end) {
+        this.buffer = buffer;
+        this.end = end;
+        this.limit = end;
+        sequence.reset(buffer, end);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int codePointAt(int index) {
+        return Utf8.codePointAt(buffer, index, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int charCount(int codePoint) {
+        return Utf8.length(codePoint);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Uses the UTF-8 automaton of the matcher, if there is one, to avoid
+     * decoding the character.
+     */
+    @Override
+    public int match(CharacterMatcher matcher, int index) {
+        Utf8Automaton automaton = matcher.utf8Automaton;
+        if (automaton == null)
+            return super.match(matcher, index);
+
+        int next = automaton.match(buffer, index, limit);
+        if (next < 0 && automaton.malformed)
+            return super.match(matcher, index);
+
+        return next;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int next(int index) {
+        return Utf8.next(buffer, index, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int back(int index, int start, int n) {
+        return Utf8.back(buffer, index, start, n);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CharSequence subject() {
+        return sequence;
+    }
+
+}
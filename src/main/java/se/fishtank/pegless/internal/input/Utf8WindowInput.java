@@ -0,0 +1,105 @@
+package se.fishtank.pegless.internal.input;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A UTF-8 encoded subject that's only available through a window of bytes
+ * that moves as matching moves on.
+ *
+ * @author Christer Sandberg
+ */
+abstract class Utf8WindowInput extends Utf8Input {
+
+    /**
+     * Create a new instance.
+     *
+     * @param capacity The initial capacity of the window.
+     */
+    Utf8WindowInput(int capacity) {
+        this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Reset the window to not hold any bytes.
+     *
+     * @param active Whether a subject is being matched.
+     */
+    void resetWindow(boolean active) {
+        this.limit = 0;
+        this.end = 0;
+        this.base = 0;
+        this.complete = !active;
+        this.failure = null;
+        sequence.reset(active ? buffer : null, 0);
+    }
+
+    /**
+     * Discard the bytes before {@code keep}, moving the rest to the start of the window.
+     *
+     * @param keep The index of the first byte to keep.
+     */
+    void discard(int keep) {
+        if (keep > 0) {
+            byte[] array = buffer.array();
+            System.arraycopy(array, keep, array, 0, limit - keep);
+            limit -= keep;
+            end -= keep;
+            base += keep;
+            sequence.reset(buffer, limit);
+        }
+    }
+
+    /**
+     * Make sure there's room for at least {@code n} more bytes, and prepare
+     * the buffer for putting them at the limit.
+     *
+     * @param n The number of bytes.
+     */
+    void reserve(int n) {
+        if (buffer.capacity() - limit < n) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, limit + n));
+            System.arraycopy(buffer.array(), 0, grown.array(), 0, limit);
+            buffer = grown;
+        }
+
+        buffer.limit(buffer.capacity()).position(limit);
+    }
+
+    /**
+     * Update the limit and the end after bytes have been added.
+     *
+     * @param limit The new limit.
+     */
+    void added(int limit) {
+        this.limit = limit;
+        this.end = complete ? limit : completeEnd();
+        sequence.reset(buffer, limit);
+    }
+
+    /**
+     * Mark the subject as complete, making all bytes available.
+     */
+    void completed() {
+        complete = true;
+        added(limit);
+    }
+
+    /**
+     * Returns the index after the last sequence that's not cut off by the limit.
+     */
+    private int completeEnd() {
+        for (int i = limit - 1; i >= 0 && i >= limit - 3; --i) {
+            int b = buffer.get(i) & 0xFF;
+            if (b < 0x80)
+                break;
+
+            if (b >= 0xC0) {
+                int length = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : 2;
+                return i + length > limit ? i : limit;
+            }
+        }
+
+        return limit;
+    }
+
+}
@@ -0,0 +1,67 @@
+package se.fishtank.pegless.internal.util;
+
+/**
+ * A character sequence view of a char array.
+ * <p/>
+ * Indices are array indices and {@link #length()} is the end of the
+ * slice being matched, so positions used while matching can be used
+ * as is. The view is reused, so it's only valid until it's reset.
+ *
+ * @author Christer Sandberg
+ */
+public final class CharArraySequence implements CharSequence {
+
+    private char[] array;
+
+    private int end;
+
+    /**
+     * Reset this view to the specified array.
+     *
+     * @param array The array or {@code null} to release the current one.
+     * @param end The index after the last character of the slice.
+     */
+    public void reset(char[] array, int end) {
+        this.array = array;
+        this.end = end;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int length() {
+        return end;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public char charAt(int index) {
+        if (index >= end)
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+
+        return array[index];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || start > end || end > this.end)
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end);
+
+        return new String(array, start, end - start);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return new String(array, 0, end);
+    }
+
+}
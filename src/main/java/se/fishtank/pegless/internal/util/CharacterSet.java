@@ -1,6 +1,6 @@
 package se.fishtank.pegless.internal.util;
 
-import java.util.BitSet;
+import java.util.Arrays;
 
 import se.fishtank.pegless.internal.ast.AnyNode;
 import se.fishtank.pegless.internal.ast.CharNode;
@@ -8,74 +8,314 @@ import se.fishtank.pegless.internal.ast.Node;
 import se.fishtank.pegless.internal.ast.SetNode;
 
 /**
- * Static utility methods for character sets.
+ * An immutable set of Unicode characters, kept as sorted ranges.
+ * <p/>
+ * Set operations take time linear in the number of ranges, not in the
+ * number of characters, so even sets spanning most of Unicode are cheap.
+ * Also holds static utility methods for character sets.
  *
  * @author Christer Sandberg
  */
-public abstract class CharacterSet {
+public final class CharacterSet {
 
-    /** All unicode characters (must not be modified). */
-    public static final BitSet FULL_SET = newFullSet();
+    /** The largest Unicode character. */
+    public static final int MAX_CHARACTER = 0x10FFFF;
+
+    /** The empty set. */
+    public static final CharacterSet EMPTY_SET = new CharacterSet(new int[0]);
+
+    /** All unicode characters. */
+    public static final CharacterSet FULL_SET = new CharacterSet(new int[] { 0, MAX_CHARACTER });
+
+    // Truth tables for combining sets, indexed by membership in the first (1) and second (2) set.
+    private static final int UNION = 0xE;
+    private static final int INTERSECTION = 0x8;
+    private static final int DIFFERENCE = 0x2;
+
+    /** Pairs of first and last characters of sorted, non-adjacent ranges. */
+    private final int[] ranges;
+
+    private CharacterSet(int[] ranges) {
+        this.ranges = ranges;
+    }
 
     /**
-     * Get a character set for the specified node.
+     * Returns a set of a single character.
      *
-     * @see #fillCharacterSet(se.fishtank.pegless.internal.ast.Node, java.util.BitSet)
+     * @param c A character.
+     * @return A set.
+     */
+    public static CharacterSet of(int c) {
+        return new CharacterSet(new int[] { c, c });
+    }
+
+    /**
+     * Returns a set of the specified characters.
      *
-     * @param node A node
-     * @return A character set or {@code null}.
+     * @param characters Characters in any order.
+     * @return A set.
      */
-    public static BitSet getCharacterSet(Node<?> node) {
-        BitSet target = new BitSet();
-        if (fillCharacterSet(node, target))
-            return target;
+    public static CharacterSet of(int... characters) {
+        int[] ranges = new int[characters.length * 2];
+        for (int i = 0; i < characters.length; ++i)
+            ranges[i * 2] = ranges[i * 2 + 1] = characters[i];
 
-        return null;
+        return ofRanges(ranges);
     }
 
     /**
-     * Fill the specified set with characters from the given node.
-     * <p/>
-     * It will only be filled if the {@code node} is of type set, char
-     * or any. Otherwise the set will be left untouched and {@code false}
-     * will be returned.
+     * Returns a set of the characters in the specified ranges.
      *
-     * @param node A node
-     * @param target The set to fill.
-     * @return {@code true} or {@code false}
+     * @param ranges Pairs of first and last characters of ranges, in any order
+     * and possibly overlapping. Empty ranges are ignored.
+     * @return A set.
      */
-    public static boolean fillCharacterSet(Node<?> node, BitSet target) {
-        if (node instanceof SetNode) {
-            target.clear();
-            target.or(((SetNode) node).characterSet);
-            return true;
+    public static CharacterSet ofRanges(int... ranges) {
+        int n = ranges.length / 2;
+        long[] sorted = new long[n];
+        int k = 0;
+        for (int i = 0; i < n; ++i) {
+            if (ranges[i * 2] <= ranges[i * 2 + 1])
+                sorted[k++] = ((long) ranges[i * 2] << 32) | ranges[i * 2 + 1];
         }
 
-        if (node instanceof CharNode) {
-            target.clear();
-            target.set(((CharNode) node).ch);
-            return true;
+        Arrays.sort(sorted, 0, k);
+
+        int[] result = new int[k * 2];
+        int m = 0;
+        for (int i = 0; i < k; ++i) {
+            int first = (int) (sorted[i] >>> 32);
+            int last = (int) sorted[i];
+            if (m > 0 && first <= result[m - 1] + 1) {
+                result[m - 1] = Math.max(result[m - 1], last);
+            } else {
+                result[m++] = first;
+                result[m++] = last;
+            }
         }
 
-        if (node instanceof AnyNode) {
-            target.clear();
-            target.or(newFullSet());
-            return true;
+        return new CharacterSet(Arrays.copyOf(result, m));
+    }
+
+    /**
+     * Returns whether the set is empty.
+     *
+     * @return {@code true} or {@code false}
+     */
+    public boolean isEmpty() {
+        return ranges.length == 0;
+    }
+
+    /**
+     * Returns the number of characters in the set.
+     *
+     * @return The number of characters.
+     */
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < ranges.length; i += 2)
+            cardinality += ranges[i + 1] - ranges[i] + 1;
+
+        return cardinality;
+    }
+
+    /**
+     * Returns whether the set contains the specified character.
+     *
+     * @param c A character.
+     * @return {@code true} or {@code false}
+     */
+    public boolean get(int c) {
+        int low = 0;
+        int high = ranges.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (c > ranges[mid * 2 + 1]) {
+                low = mid + 1;
+            } else if (c < ranges[mid * 2]) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
         }
 
         return false;
     }
 
     /**
-     * Creates a new set of all Unicode characters (U+0000 - U+10FFFF) with all bits set.
+     * Returns the smallest character in the set.
+     *
+     * @return The character or {@code -1} if the set is empty.
+     */
+    public int first() {
+        return ranges.length > 0 ? ranges[0] : -1;
+    }
+
+    /**
+     * Returns the characters in the set as ranges.
      *
-     * @return A new set with all bits set.
+     * @return Pairs of first and last characters of sorted, non-adjacent ranges.
      */
-    public static BitSet newFullSet() {
-        BitSet bitSet = new BitSet(0x10FFFF + 1);
-        bitSet.set(0, 0x10FFFF + 1);
+    public int[] ranges() {
+        return ranges.clone();
+    }
+
+    /**
+     * Returns the characters in either this or the specified set.
+     *
+     * @param other A set.
+     * @return A set.
+     */
+    public CharacterSet union(CharacterSet other) {
+        if (other.ranges.length == 0)
+            return this;
+
+        return ranges.length == 0 ? other : combine(other, UNION);
+    }
+
+    /**
+     * Returns the characters in both this and the specified set.
+     *
+     * @param other A set.
+     * @return A set.
+     */
+    public CharacterSet intersection(CharacterSet other) {
+        if (other == FULL_SET)
+            return this;
+
+        return this == FULL_SET ? other : combine(other, INTERSECTION);
+    }
 
-        return bitSet;
+    /**
+     * Returns the characters in this set but not in the specified set.
+     *
+     * @param other A set.
+     * @return A set.
+     */
+    public CharacterSet difference(CharacterSet other) {
+        return other.ranges.length == 0 ? this : combine(other, DIFFERENCE);
+    }
+
+    /**
+     * Returns all characters not in this set.
+     *
+     * @return A set.
+     */
+    public CharacterSet complement() {
+        return FULL_SET.difference(this);
+    }
+
+    /**
+     * Returns whether any character is in both this and the specified set.
+     *
+     * @param other A set.
+     * @return {@code true} or {@code false}
+     */
+    public boolean intersects(CharacterSet other) {
+        int[] a = ranges;
+        int[] b = other.ranges;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i + 1] < b[j]) {
+                i += 2;
+            } else if (b[j + 1] < a[i]) {
+                j += 2;
+            } else {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof CharacterSet && Arrays.equals(ranges, ((CharacterSet) o).ranges));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(ranges);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] == ranges[i + 1]) {
+                sb.append(String.format("(%x)", ranges[i]));
+            } else {
+                sb.append(String.format("(%x-%x)", ranges[i], ranges[i + 1]));
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Sweep over the bounds of both sets, keeping the characters the
+     * specified truth table holds for.
+     */
+    private CharacterSet combine(CharacterSet other, int table) {
+        int[] a = ranges;
+        int[] b = other.ranges;
+        int[] result = new int[a.length + b.length];
+        int n = 0;
+
+        int i = 0;
+        int j = 0;
+        int membership = 0;
+        boolean in = false;
+        while (i < a.length || j < b.length) {
+            // A range starts at its first character and ends right after its last one.
+            long boundA = i < a.length ? (long) a[i] + (i & 1) : Long.MAX_VALUE;
+            long boundB = j < b.length ? (long) b[j] + (j & 1) : Long.MAX_VALUE;
+            long bound = Math.min(boundA, boundB);
+            if (boundA == bound)
+                membership = (i++ & 1) == 0 ? membership | 1 : membership & ~1;
+
+            if (boundB == bound)
+                membership = (j++ & 1) == 0 ? membership | 2 : membership & ~2;
+
+            boolean now = ((table >> membership) & 1) != 0;
+            if (now != in) {
+                result[n++] = (int) (now ? bound : bound - 1);
+                in = now;
+            }
+        }
+
+        return new CharacterSet(Arrays.copyOf(result, n));
+    }
+
+    /**
+     * Get a character set for the specified node.
+     * <p/>
+     * There is only one if the {@code node} is of type set, char or any.
+     *
+     * @param node A node
+     * @return A character set or {@code null}.
+     */
+    public static CharacterSet getCharacterSet(Node<?> node) {
+        if (node instanceof SetNode)
+            return ((SetNode) node).characterSet;
+
+        if (node instanceof CharNode)
+            return of(((CharNode) node).ch);
+
+        if (node instanceof AnyNode)
+            return FULL_SET;
+
+        return null;
     }
 
     /**
@@ -1,11 +1,11 @@
 package se.fishtank.pegless.internal.util;
 
 import java.io.PrintStream;
-import java.util.BitSet;
+import java.util.ArrayDeque;
 
 import se.fishtank.pegless.internal.ast.*;
-import se.fishtank.pegless.internal.compiler.Instruction;
 import se.fishtank.pegless.internal.compiler.Instructions;
+import se.fishtank.pegless.internal.compiler.Opcode;
 
 /**
  * Contains debug print methods.
@@ -21,52 +21,66 @@ public abstract class Printer {
      * @param instructions Instructions to print.
      */
     public static void printInstructions(PrintStream ps, Instructions instructions) {
-        int index = 0;
         int size = instructions.size();
-        while (index < size) {
-            Instruction instruction = instructions.get(index);
-
-            ps.printf("%02d: %s ", index, instruction.opcode);
-            switch (instruction.opcode) {
-            case CHAR:
-                if (Character.isWhitespace(instruction.aux)) {
-                    ps.printf("(%x)", instruction.aux);
+        for (int index = 0; index < size; ++index) {
+            int address = index * Instructions.SIZE;
+            int opcode = instructions.opcode(address);
+            int aux = instructions.aux(address);
+
+            ps.printf("%02d: %s ", index, Opcode.valueOf(opcode));
+            switch (opcode) {
+            case Instructions.CHAR:
+                if (Character.isWhitespace(aux)) {
+                    ps.printf("(%x)", aux);
                 } else {
-                    ps.printf("'%s'", CharacterSet.toString(instruction.aux));
+                    ps.printf("'%s'", CharacterSet.toString(aux));
                 }
 
                 break;
-            case TEST_CHAR:
-                if (Character.isWhitespace(instruction.aux)) {
-                    ps.printf("(%x)", instruction.aux);
+            case Instructions.TEST_CHAR:
+                if (Character.isWhitespace(aux)) {
+                    ps.printf("(%x)", aux);
                 } else {
-                    ps.printf("'%s' ", CharacterSet.toString(instruction.aux));
+                    ps.printf("'%s' ", CharacterSet.toString(aux));
                 }
 
-                printJump(ps, index, instruction.offset);
+                printJump(ps, instructions.target(address));
                 break;
-            case SET: case SPAN:
-                ps.printf("[%s]", instruction.matcher);
+            case Instructions.SET: case Instructions.SPAN:
+                ps.printf("[%s]", instructions.matchers[aux]);
                 break;
-            case TEST_SET:
-                ps.printf("[%s]", instruction.matcher);
-                printJump(ps, index, instruction.offset);
+            case Instructions.TEST_SET:
+                ps.printf("[%s]", instructions.matchers[aux]);
+                printJump(ps, instructions.target(address));
                 break;
-            case OPEN_CALL:
-                ps.printf("-> %d", instruction.offset);
+            case Instructions.STRING:
+                ps.printf("'%s'", instructions.strings[aux]);
                 break;
-            case BEHIND:
-                ps.printf("%d", instruction.aux);
+            case Instructions.TEST_STRING:
+                ps.printf("'%s' ", instructions.strings[aux]);
+                printJump(ps, instructions.target(address));
                 break;
-            case JMP: case CALL: case COMMIT: case CHOICE:
-            case PARTIAL_COMMIT: case BACK_COMMIT:
-            case TEST_ANY:
-                printJump(ps, index, instruction.offset);
+            case Instructions.SWITCH:
+                ps.printf("%s ", instructions.switches[aux]);
+                printJump(ps, instructions.target(address));
+                break;
+            case Instructions.BEHIND:
+                ps.printf("%d", aux);
+                break;
+            case Instructions.CALL:
+                if (aux >= 0)
+                    ps.printf("%s (memo) ", instructions.memoRules[aux]);
+
+                printJump(ps, instructions.target(address));
+                break;
+            case Instructions.JMP: case Instructions.COMMIT:
+            case Instructions.CHOICE: case Instructions.PARTIAL_COMMIT:
+            case Instructions.BACK_COMMIT: case Instructions.TEST_ANY:
+                printJump(ps, instructions.target(address));
                 break;
             }
 
             ps.println();
-            index += 1;
         }
     }
 
@@ -80,83 +94,104 @@ public abstract class Printer {
         printNode(ps, node, 0);
     }
 
-    private static void printJump(PrintStream ps, int instructionIndex, int offset) {
-        ps.printf("-> %d", instructionIndex + offset);
+    private static void printJump(PrintStream ps, int address) {
+        ps.printf("-> %d", address / Instructions.SIZE);
     }
 
-    private static void printNode(PrintStream ps, Node<?> node, int indent) {
-        indent(ps, indent);
-
-        if (node instanceof AnyNode) {
-            ps.println("any");
-        } else if (node instanceof TrueNode) {
-            ps.println("true");
-        } else if (node instanceof FalseNode) {
-            ps.println("false");
-        } else if (node instanceof CharNode) {
-            ps.printf("char %s%n", CharacterSet.toString(((CharNode) node).ch));
-        } else if (node instanceof SetNode) {
-            ps.print("set ");
-            printCharacterSet(ps, ((SetNode) node).characterSet);
-            ps.println();
-        } else if (node instanceof AndNode) {
-            ps.println("and");
-            printNode(ps, ((AndNode) node).getSibling(), indent + 2);
-        } else if (node instanceof NotNode) {
-            ps.println("not");
-            printNode(ps, ((NotNode) node).getSibling(), indent + 2);
-        } else if (node instanceof CallNode) {
-            CallNode callNode = (CallNode) node;
-            if (callNode.isOpen()) {
-                ps.printf("opencall index: %d%n", callNode.ruleIndex);
+    private static void printNode(PrintStream ps, Node<?> root, int rootIndent) {
+        // Nodes still to be printed, with their indentation.
+        ArrayDeque<Node<?>> nodes = new ArrayDeque<>();
+        ArrayDeque<Integer> indents = new ArrayDeque<>();
+        nodes.push(root);
+        indents.push(rootIndent);
+        while (!nodes.isEmpty()) {
+            Node<?> node = nodes.pop();
+            int indent = indents.pop();
+            indent(ps, indent);
+
+            Node<?>[] siblings;
+            if (node instanceof AnyNode) {
+                ps.println("any");
+                continue;
+            } else if (node instanceof TrueNode) {
+                ps.println("true");
+                continue;
+            } else if (node instanceof FalseNode) {
+                ps.println("false");
+                continue;
+            } else if (node instanceof CharNode) {
+                ps.printf("char %s%n", CharacterSet.toString(((CharNode) node).ch));
+                continue;
+            } else if (node instanceof StringNode) {
+                ps.printf("string '%s'%n", ((StringNode) node).str);
+                continue;
+            } else if (node instanceof SetNode) {
+                ps.print("set ");
+                printCharacterSet(ps, ((SetNode) node).characterSet);
+                ps.println();
+                continue;
+            } else if (node instanceof AndNode) {
+                ps.println("and");
+                siblings = new Node<?>[] { ((AndNode) node).getSibling() };
+            } else if (node instanceof NotNode) {
+                ps.println("not");
+                siblings = new Node<?>[] { ((NotNode) node).getSibling() };
+            } else if (node instanceof CallNode) {
+                CallNode callNode = (CallNode) node;
+                if (callNode.isOpen()) {
+                    ps.printf("opencall name: '%s'%n", callNode.name);
+                } else {
+                    ps.printf("call index: %d, name: '%s'%n", callNode.getRuleNode().index, callNode.name);
+                }
+
+                continue;
+            } else if (node instanceof BehindNode) {
+                BehindNode behindNode = (BehindNode) node;
+                ps.printf("behind %d%n", behindNode.n);
+                siblings = new Node<?>[] { behindNode.getSibling() };
+            } else if (node instanceof ActionNode) {
+                ActionNode actionNode = (ActionNode) node;
+                ps.println("action");
+                siblings = new Node<?>[] { actionNode.getSibling() };
+            } else if (node instanceof RepeatNode) {
+                ps.println("rep");
+                siblings = new Node<?>[] { ((RepeatNode) node).getSibling() };
+            } else if (node instanceof RuleNode) {
+                RuleNode ruleNode = (RuleNode) node;
+                ps.printf("rule index: %d, name = '%s'%n", ruleNode.index, ruleNode.name);
+                siblings = new Node<?>[] { ruleNode.getSibling() };
+            } else if (node instanceof GrammarNode) {
+                GrammarNode grammarNode = (GrammarNode) node;
+                ps.printf("grammar %d%n", grammarNode.ruleNodes.size());
+                siblings = grammarNode.ruleNodes.toArray(new Node<?>[grammarNode.ruleNodes.size()]);
+            } else if (node instanceof ChoiceNode) {
+                ChoiceNode choiceNode = (ChoiceNode) node;
+                ps.println("choice");
+                siblings = new Node<?>[] { choiceNode.getFirstSibling(), choiceNode.getSecondSibling() };
+            } else if (node instanceof SeqNode) {
+                SeqNode seqNode = (SeqNode) node;
+                ps.println("seq");
+                siblings = new Node<?>[] { seqNode.getFirstSibling(), seqNode.getSecondSibling() };
             } else {
-                ps.printf("call index: %d, name: '%s'%n", callNode.ruleIndex, callNode.getRuleNode().name);
+                throw new UnsupportedOperationException("Don't know how to print node: " + node.getClass());
+            }
+
+            for (int i = siblings.length - 1; i >= 0; --i) {
+                nodes.push(siblings[i]);
+                indents.push(indent + 2);
             }
-        } else if (node instanceof BehindNode) {
-            BehindNode behindNode = (BehindNode) node;
-            ps.printf("behind %d%n", behindNode.n);
-            printNode(ps, behindNode.getSibling(), indent + 2);
-        } else if (node instanceof ActionNode) {
-            ActionNode actionNode = (ActionNode) node;
-            ps.println("action");
-            printNode(ps, actionNode.getSibling(), indent + 2);
-        } else if (node instanceof RepeatNode) {
-            ps.println("rep");
-            printNode(ps, ((RepeatNode) node).getSibling(), indent + 2);
-        } else if (node instanceof RuleNode) {
-            RuleNode ruleNode = (RuleNode) node;
-            ps.printf("rule index: %d, name = '%s'%n", ruleNode.index, ruleNode.name);
-            printNode(ps, ruleNode.getSibling(), indent + 2);
-        } else if (node instanceof GrammarNode) {
-            GrammarNode grammarNode = (GrammarNode) node;
-            ps.printf("grammar %d%n", grammarNode.ruleNodes.size());
-            for (RuleNode ruleNode : grammarNode.ruleNodes)
-                printNode(ps, ruleNode, indent + 2);
-        } else if (node instanceof ChoiceNode) {
-            ChoiceNode choiceNode = (ChoiceNode) node;
-            ps.println("choice");
-            printNode(ps, choiceNode.getFirstSibling(), indent + 2);
-            printNode(ps, choiceNode.getSecondSibling(), indent + 2);
-        } else if (node instanceof SeqNode) {
-            SeqNode seqNode = (SeqNode) node;
-            ps.println("seq");
-            printNode(ps, seqNode.getFirstSibling(), indent + 2);
-            printNode(ps, seqNode.getSecondSibling(), indent + 2);
-        } else {
-            throw new UnsupportedOperationException("Don't know how to print node: " + node.getClass());
         }
     }
 
-    private static void printCharacterSet(PrintStream ps, BitSet characterSet) {
+    private static void printCharacterSet(PrintStream ps, CharacterSet characterSet) {
         ps.print('[');
 
-        for (int i = characterSet.nextSetBit(0); i >= 0; i = characterSet.nextSetBit(i + 1)) {
-            int j = characterSet.nextClearBit(i);
-            if ((j - i) > 1) {
-                ps.printf("(%h-%h)", i, j - 1);
-                i = j;
+        int[] ranges = characterSet.ranges();
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] != ranges[i + 1]) {
+                ps.printf("(%h-%h)", ranges[i], ranges[i + 1]);
             } else {
-                ps.printf("(%h)", i);
+                ps.printf("(%h)", ranges[i]);
             }
         }
 
@@ -0,0 +1,146 @@
+package se.fishtank.pegless.internal.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Static utility methods for decoding UTF-8.
+ * <p/>
+ * Malformed input never fails decoding. Each byte that isn't part of a
+ * well formed sequence decodes as a code point of its own in the range
+ * U+DC80 - U+DCFF (a lone surrogate, which is never well formed in UTF-8).
+ * That way every code point decoded knows its own encoded length.
+ *
+ * @author Christer Sandberg
+ */
+public abstract class Utf8 {
+
+    /** The first code point that malformed bytes decode to. */
+    public static final int MALFORMED_BASE = 0xDC00;
+
+    /**
+     * Decode the code point at the specified index.
+     *
+     * @param bytes The bytes to decode.
+     * @param index An index {@code < end}.
+     * @param end The index after the last byte that may be decoded.
+     * @return The code point.
+     */
+    public static int codePointAt(ByteBuffer bytes, int index, int end) {
+        int b = bytes.get(index);
+        if (b >= 0)
+            return b;
+
+        b &= 0xFF;
+        if (b < 0xC2 || b > 0xF4)
+            return MALFORMED_BASE | b;
+
+        if (b < 0xE0) {
+            if (index + 1 >= end)
+                return MALFORMED_BASE | b;
+
+            int b1 = bytes.get(index + 1);
+            if ((b1 & 0xC0) != 0x80)
+                return MALFORMED_BASE | b;
+
+            return ((b & 0x1F) << 6) | (b1 & 0x3F);
+        }
+
+        if (b < 0xF0) {
+            if (index + 2 >= end)
+                return MALFORMED_BASE | b;
+
+            int b1 = bytes.get(index + 1);
+            int b2 = bytes.get(index + 2);
+            if ((b1 & 0xC0) != 0x80 || (b2 & 0xC0) != 0x80)
+                return MALFORMED_BASE | b;
+
+            int c = ((b & 0x0F) << 12) | ((b1 & 0x3F) << 6) | (b2 & 0x3F);
+            if (c < 0x800 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE))
+                return MALFORMED_BASE | b;
+
+            return c;
+        }
+
+        if (index + 3 >= end)
+            return MALFORMED_BASE | b;
+
+        int b1 = bytes.get(index + 1);
+        int b2 = bytes.get(index + 2);
+        int b3 = bytes.get(index + 3);
+        if ((b1 & 0xC0) != 0x80 || (b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80)
+            return MALFORMED_BASE | b;
+
+        int c = ((b & 0x07) << 18) | ((b1 & 0x3F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F);
+        if (c < 0x10000 || c > Character.MAX_CODE_POINT)
+            return MALFORMED_BASE | b;
+
+        return c;
+    }
+
+    /**
+     * Returns the number of bytes used for the specified code point
+     * as returned by {@link #codePointAt(ByteBuffer, int, int)}.
+     *
+     * @param codePoint A code point.
+     * @return The number of bytes.
+     */
+    public static int length(int codePoint) {
+        if (codePoint < 0x80)
+            return 1;
+
+        if (codePoint < 0x800)
+            return 2;
+
+        if (codePoint < 0x10000)
+            return codePoint >= 0xDC80 && codePoint <= 0xDCFF ? 1 : 3;
+
+        return 4;
+    }
+
+    /**
+     * Returns the index after the code point at the specified index.
+     *
+     * @param bytes The bytes to decode.
+     * @param index An index {@code < end}.
+     * @param end The index after the last byte that may be decoded.
+     * @return The next index.
+     */
+    public static int next(ByteBuffer bytes, int index, int end) {
+        if (bytes.get(index) >= 0)
+            return index + 1;
+
+        return index + length(codePointAt(bytes, index, end));
+    }
+
+    /**
+     * Returns the index {@code n} code points before the specified index.
+     *
+     * @param bytes The bytes to decode.
+     * @param index An index.
+     * @param start The index to not move past.
+     * @param n The number of code points to move back.
+     * @return The index or {@code -1} if it would pass {@code start}.
+     */
+    public static int back(ByteBuffer bytes, int index, int start, int n) {
+        while (n-- > 0) {
+            if (index <= start)
+                return -1;
+
+            int previous = index - 1;
+            if (bytes.get(previous) < 0) {
+                // Find the lead byte and check that its sequence ends exactly here.
+                int lead = previous;
+                while (lead > start && lead > index - 4 && (bytes.get(lead) & 0xC0) == 0x80)
+                    --lead;
+
+                if (lead != previous && lead + length(codePointAt(bytes, lead, index)) == index)
+                    previous = lead;
+            }
+
+            index = previous;
+        }
+
+        return index;
+    }
+
+}
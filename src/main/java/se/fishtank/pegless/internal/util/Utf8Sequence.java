@@ -0,0 +1,101 @@
+package se.fishtank.pegless.internal.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A character sequence view of UTF-8 encoded bytes.
+ * <p/>
+ * Indices are byte indices into the buffer and {@link #length()} is the
+ * index after the last byte being matched, so positions used while matching
+ * can be used as is. {@link #charAt(int)} returns the byte at an index as an
+ * unsigned value, while {@link #subSequence(int, int)} and {@link #toString()}
+ * decode the bytes and hence may return fewer characters than the range spans.
+ *
+ * @author Christer Sandberg
+ */
+public final class Utf8Sequence implements CharSequence {
+
+    private ByteBuffer buffer;
+
+    private int end;
+
+    /**
+     * Create a new view that needs to be reset before use.
+     */
+    public Utf8Sequence() {
+    }
+
+    /**
+     * Create a new view.
+     *
+     * @param buffer The buffer.
+     * @param end The index after the last byte being matched.
+     */
+    public Utf8Sequence(ByteBuffer buffer, int end) {
+        reset(buffer, end);
+    }
+
+    /**
+     * Reset this view to the specified buffer.
+     *
+     * @param buffer The buffer or {@code null} to release the current one.
+     * @param end The index after the last byte being matched.
+     */
+    public void reset(ByteBuffer buffer, int end) {
+        this.buffer = buffer;
+        this.end = end;
+    }
+
+    /**
+     * Returns the underlying buffer.
+     *
+     * @return The buffer.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int length() {
+        return end;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public char charAt(int index) {
+        if (index >= end)
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+
+        return (char) (buffer.get(index) & 0xFF);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || start > end || end > this.end)
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end);
+
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; ++i)
+            bytes[i] = buffer.get(start + i);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return subSequence(0, end).toString();
+    }
+
+}
@@ -0,0 +1,79 @@
+package se.fishtank.pegless;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+import static se.fishtank.pegless.Pattern.*;
+import static se.fishtank.pegless.Rule.rule;
+
+/**
+ * Measures how long it takes to build, compile and match very long or
+ * deeply nested patterns with every {@link Engine}, to catch traversals
+ * that are superlinear or use the call stack.
+ * <p/>
+ * Not run as a test. Run it with the test classpath, optionally passing
+ * the size of the patterns. The patterns are built and compiled on a
+ * thread with the default stack size.
+ *
+ * @author Christer Sandberg
+ */
+public class DeepPatternBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int size = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final String subject = new String(new char[size]).replace('\0', 'a');
+
+        final LinkedHashMap<String, IntFunction<Pattern>> shapes = new LinkedHashMap<>();
+        shapes.put("sequence", n -> {
+            Pattern pattern = SUCCEED;
+            for (int i = 0; i < n; ++i)
+                pattern = pattern.then(set("ab"));
+
+            return pattern;
+        });
+        shapes.put("literal", n -> {
+            Pattern pattern = SUCCEED;
+            for (int i = 0; i < n; ++i)
+                pattern = pattern.then(ch('a'));
+
+            return pattern;
+        });
+        shapes.put("optional", n -> set("ab").repeat(-n));
+        shapes.put("times", n -> ch('a').times(n));
+        shapes.put("keywords", n -> {
+            Pattern pattern = FAIL;
+            for (int i = 0; i < n; ++i)
+                pattern = pattern.or(str("a" + i + ";"));
+
+            return pattern.or(ch('a').repeat(0));
+        });
+        shapes.put("rule", n -> grammar(rule("s", seq(shapes.get("sequence").apply(n), ref("s").repeat(-1)))));
+
+        Thread thread = new Thread(() -> {
+            for (Map.Entry<String, IntFunction<Pattern>> entry : shapes.entrySet()) {
+                long start = System.nanoTime();
+                Pattern pattern = entry.getValue().apply(size);
+                long built = System.nanoTime() - start;
+
+                for (Engine engine : Engine.values()) {
+                    start = System.nanoTime();
+                    PatternMatcher matcher = pattern.compile(CompileOptions.DEFAULT.withEngine(engine));
+                    long compiled = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    if (matcher.match(subject).getEnd() != subject.length())
+                        throw new IllegalStateException("Expected the subject to match");
+
+                    long matched = System.nanoTime() - start;
+                    System.out.printf("%-10s %-12s build %,8.1f ms  compile %,8.1f ms  match %,8.1f ms%n",
+                            entry.getKey(), engine, built / 1e6, compiled / 1e6, matched / 1e6);
+                }
+            }
+        });
+
+        thread.start();
+        thread.join();
+    }
+
+}
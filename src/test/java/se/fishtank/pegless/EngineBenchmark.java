@@ -0,0 +1,70 @@
+package se.fishtank.pegless;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static se.fishtank.pegless.Pattern.*;
+import static se.fishtank.pegless.Rule.rule;
+
+/**
+ * Measures how fast every {@link Engine} matches a few grammars, to pick
+ * the fastest engine per grammar.
+ * <p/>
+ * Not run as a test. Run it with the test classpath, optionally passing
+ * the length of the subjects.
+ *
+ * @author Christer Sandberg
+ */
+public class EngineBenchmark {
+
+    public static void main(String[] args) {
+        int length = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        Pattern letter = choice(range("AZ"), range("az"));
+        Pattern word = seq(letter.repeat(1), set(" ,.").repeat(0));
+        Pattern words = seq(choice(seq(str("ab"), word), seq(str("xyz"), word), word).repeat(1), n(-1));
+
+        Pattern field = choice(range("az", "AZ", "09", "__", "..", "@@"), str("\\\""));
+        Pattern quoted = seq(str("\""), diff(field, str("\"")).or(set(" ,")).repeat(0), str("\""));
+        Pattern record = seq(choice(quoted, field.repeat(1)), seq(str(","), choice(quoted, field.repeat(1))).repeat(0));
+        Pattern records = seq(seq(record, str("\n")).repeat(0), n(-1));
+
+        Pattern space = set(" \n").repeat(0);
+        Pattern list = seq(str("("), space, ref("value").repeat(0), str(")"));
+        Pattern value = grammar(rule("value", seq(choice(list, set("0123456789").repeat(1), range("az", "--").repeat(1)), space)));
+        Pattern values = seq(space, value.repeat(0), n(-1));
+
+        LinkedHashMap<String, Object[]> grammars = new LinkedHashMap<>();
+        grammars.put("words", new Object[] { words, repeat("abc def, ghi. xyzzy ", length) });
+        grammars.put("records", new Object[] { records, repeat("1,user@example.com,\"Last, First\",7.50,OK\n", length) });
+        grammars.put("s-expressions", new Object[] { values, repeat("(define (sq x) (mul x x 42))\n", length) });
+
+        for (Map.Entry<String, Object[]> entry : grammars.entrySet()) {
+            Pattern pattern = (Pattern) entry.getValue()[0];
+            String subject = (String) entry.getValue()[1];
+
+            for (Engine engine : Engine.values()) {
+                MatchSession session = pattern.compile(CompileOptions.DEFAULT.withEngine(engine)).newSession();
+                long best = Long.MAX_VALUE;
+                for (int round = 0; round < 50; ++round) {
+                    long start = System.nanoTime();
+                    if (session.matchEnd(subject) != subject.length())
+                        throw new IllegalStateException("Expected the subject to match");
+
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+
+                System.out.printf("%-14s %-12s %,8.1f MB/s%n", entry.getKey(), engine, subject.length() / (best / 1e3));
+            }
+        }
+    }
+
+    private static String repeat(String str, int length) {
+        StringBuilder sb = new StringBuilder(length + str.length());
+        while (sb.length() < length)
+            sb.append(str);
+
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,56 @@
+package se.fishtank.pegless;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+import static se.fishtank.pegless.Pattern.*;
+
+/**
+ * Measures how {@link PatternMatcher#matchAll(java.util.List, ForkJoinPool)}
+ * scales with the number of workers.
+ * <p/>
+ * Not run as a test. Run it with the test classpath, optionally passing
+ * the number of records to match.
+ *
+ * @author Christer Sandberg
+ */
+public class MatchAllBenchmark {
+
+    public static void main(String[] args) {
+        int numberOfRecords = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+
+        Pattern field = choice(range("az", "AZ", "09", "__", "..", "@@"), str("\\\""));
+        Pattern quoted = seq(str("\""), diff(field, str("\"")).or(set(" ,")).repeat(0), str("\""));
+        Pattern record = seq(choice(quoted, field.repeat(1)), seq(str(","), choice(quoted, field.repeat(1))).repeat(0), n(-1));
+        PatternMatcher matcher = record.compile();
+
+        ArrayList<String> records = new ArrayList<>(numberOfRecords);
+        for (int i = 0; i < numberOfRecords; ++i)
+            records.add(i + ",user" + i + "@example.com,\"Last, First " + i + "\"," + (i * 31 % 1000) + ".50,OK");
+
+        double base = 0;
+        for (int parallelism = 1; parallelism <= Runtime.getRuntime().availableProcessors(); parallelism *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                long best = Long.MAX_VALUE;
+                for (int round = 0; round < 10; ++round) {
+                    long start = System.nanoTime();
+                    int[] ends = matcher.matchAll(records, pool);
+                    best = Math.min(best, System.nanoTime() - start);
+
+                    if (ends[0] < 0)
+                        throw new IllegalStateException("Expected records to match");
+                }
+
+                double rate = numberOfRecords / (best / 1e9);
+                if (parallelism == 1)
+                    base = rate;
+
+                System.out.printf("%2d workers: %,.0f records/s (%.2fx)%n", parallelism, rate, rate / base);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+}
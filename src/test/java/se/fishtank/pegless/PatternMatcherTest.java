@@ -1,8 +1,29 @@
 package se.fishtank.pegless;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
 import org.junit.Test;
+import se.fishtank.pegless.internal.compiler.CharacterMatcher;
+import se.fishtank.pegless.internal.compiler.Utf8Automaton;
+import se.fishtank.pegless.internal.util.CharacterSet;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 import static se.fishtank.pegless.Pattern.*;
 import static se.fishtank.pegless.Rule.rule;
 
@@ -147,6 +168,240 @@ public class PatternMatcherTest {
         assertEquals("", captures[6].value);
     }
 
+    @Test
+    public void positions_are_char_indices() {
+        String smiley = new String(Character.toChars(0x1F600));
+        String subject = "a" + smiley + "b" + smiley;
+
+        assertMatch(4, str("a" + smiley + "b"), subject);
+        assertMatch(4, n(3), subject);
+        assertMatch(6, n(4), subject);
+        assertFail(n(5), subject);
+        assertMatch(3, seq(ch('a'), range(smiley + smiley)), subject);
+        assertMatch(3, seq(ch('a'), set(smiley).repeat(1)), subject);
+        assertMatch(6, seq(n(4), behind(seq(ch('b'), ch(0x1F600)))), subject);
+        assertFail(seq(n(4), behind(seq(ch('a'), ch(0x1F600)))), subject);
+
+        PatternMatchResult result = str("b" + smiley).compile().match(subject, 3);
+        assertTrue(result.matched());
+        assertEquals(3, result.getStart());
+        assertEquals(6, result.getEnd());
+
+        Capturer capturer = new Capturer();
+        assertMatch(6, seq(capturer.capture(n(2)), n(2)), subject);
+        assertEquals("a" + smiley, capturer.pop().value);
+    }
+
+    @Test
+    public void char_sequence_and_char_array_subjects() {
+        Capturer capturer = new Capturer();
+        PatternMatcher matcher = seq(capturer.capture(LETTER.repeat(1)), DIGIT.repeat(0)).compile();
+
+        PatternMatchResult result = matcher.match(new StringBuilder("abc123"));
+        assertTrue(result.matched());
+        assertEquals(6, result.getEnd());
+        assertEquals("abc", capturer.pop().value);
+
+        result = matcher.match(CharBuffer.wrap("--abc123"), 2);
+        assertTrue(result.matched());
+        assertEquals(8, result.getEnd());
+        assertEquals("abc", capturer.pop().value);
+
+        char[] array = "--abc123--".toCharArray();
+        MatchSession session = matcher.newSession();
+
+        assertEquals(8, session.matchEnd(array, 2, 6));
+        assertEquals("abc", capturer.pop().value);
+
+        assertEquals(6, session.matchEnd(array, 2, 4));
+        assertEquals(2, session.getStart());
+        assertEquals(6, session.getEnd());
+        assertEquals("abc", capturer.pop().value);
+
+        assertEquals(-1, session.matchEnd(array, 5, 3));
+        assertFalse(matcher.match(array, 0, 10).matched());
+
+        assertEquals(1, n(1).compile().newSession().matchEnd(new char[] { 'a', Character.highSurrogate(0x1F600) }, 0, 1));
+    }
+
+    @Test
+    public void character_sets_and_matchers_match_like_bit_sets() {
+        Random random = new Random(42);
+        BitSet[] bitSets = new BitSet[20];
+        CharacterSet[] characterSets = new CharacterSet[20];
+        for (int n = 0; n < 20; ++n) {
+            bitSets[n] = new BitSet();
+            int[] ranges = new int[n * 40];
+            for (int i = 0; i < ranges.length; i += 2) {
+                ranges[i] = random.nextInt(n % 2 == 0 ? 0x400 : 0x110000);
+                ranges[i + 1] = Math.min(ranges[i] + random.nextInt(4), CharacterSet.MAX_CHARACTER);
+                bitSets[n].set(ranges[i], ranges[i + 1] + 1);
+            }
+
+            characterSets[n] = CharacterSet.ofRanges(ranges);
+            assertCharacterSet(bitSets[n], characterSets[n]);
+
+            CharacterMatcher matcher = CharacterMatcher.newCharacterMatcher(characterSets[n]);
+            for (int c = -1; c < 0x1000; ++c)
+                assertEquals(c >= 0 && bitSets[n].get(c), matcher.match(c));
+
+            for (int c = bitSets[n].nextSetBit(0); c >= 0; c = bitSets[n].nextSetBit(c + 1)) {
+                assertTrue(matcher.match(c));
+                assertEquals(bitSets[n].get(c + 1), matcher.match(c + 1));
+            }
+
+            assertFalse(matcher.match(0x110000));
+        }
+
+        for (int n = 1; n < 20; ++n) {
+            BitSet a = bitSets[n - 1];
+            BitSet b = bitSets[n];
+            CharacterSet x = characterSets[n - 1];
+            CharacterSet y = characterSets[n];
+
+            BitSet expected = (BitSet) a.clone();
+            expected.or(b);
+            assertCharacterSet(expected, x.union(y));
+
+            expected = (BitSet) a.clone();
+            expected.and(b);
+            assertCharacterSet(expected, x.intersection(y));
+            assertEquals(a.intersects(b), x.intersects(y));
+
+            expected = (BitSet) a.clone();
+            expected.andNot(b);
+            assertCharacterSet(expected, x.difference(y));
+
+            expected = (BitSet) a.clone();
+            expected.flip(0, CharacterSet.MAX_CHARACTER + 1);
+            assertCharacterSet(expected, x.complement());
+            assertEquals(x, x.complement().complement());
+        }
+    }
+
+    @Test
+    public void utf8_automata_match_like_decoded_sets() {
+        Pattern[] sets = {
+            range("az"), set("åäö\uD83D\uDE00x"), diff(n(1), set("()")), range("\u0080\uFFFF"),
+            range("\u07FF\u0800", "\uD7FF\uE000"), range("\uDC80\uDCFF", "az"), range("\uDBFF\uDC00\uDBFF\uDFFF")
+        };
+
+        byte[] valid = "ax(å)\u07FF\u0800\uD7FF\uE000\uFFFF\uD83D\uDE00\uDBFF\uDFFFzä".getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = Arrays.copyOf(valid, valid.length + 7);
+        System.arraycopy(new byte[] { (byte) 0xC3, 'a', (byte) 0xE0, (byte) 0x80, (byte) 0xBF, (byte) 0xED, (byte) 0xA0 }, 0, bytes, valid.length, 7);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        CompileOptions options = CompileOptions.DEFAULT.withUtf8Automata(true);
+        for (Pattern set : sets) {
+            Pattern[] patterns = { set, set.repeat(0), choice(seq(set, str("x")), n(1)), seq(test(set), n(1)) };
+            for (Pattern pattern : patterns) {
+                MatchSession decoded = pattern.compile().newSession();
+                MatchSession lowered = pattern.compile(options).newSession();
+                for (int i = 0; i <= bytes.length; ++i)
+                    assertEquals(decoded.matchEnd(buffer, i), lowered.matchEnd(buffer, i));
+            }
+        }
+
+        assertEquals(8, Utf8Automaton.newUtf8Automaton(CharacterSet.FULL_SET).numberOfStates());
+    }
+
+    @Test
+    public void utf8_byte_buffer_subjects() {
+        Capturer capturer = new Capturer();
+        PatternMatcher matcher = seq(capturer.capture(set("åäö\uD83D\uDE00").repeat(1)), str("x")).compile();
+
+        byte[] bytes = "--åä\uD83D\uDE00öx--".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+
+        for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.wrap(bytes), direct }) {
+            MatchSession session = matcher.newSession();
+            assertEquals(-1, session.matchEnd(buffer));
+            assertEquals(13, session.matchEnd(buffer, 2));
+            assertEquals("åä\uD83D\uDE00ö", capturer.pop().value);
+            assertEquals(0, buffer.position());
+
+            buffer.position(2);
+            PatternMatchResult result = matcher.match(buffer);
+            assertTrue(result.matched());
+            assertEquals(2, result.getStart());
+            assertEquals(13, result.getEnd());
+            assertEquals("åä\uD83D\uDE00öx", result.getSubject().subSequence(2, 13).toString());
+            capturer.pop();
+
+            buffer.limit(12);
+            assertEquals(-1, session.matchEnd(buffer, 2));
+            buffer.clear();
+        }
+
+        ByteBuffer malformed = ByteBuffer.wrap(new byte[] { 'a', (byte) 0xC3, 'b', (byte) 0xF0, (byte) 0x9F, 'c' });
+        MatchSession session = seq(str("a"), n(1), str("b"), n(2), str("c")).compile().newSession();
+        assertEquals(6, session.matchEnd(malformed));
+        assertEquals(-1, str("a").then(set("\uDCC3")).then(str("b")).compile().newSession().matchEnd(ByteBuffer.wrap(new byte[] { 'a', 'b' })));
+        assertEquals(3, str("a").then(range("\uDC80\uDCFF")).then(str("b")).compile().newSession().matchEnd(malformed));
+
+        ByteBuffer text = ByteBuffer.wrap("aå\uD83D\uDE00".getBytes(StandardCharsets.UTF_8));
+        assertEquals(7, seq(n(3), behind(seq(str("å"), n(1)))).compile().newSession().matchEnd(text));
+        assertEquals(-1, seq(n(1), behind(n(2))).compile().newSession().matchEnd(text, 1));
+    }
+
+    @Test
+    public void allocation_does_not_depend_on_subject_length() {
+        com.sun.management.ThreadMXBean threadBean = threadBean();
+
+        PatternMatcher matcher = createWordsPattern().compile();
+
+        String shortSubject = "abc def, ghi. ";
+        String longSubject = createWordsSubject();
+
+        // Warm up so that class loading and compilation don't count.
+        for (int i = 0; i < 20; ++i) {
+            assertTrue(matcher.match(shortSubject).matched());
+            assertTrue(matcher.match(longSubject).matched());
+        }
+
+        long threadId = Thread.currentThread().getId();
+
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        matcher.match(shortSubject);
+        long shortBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = threadBean.getThreadAllocatedBytes(threadId);
+        matcher.match(longSubject);
+        long longBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        // The long subject executes several hundred thousand more instructions.
+        assertTrue("Allocated " + longBytes + " bytes vs " + shortBytes, longBytes - shortBytes < 1024);
+    }
+
+    @Test
+    public void session_matches_without_allocating() {
+        com.sun.management.ThreadMXBean threadBean = threadBean();
+
+        MatchSession session = createWordsPattern().compile().newSession();
+        String subject = createWordsSubject();
+
+        for (int i = 0; i < 20; ++i)
+            assertEquals(subject.length(), session.matchEnd(subject));
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+
+        for (int i = 0; i < 100; ++i)
+            session.matchEnd(subject);
+
+        long bytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("Allocated " + bytes + " bytes", bytes < 1024);
+
+        assertTrue(session.matched());
+        assertEquals(0, session.getStart());
+        assertEquals(subject.length(), session.getEnd());
+
+        assertEquals(-1, session.matchEnd("1"));
+        assertFalse(session.matched());
+        assertEquals(-1, session.getEnd());
+    }
+
     private Pattern basicLookFor(Pattern pattern) {
         return grammar(rule("1", choice(pattern, seq(n(1), ref("1")))));
     }
@@ -172,6 +427,823 @@ public class PatternMatcherTest {
         return matchResult;
     }
 
+    @Test
+    public void streamed_subjects_match_like_in_memory_ones() throws IOException {
+        Capturer capturer = new Capturer();
+        Pattern word = seq(capturer.capture(range("az", "åö", "\uD83D\uDE00\uD83D\uDE4F").repeat(1)), behind(n(1)));
+        Pattern words = seq(word, seq(str(" "), word).repeat(0), str(" ").repeat(0));
+        Pattern[] patterns = { words, seq(words, EOS), choice(seq(words, str("!")), words), seq(n(5), behind(n(3))) };
+
+        String subject = "abc å\uD83D\uDE00ö \uD83D\uDE4Fx yz ";
+        for (Pattern pattern : patterns) {
+            PatternMatcher matcher = pattern.compile(CompileOptions.DEFAULT.withUtf8Automata(true));
+            int expected = matcher.newSession().matchEnd(subject);
+            String[] captures = drain(capturer);
+
+            byte[] bytes = subject.getBytes(StandardCharsets.UTF_8);
+            int expectedBytes = expected < 0 ? -1 : subject.substring(0, expected).getBytes(StandardCharsets.UTF_8).length;
+
+            MatchSession session = matcher.newSession();
+            for (int chunk = 1; chunk <= 5; ++chunk) {
+                assertEquals(expected, session.matchEnd(new ChunkedReader(subject, chunk)));
+                assertArrayEquals(captures, drain(capturer));
+
+                assertEquals(expectedBytes, session.matchEnd(new ChunkedChannel(bytes, chunk)));
+                assertArrayEquals(captures, drain(capturer));
+            }
+        }
+
+        final IOException failure = new IOException();
+        try {
+            n(10).compile().newSession().matchEnd(new Reader() {
+                @Override
+                public int read(char[] buffer, int offset, int length) throws IOException {
+                    throw failure;
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+
+            fail("Expected an exception");
+        } catch (IOException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void streaming_memory_does_not_depend_on_subject_length() throws IOException {
+        com.sun.management.ThreadMXBean threadBean = threadBean();
+
+        MatchSession session = createWordsPattern().compile().newSession();
+        for (int i = 0; i < 20; ++i)
+            assertEquals(100000, session.matchEnd(new WordsReader(100000)));
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+
+        long length = 50000000;
+        assertEquals(length, session.matchEnd(new WordsReader(length)));
+
+        long bytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("Allocated " + bytes + " bytes", bytes < 1024 * 1024);
+    }
+
+    @Test
+    public void push_matches_suspend_and_resume() {
+        Capturer capturer = new Capturer();
+        Pattern line = seq(capturer.capture(range("AZ").repeat(1)), str(" "),
+                capturer.capture(diff(n(1), set(" \r")).repeat(1)), str("\r\n"));
+
+        byte[] bytes = "GET /å\uD83D\uDE00\r\nrest".getBytes(StandardCharsets.UTF_8);
+        MatchSession session = line.compile(CompileOptions.DEFAULT.withUtf8Automata(true)).newSession();
+        for (int chunk = 1; chunk <= 4; ++chunk) {
+            assertEquals(MatchStatus.NEED_MORE_INPUT, session.begin());
+
+            MatchStatus status = MatchStatus.NEED_MORE_INPUT;
+            int fed = 0;
+            while (status == MatchStatus.NEED_MORE_INPUT) {
+                assertEquals(-1, session.getStreamEnd());
+                int n = Math.min(chunk, bytes.length - fed);
+                status = session.feed(ByteBuffer.wrap(bytes, fed, n));
+                fed += n;
+            }
+
+            assertEquals(MatchStatus.MATCHED, status);
+            assertEquals(bytes.length - 4, session.getStreamEnd());
+            assertArrayEquals(new String[] { "GET", "/å\uD83D\uDE00" }, drain(capturer));
+            assertEquals(MatchStatus.MATCHED, session.finish());
+        }
+
+        // Every character is looked at once, however the input is split.
+        final int[] calls = { 0 };
+        Pattern counted = action(n(1), new Action() {
+            @Override
+            public int match(CharSequence subject, int offset, int position) {
+                calls[0]++;
+                return position;
+            }
+        }).repeat(0);
+
+        session = counted.compile().newSession();
+        assertEquals(MatchStatus.NEED_MORE_INPUT, session.begin());
+        for (int i = 0; i < 1000; ++i)
+            assertEquals(MatchStatus.NEED_MORE_INPUT, session.feed(ByteBuffer.wrap(new byte[] { 'a' })));
+
+        assertEquals(1000, calls[0]);
+        assertEquals(MatchStatus.MATCHED, session.finish());
+        assertEquals(1000, session.getStreamEnd());
+        assertEquals(1000, calls[0]);
+
+        session = str("GET").compile().newSession();
+        assertEquals(MatchStatus.NEED_MORE_INPUT, session.begin());
+        assertEquals(MatchStatus.FAILED, session.feed(ByteBuffer.wrap(new byte[] { 'G', 'O' })));
+        assertEquals(MatchStatus.FAILED, session.finish());
+
+        assertEquals(MatchStatus.MATCHED, SUCCEED.compile().newSession().begin());
+
+        try {
+            session.feed(ByteBuffer.allocate(1));
+            fail("Expected an exception");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void find_matches_at_the_first_possible_offset() {
+        Pattern[] patterns = {
+            str("abc"), seq(str("ab"), DIGIT), DIGIT.repeat(1), DIGIT.repeat(0), seq(test(str("b")), n(2)),
+            grammar(rule("s", seq(str("a\uD83D\uDE00"), ref("s").or(SUCCEED)))), FAIL, EOS,
+            seq(new Capturer().capture(str("ab")), DIGIT), choice(str("c"), DIGIT)
+        };
+
+        String subject = "xxabcab1ab x a\uD83D\uDE00a\uD83D\uDE00b 42";
+        for (Pattern pattern : patterns) {
+            PatternMatcher matcher = pattern.compile();
+            for (CharSequence s : new CharSequence[] { subject, new StringBuilder(subject) }) {
+                for (int from = 0; from <= subject.length(); ++from) {
+                    int expectedStart = -1;
+                    int expectedEnd = -1;
+                    for (int i = from; i <= subject.length() && expectedStart < 0; ++i) {
+                        expectedEnd = matcher.newSession().matchEnd(s, i);
+                        if (expectedEnd >= 0)
+                            expectedStart = i;
+                    }
+
+                    PatternMatchResult result = matcher.find(s, from);
+                    assertEquals(expectedStart >= 0, result.matched());
+                    if (result.matched()) {
+                        assertEquals(expectedStart, result.getStart());
+                        assertEquals(expectedEnd, result.getEnd());
+                    }
+                }
+            }
+        }
+
+        MatchSession session = str("ab").compile().newSession();
+        assertEquals(2, session.find("xxabab", 0));
+        assertEquals(4, session.find("xxabab", 3));
+        assertEquals(6, session.getEnd());
+        assertEquals(-1, session.find("xxabab", 5));
+        assertFalse(session.matched());
+    }
+
+    @Test
+    public void gmatch_iterates_non_overlapping_matches() {
+        Iterator<PatternMatchResult> iterator = LETTER.repeat(1).compile().gmatch("ab, c\uD83D\uDE00de");
+        assertMatch(0, 2, iterator.next());
+        assertMatch(4, 5, iterator.next());
+        assertMatch(7, 9, iterator.next());
+        assertFalse(iterator.hasNext());
+
+        // Empty matches move on one character.
+        iterator = DIGIT.repeat(0).compile().gmatch("1a\uD83D\uDE0023");
+        assertMatch(0, 1, iterator.next());
+        assertMatch(1, 1, iterator.next());
+        assertMatch(2, 2, iterator.next());
+        assertMatch(4, 6, iterator.next());
+        assertMatch(6, 6, iterator.next());
+        assertFalse(iterator.hasNext());
+
+        assertFalse(str("x").compile().gmatch("abc").hasNext());
+    }
+
+    @Test
+    public void parallel_matches_are_the_same_as_sequential_ones() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 200000; ++i)
+            sb.append("w").append(i).append(i % 7 == 0 ? "\uD83D\uDE00 " : ", ").append(i % 13 == 0 ? "\n" : "");
+
+        String subject = sb.toString();
+        Pattern word = seq(LETTER, choice(LETTER, DIGIT).repeat(0));
+        Pattern[] patterns = { word, choice(word, set("\uD83D\uDE00")), DIGIT.repeat(0), seq(str("w1"), DIGIT.repeat(0)) };
+
+        for (Pattern pattern : patterns) {
+            PatternMatcher matcher = pattern.compile();
+
+            ArrayList<String> expected = new ArrayList<>();
+            for (Iterator<PatternMatchResult> iterator = matcher.gmatch(subject); iterator.hasNext(); ) {
+                PatternMatchResult result = iterator.next();
+                expected.add(result.getStart() + "-" + result.getEnd());
+            }
+
+            List<String> actual = matcher.matches(subject).parallel()
+                    .map(result -> result.getStart() + "-" + result.getEnd())
+                    .collect(Collectors.toList());
+
+            assertEquals(expected, actual);
+            assertNotNull(new MatchSpliterator(matcher, subject, 0, subject.length()).trySplit());
+        }
+
+        assertNull(new MatchSpliterator(n(1).compile(), subject, 0, subject.length()).trySplit());
+        assertNull(new MatchSpliterator(new Capturer().capture(word).compile(), subject, 0, subject.length()).trySplit());
+    }
+
+    @Test
+    public void match_all_matches_like_one_at_a_time() {
+        PatternMatcher matcher = seq(LETTER.repeat(1), str("="), DIGIT.repeat(1)).compile();
+
+        ArrayList<String> subjects = new ArrayList<>();
+        for (int i = 0; i < 20000; ++i)
+            subjects.add(i % 5 == 0 ? "key=" : "key" + i + "=" + i);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            int[] ends = matcher.matchAll(subjects, pool);
+            assertEquals(subjects.size(), ends.length);
+            for (int i = 0; i < ends.length; ++i)
+                assertEquals(matcher.newSession().matchEnd(subjects.get(i)), ends[i]);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertArrayEquals(new int[] { 3, -1 }, matcher.matchAll(Arrays.asList("a=1", new StringBuilder("1=a"))));
+        assertEquals(0, matcher.matchAll(new ArrayList<String>()).length);
+    }
+
+    @Test
+    public void compiled_engines_match_like_the_interpreter() {
+        Capturer capturer = new Capturer();
+        Pattern word = capturer.capture(range("az", "åö", "\uD83D\uDE00\uD83D\uDE4F").repeat(1));
+        Pattern[] patterns = {
+            str("ab\uD83D\uDE00"), seq(n(2), behind(seq(ch('b'), ch(0x1F600)))), DIGIT.repeat(1), FAIL, EOS,
+            seq(word, set(" ,.").repeat(0)).repeat(0), seq(test(str("b")), n(2)), diff(n(1), set("aeiouy,. ")).repeat(0),
+            grammar(rule("s", seq(str("a\uD83D\uDE00"), ref("s").or(SUCCEED)))), createParensGrammar(),
+            choice(seq(capturer.capture(str("ab")), DIGIT), capturer.capture(n(1)), str("c")),
+            seq(action(n(2), new Action() {
+                @Override
+                public int match(CharSequence subject, int start, int end) {
+                    return subject.charAt(start) == '(' ? -1 : end;
+                }
+            }), EOS.or(n(1)))
+        };
+
+        StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < 100; ++i)
+            nested.insert(0, '(').append(')');
+
+        String[] subjects = {
+            "", "ab\uD83D\uDE00", "ab1", "12345", "abc def, ghi. ", "b\uD83D\uDE01x", "a\uD83D\uDE00a\uD83D\uDE00b",
+            "((a)(b))", nested.toString(), "\uD83Dab", "åäö, xyz"
+        };
+
+        for (Engine engine : new Engine[] { Engine.BYTECODE, Engine.CLOSURES }) {
+            CompileOptions options = CompileOptions.DEFAULT.withEngine(engine);
+            for (Pattern pattern : patterns) {
+                MatchSession interpreted = pattern.compile().newSession();
+                PatternMatcher matcher = pattern.compile(options);
+                assertNotNull(matcher.program);
+
+                MatchSession compiled = matcher.newSession();
+                for (String subject : subjects) {
+                    for (int i = 0; i <= subject.length(); ++i) {
+                        assertEquals(interpreted.matchEnd(subject, i), compiled.matchEnd(subject, i));
+                        String[] captures = drain(capturer);
+                        assertEquals(interpreted.matchEnd(new StringBuilder(subject), i), compiled.matchEnd(subject, i));
+                        assertArrayEquals(captures, drain(capturer));
+                    }
+                }
+            }
+        }
+
+        // Too large to be compiled by the JIT, so it's left to the interpreter.
+        Pattern large = str("a");
+        for (int i = 0; i < 300; ++i)
+            large = choice(str("b" + i), large);
+
+        PatternMatcher matcher = large.compile(CompileOptions.DEFAULT.withEngine(Engine.BYTECODE));
+        assertNull(matcher.program);
+        assertEquals(4, matcher.newSession().matchEnd("b299"));
+
+        // Recursing deeper than the stack allows, so it's matched again by the interpreter.
+        Pattern right = grammar(rule("S", str("a").then(ref("S")).or(str("b"))));
+        String deep = new String(new char[200000]).replace('\0', 'a') + "b";
+        for (Engine engine : Engine.values()) {
+            matcher = right.compile(CompileOptions.DEFAULT.withEngine(engine));
+            assertEquals(200001, matcher.match(deep).getEnd());
+            assertFalse(matcher.match(deep.substring(1, 200000)).matched());
+        }
+    }
+
+    @Test
+    public void compiled_engines_call_actions_like_the_interpreter() {
+        final int[] calls = { 0 };
+        Action counter = new Action() {
+            @Override
+            public int match(CharSequence subject, int offset, int position) {
+                calls[0]++;
+                return position;
+            }
+        };
+
+        Pattern[] patterns = {
+            seq(testNot(seq(testNot(action(set("abc"), counter)), str("a"))), n(1)),
+            seq(testNot(seq(ch('a'), action(SUCCEED, counter))), n(1)),
+            seq(testNot(seq(action(n(1), counter), ch('x'))), n(1)),
+            seq(test(seq(action(set("ab"), counter), ch('x'))), n(1)),
+            seq(test(seq(testNot(action(set("abc"), counter)), str("a"))), n(1)),
+            choice(seq(testNot(action(set("abc"), counter)), str("a")), seq(action(set("bc"), counter), ch('x')), n(1)),
+            choice(seq(action(set("ab"), counter), ch('x')), seq(ch('c'), action(n(1), counter)), SUCCEED)
+        };
+
+        String[] subjects = { "", "a", "ax", "b", "bx", "c", "cd", "x" };
+        for (Pattern pattern : patterns) {
+            for (String subject : subjects) {
+                calls[0] = 0;
+                int end = pattern.compile().newSession().matchEnd(subject);
+                int expected = calls[0];
+                for (Engine engine : new Engine[] { Engine.BYTECODE, Engine.CLOSURES }) {
+                    calls[0] = 0;
+                    assertEquals(end, pattern.compile(CompileOptions.DEFAULT.withEngine(engine)).newSession().matchEnd(subject));
+                    assertEquals(engine + " on \"" + subject + "\"", expected, calls[0]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void literal_runs_match_as_strings() throws IOException {
+        Pattern keyword = choice(str("if"), str("in"), str("int"), str("\uD83D\uDE00ok"), str("else"));
+        Pattern[] patterns = {
+            keyword, seq(keyword, str(" ")).repeat(0), seq(testNot(keyword), n(1)).repeat(1),
+            seq(str("else"), choice(seq(ch(' '), str("if")), SUCCEED)), seq(str("ab"), ch(0x1F600), str("cd"))
+        };
+
+        String[] subjects = {
+            "", "i", "if", "int", "in x", "else if", "if in int else ", "elsa", "\uD83D\uDE00ok",
+            "\uD83D\uDE00o", "ab\uD83D\uDE00cd", "ab\uD83D\uDE00c"
+        };
+
+        for (Pattern pattern : patterns) {
+            MatchSession fused = pattern.compile().newSession();
+            for (String subject : subjects) {
+                int expected = fused.matchEnd(subject);
+                assertEquals(expected, fused.matchEnd(new StringBuilder(subject)));
+                for (Engine engine : new Engine[] { Engine.BYTECODE, Engine.CLOSURES })
+                    assertEquals(expected, pattern.compile(CompileOptions.DEFAULT.withEngine(engine)).newSession().matchEnd(subject));
+
+                // Strings split across chunks wait for the rest of the input.
+                for (int chunk = 1; chunk <= 3; ++chunk)
+                    assertEquals(expected, fused.matchEnd(new ChunkedReader(subject, chunk)));
+
+                assertEquals(MatchStatus.NEED_MORE_INPUT, fused.begin());
+                byte[] bytes = subject.getBytes(StandardCharsets.UTF_8);
+                for (byte b : bytes) {
+                    if (fused.feed(ByteBuffer.wrap(new byte[] { b })) != MatchStatus.NEED_MORE_INPUT)
+                        break;
+                }
+
+                fused.finish();
+                long end = fused.getStreamEnd();
+                assertEquals(expected < 0 ? -1 : subject.substring(0, expected).getBytes(StandardCharsets.UTF_8).length, end);
+            }
+        }
+
+        assertMatch(5, str("hello"), "hello, world");
+        assertEquals(2, str("hello").compile().numberOfInstructions);
+        assertEquals(2, str("hello").then(ch(' ')).compile().numberOfInstructions);
+
+        // Longer than a single increment of the position can move.
+        String literal = new String(new char[40000]).replace('\0', 'a');
+        for (Engine engine : Engine.values())
+            assertEquals(40000, str(literal).compile(CompileOptions.DEFAULT.withEngine(engine)).match(literal + "b").getEnd());
+    }
+
+    @Test
+    public void choices_switch_on_the_next_character() throws IOException {
+        Pattern[][] choices = {
+            { str("if"), str("else"), str("while"), range("az").repeat(1), DIGIT.repeat(1) },
+            { seq(ch('a'), DIGIT), seq(ch('b'), DIGIT), seq(range("az"), ch('!')), seq(test(ch('c')), n(2)) },
+            { str("\uD83D\uDE00a"), str("\uD83D\uDE01"), ch('x'), range("\u4E00\u9FFF").repeat(1), EOS }
+        };
+
+        String[] subjects = {
+            "", "if", "iff", "else1", "while", "123", "a1", "b!", "bx", "c", "cd", "\uD83D\uDE00a", "\uD83D\uDE01",
+            "\uD83D\uDE00b", "x", "\u4E00\u4E01"
+        };
+
+        for (Pattern[] alternatives : choices) {
+            Pattern pattern = choice(alternatives[0], alternatives[1], Arrays.copyOfRange(alternatives, 2, alternatives.length));
+            PatternMatcher matcher = pattern.compile();
+            assertTrue(matcher.instructions.switches.length > 0);
+
+            MatchSession session = matcher.newSession();
+            for (String subject : subjects) {
+                // The first alternative that matches decides.
+                int expected = -1;
+                for (int i = 0; i < alternatives.length && expected < 0; ++i)
+                    expected = alternatives[i].compile().newSession().matchEnd(subject);
+
+                assertEquals(expected, session.matchEnd(subject));
+                assertEquals(expected, session.matchEnd(new ChunkedReader(subject, 1)));
+                for (Engine engine : new Engine[] { Engine.BYTECODE, Engine.CLOSURES })
+                    assertEquals(expected, pattern.compile(CompileOptions.DEFAULT.withEngine(engine)).newSession().matchEnd(subject));
+            }
+        }
+
+        // Large enough to be looked up in the table by the generated code.
+        Pattern large = choice(seq(range("AZ"), ch('1')), seq(range("az"), ch('2')), seq(range("\u00C0\u00FF"), ch('3')));
+        for (Engine engine : Engine.values()) {
+            MatchSession session = large.compile(CompileOptions.DEFAULT.withEngine(engine)).newSession();
+            assertEquals(2, session.matchEnd("A1"));
+            assertEquals(2, session.matchEnd("\u00E53"));
+            assertEquals(-1, session.matchEnd("a1"));
+            assertEquals(-1, session.matchEnd("\u01003"));
+        }
+    }
+
+    @Test
+    public void rules_may_call_each_other() {
+        Pattern ws = set(" \n").repeat(0);
+        Pattern value = choice(ref("list"), DIGIT.repeat(1), ref("string"));
+        Pattern list = seq(ch('['), ws, seq(ref("value"), ws, seq(ch(','), ws, ref("value"), ws).repeat(0)).repeat(-1), ch(']'));
+        Pattern json = grammar(rule("value", value), rule("list", list), rule("string", seq(ch('"'), n(1).diff(ch('"')).repeat(0), ch('"'))));
+
+        // A long chain of rules, each referenced from many places.
+        ArrayList<Rule> rules = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            Pattern next = i + 1 < 500 ? ref("r" + (i + 1)) : SUCCEED;
+            rules.add(rule("r" + i, seq(ch('a'), choice(next, ref("r0").repeat(-1), ref("r" + i / 2)))));
+        }
+
+        Pattern chain = grammar(rules);
+        for (Engine engine : Engine.values()) {
+            PatternMatcher matcher = json.compile(CompileOptions.DEFAULT.withEngine(engine));
+            assertEquals(24, matcher.match("[1, [\"a\", []], [[2]], 3]").getEnd());
+            assertFalse(matcher.match("[1, [2]").matched());
+
+            matcher = chain.compile(CompileOptions.DEFAULT.withEngine(engine));
+            assertEquals(300, matcher.match(new String(new char[300]).replace('\0', 'a')).getEnd());
+        }
+    }
+
+    @Test
+    public void memoized_rules_match_in_linear_time() {
+        // Without memoization every '(' doubles the time it takes to match.
+        Pattern nested = grammar(rule("s", choice(seq(ch('('), ref("s"), ch(')')), seq(ch('('), ref("s"), ch(']')), ch('x'))));
+        String deep = new String(new char[5000]).replace('\0', '(') + "x" + new String(new char[5000]).replace('\0', ']');
+
+        PatternMatcher plain = nested.compile();
+        for (int size : new int[] { 1, 16, 1 << 16 }) {
+            for (Engine engine : Engine.values()) {
+                PatternMatcher matcher = nested.compile(CompileOptions.DEFAULT.withEngine(engine).withMemoTableSize(size));
+                assertEquals(10001, matcher.match(deep).getEnd());
+                assertEquals(10001, matcher.match(deep + ")").getEnd());
+                assertFalse(matcher.match(deep.substring(0, 10000)).matched());
+
+                for (String subject : new String[] { "x", "(x)", "(x]", "((x])", "((x)]", "((x))", "((x", "(()" }) {
+                    MatchSession session = matcher.newSession();
+                    for (int i = 0; i < 2; ++i)
+                        assertEquals(subject, plain.match(subject).getEnd(), session.matchEnd(subject));
+                }
+            }
+        }
+
+        // Rules running actions run them on every call.
+        final int[] calls = { 0 };
+        Pattern counted = grammar(
+                rule("s", choice(seq(ref("a"), ch('b')), seq(ref("a"), ch('c')))),
+                rule("a", action(ch('a'), new Action() {
+                    @Override
+                    public int match(CharSequence subject, int offset, int position) {
+                        calls[0]++;
+                        return position;
+                    }
+                })));
+
+        assertEquals(2, counted.compile(CompileOptions.DEFAULT.withMemoTableSize(16)).match("ac").getEnd());
+        assertEquals(2, calls[0]);
+    }
+
+    @Test
+    public void memo_plans_memoize_rules_called_again() {
+        Pattern nested = choice(seq(ch('('), ref("nested"), ch(')')), seq(ch('('), ref("nested"), ch(']')), ch('x'));
+        Pattern list = grammar(
+                rule("list", seq(ref("item"), seq(ch(','), ref("item")).repeat(0))),
+                rule("item", choice(ref("nested"), ref("number"))),
+                rule("nested", nested),
+                rule("number", DIGIT.repeat(1)));
+
+        CompileOptions options = CompileOptions.DEFAULT.withMemoTableSize(1 << 10);
+        MatchSession session = list.compile(options).newSession();
+        assertEquals(14, session.matchEnd("12,(((x]]],3,4"));
+        assertEquals(7, session.matchEnd("(x),(x]"));
+
+        MemoPlan plan = session.getMemoPlan();
+        assertEquals(4, plan.size());
+        assertEquals("nested", plan.getRule(2));
+        assertEquals(4, plan.getReinvocations(2));
+        for (int i = 0; i < plan.size(); ++i)
+            assertEquals(plan.getRule(i), i == 2, plan.isMemoized(i));
+
+        for (Engine engine : Engine.values()) {
+            PatternMatcher matcher = list.compile(options.withEngine(engine).withMemoPlan(plan));
+            assertTrue(matcher.instructions.memoizes);
+            assertNull(matcher.program);
+            assertEquals(14, matcher.match("12,(((x]]],3,4").getEnd());
+        }
+
+        // Nothing is worth memoizing without backtracking.
+        session = list.compile(options).newSession();
+        assertEquals(5, session.matchEnd("1,2,3"));
+        plan = session.getMemoPlan();
+        assertEquals(0, plan.getReinvocations(3));
+        assertFalse(plan.isMemoized(3));
+
+        PatternMatcher matcher = list.compile(options.withEngine(Engine.BYTECODE).withMemoPlan(plan));
+        assertFalse(matcher.instructions.memoizes);
+        assertNotNull(matcher.program);
+        assertEquals(5, matcher.match("1,2,3").getEnd());
+
+        try {
+            grammar(rule("nested", nested)).compile(options.withMemoPlan(plan));
+            fail("Expected an exception");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void large_grammars_are_verified() {
+        // Every rule calls the next one before consuming anything.
+        int n = 20000;
+        ArrayList<Rule> rules = new ArrayList<>();
+        for (int i = 0; i < n; ++i)
+            rules.add(rule("r" + i, i + 1 < n ? seq(ref("r" + (i + 1)), ch('a')) : ch('z')));
+
+        String subject = "z" + new String(new char[n - 1]).replace('\0', 'a');
+        assertEquals(n, grammar(rules).compile().match(subject).getEnd());
+        assertEquals(n, grammar(rules).root.getFixedLength());
+
+        rules.set(n - 1, rule("r" + (n - 1), seq(ref("r0"), ch('z'))));
+        try {
+            grammar(rules);
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("Rule may be left recursive"));
+        }
+
+        // Lengths add up through calls, unless the rules call each other.
+        rules.clear();
+        for (int i = 0; i < 500; ++i)
+            rules.add(rule("r" + i, i + 1 < 500 ? seq(ch('a'), ref("r" + (i + 1))) : ch('b')));
+
+        Pattern behind = seq(n(500), grammar(rules).behind());
+        assertEquals(500, behind.compile().match(new String(new char[499]).replace('\0', 'a') + "b").getEnd());
+        assertFalse(behind.compile().match(new String(new char[500]).replace('\0', 'a')).matched());
+        assertEquals(-1, grammar(rule("s", seq(ch('a'), ref("s").repeat(-1)))).root.getFixedLength());
+        assertEquals(-1, grammar(rule("s", seq(ch('a'), ref("t"))), rule("t", choice(ch('b'), ref("s")))).root.getFixedLength());
+    }
+
+    @Test
+    public void deep_patterns_compile_on_small_stacks() throws Exception {
+        final int n = 50000;
+        final String subject = new String(new char[n]).replace('\0', 'a');
+        final Throwable[] thrown = new Throwable[1];
+
+        Thread thread = new Thread(null, () -> {
+            try {
+                Pattern sequence = SUCCEED;
+                Pattern literal = SUCCEED;
+                Pattern keywords = FAIL;
+                for (int i = 0; i < n; ++i) {
+                    sequence = sequence.then(set("ab"));
+                    literal = literal.then(ch('a'));
+                    if (i < n / 5)
+                        keywords = keywords.or(str("k" + i + ";"));
+                }
+
+                Pattern lookahead = ch('a');
+                for (int i = 0; i < 2000; ++i)
+                    lookahead = choice(test(lookahead), ch('b'));
+
+                Pattern other = SUCCEED;
+                for (int i = 0; i < n; ++i)
+                    other = other.then(set("ab"));
+
+                assertEquals(sequence, other);
+                assertEquals(sequence.hashCode(), other.hashCode());
+                assertEquals(n, sequence.root.getFixedLength());
+
+                for (Engine engine : Engine.values()) {
+                    CompileOptions options = CompileOptions.DEFAULT.withEngine(engine);
+                    assertEquals(n, sequence.compile(options).match(subject).getEnd());
+                    assertEquals(n, literal.compile(options).match(subject).getEnd());
+                    assertEquals(n, set("ab").repeat(-n).compile(options).match(subject + "a").getEnd());
+                    assertEquals(n, grammar(rule("s", seq(sequence, ref("s").repeat(-1)))).compile(options).match(subject).getEnd());
+                    assertEquals(6, keywords.compile(options).match("k9999;").getEnd());
+                    assertEquals(0, lookahead.compile(options).match("a").getEnd());
+                }
+            } catch (Throwable t) {
+                thrown[0] = t;
+            }
+        }, "deep", 256 * 1024);
+
+        thread.start();
+        thread.join();
+        if (thrown[0] != null)
+            throw new AssertionError(thrown[0]);
+    }
+
+    @Test
+    public void cached_matchers_are_compiled_once() throws Exception {
+        final PatternCache cache = new PatternCache(2);
+        final PatternMatcher[] matchers = new PatternMatcher[8];
+
+        Thread[] threads = new Thread[matchers.length];
+        for (int i = 0; i < threads.length; ++i) {
+            final int index = i;
+            threads[i] = new Thread(() -> matchers[index] = cache.get(createParensGrammar()));
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        for (PatternMatcher matcher : matchers)
+            assertSame(matchers[0], matcher);
+
+        assertEquals(7, matchers[0].match("((abc))").getEnd());
+        assertEquals(1, cache.size());
+
+        CompileOptions bytecode = CompileOptions.DEFAULT.withEngine(Engine.BYTECODE);
+        PatternMatcher compiled = cache.get(createParensGrammar(), bytecode);
+        assertNotSame(matchers[0], compiled);
+        assertSame(compiled, cache.get(createParensGrammar(), CompileOptions.DEFAULT.withEngine(Engine.BYTECODE)));
+
+        // The least recently used matcher is evicted.
+        assertSame(matchers[0], cache.get(createParensGrammar()));
+        cache.get(createWordsPattern());
+        assertEquals(2, cache.size());
+        assertSame(matchers[0], cache.get(createParensGrammar()));
+        assertNotSame(compiled, cache.get(createParensGrammar(), bytecode));
+
+        // Failures aren't cached.
+        cache.clear();
+        try {
+            cache.get(ref("undefined"));
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(0, cache.size());
+        }
+    }
+
+    private static void assertCharacterSet(BitSet expected, CharacterSet characterSet) {
+        assertEquals(expected.cardinality(), characterSet.cardinality());
+        assertEquals(expected.nextSetBit(0), characterSet.first());
+
+        int[] ranges = characterSet.ranges();
+        for (int i = 0; i < ranges.length; i += 2) {
+            assertEquals(ranges[i], expected.nextSetBit(i == 0 ? 0 : ranges[i - 1] + 1));
+            assertEquals(ranges[i + 1] + 1, expected.nextClearBit(ranges[i]));
+        }
+    }
+
+    private static void assertMatch(int start, int end, PatternMatchResult result) {
+        assertTrue(result.matched());
+        assertEquals(start, result.getStart());
+        assertEquals(end, result.getEnd());
+    }
+
+    private static String[] drain(Capturer capturer) {
+        LinkedList<String> values = new LinkedList<>();
+        while (capturer.size() > 0)
+            values.addFirst(capturer.pop().value);
+
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Reads at most a few chars at a time.
+     */
+    private static class ChunkedReader extends Reader {
+
+        final String subject;
+
+        final int chunk;
+
+        int position = 0;
+
+        ChunkedReader(String subject, int chunk) {
+            this.subject = subject;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position == subject.length())
+                return -1;
+
+            int n = Math.min(Math.min(length, chunk), subject.length() - position);
+            subject.getChars(position, position + n, buffer, offset);
+            position += n;
+
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    /**
+     * Reads at most a few bytes at a time.
+     */
+    private static class ChunkedChannel implements ReadableByteChannel {
+
+        final byte[] subject;
+
+        final int chunk;
+
+        int position = 0;
+
+        ChunkedChannel(byte[] subject, int chunk) {
+            this.subject = subject;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) {
+            if (position == subject.length)
+                return -1;
+
+            int n = Math.min(Math.min(buffer.remaining(), chunk), subject.length - position);
+            buffer.put(subject, position, n);
+            position += n;
+
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    /**
+     * Generates words without allocating.
+     */
+    private static class WordsReader extends Reader {
+
+        static final String WORDS = "abc def, ghi. ";
+
+        final long length;
+
+        long position = 0;
+
+        WordsReader(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position == this.length)
+                return -1;
+
+            int n = (int) Math.min(length, this.length - position);
+            for (int i = 0; i < n; ++i)
+                buffer[offset + i] = WORDS.charAt((int) (position++ % WORDS.length()));
+
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+
+        return threadBean;
+    }
+
+    private static Pattern createWordsPattern() {
+        Pattern word = seq(LETTER.repeat(1), set(" ,.").repeat(0));
+        return choice(seq(str("ab"), word), word).repeat(1).then(EOS);
+    }
+
+    private static String createWordsSubject() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 100000)
+            sb.append("abc def, ghi. ");
+
+        return sb.toString();
+    }
+
     private static Pattern createParensGrammar() {
         Pattern openParen = str("(");
         Pattern closeParen = str(")");
@@ -6,6 +6,9 @@ import org.junit.Test;
 import se.fishtank.pegless.internal.ast.*;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -53,6 +56,45 @@ public class PatternTest {
         assertTrue(nodes.isEmpty());
     }
 
+    @Test
+    public void patterns_built_alike_are_equal() {
+        Action action = (subject, offset, position) -> position;
+
+        Pattern p1 = Pattern.grammar(new Rule("a", Pattern.seq(Pattern.str("("), Pattern.ref("a").repeat(-1), Pattern.ch(')'))),
+                new Rule("b", Pattern.action(Pattern.range("az"), action)));
+        Pattern p2 = Pattern.grammar(new Rule("a", Pattern.seq(Pattern.str("("), Pattern.ref("a").repeat(-1), Pattern.ch(')'))),
+                new Rule("b", Pattern.action(Pattern.range("az"), action)));
+
+        assertEquals(p1, p2);
+        assertEquals(p1.hashCode(), p2.hashCode());
+        assertEquals(Pattern.set("abc").then(Pattern.ref("x")), Pattern.set("cba").then(Pattern.ref("x")));
+
+        assertNotEquals(p1, Pattern.grammar(new Rule("a", Pattern.seq(Pattern.str("("), Pattern.ref("a").repeat(-1), Pattern.ch(']'))),
+                new Rule("b", Pattern.action(Pattern.range("az"), action))));
+        assertNotEquals(Pattern.ref("x"), Pattern.ref("y"));
+        assertNotEquals(Pattern.str("ab"), Pattern.str("ab").repeat(0));
+        assertNotEquals(Pattern.action(Pattern.n(1), action), Pattern.action(Pattern.n(1), (subject, offset, position) -> position));
+    }
+
+    @Test
+    public void combinators_share_their_operands() {
+        Pattern word = Pattern.seq(Pattern.range("az").repeat(1), Pattern.ch(' '), Pattern.ref("x"));
+        Pattern words = word.times(3);
+
+        SeqNode seqNode = (SeqNode) words.root;
+        assertSame(word.root, seqNode.getFirstSibling());
+        assertSame(word.root, ((SeqNode) seqNode.getSecondSibling()).getFirstSibling());
+        assertSame(word.root, ((SeqNode) seqNode.getSecondSibling()).getSecondSibling());
+
+        // Binding the call in one grammar leaves it open for others.
+        Pattern g1 = Pattern.grammar(new Rule("s", words), new Rule("x", Pattern.ch('1')));
+        Pattern g2 = Pattern.grammar(new Rule("s", words), new Rule("x", Pattern.ch('2')));
+        assertEquals(9, g1.compile().match("a 1b 1c 1").getEnd());
+        assertFalse(g1.compile().match("a 2b 2c 2").matched());
+        assertEquals(9, g2.compile().match("a 2b 2c 2").getEnd());
+        assertTrue(flatten(words.root).stream().anyMatch(node -> node instanceof CallNode && ((CallNode) node).isOpen()));
+    }
+
     public static LinkedList<Node<?>> flatten(Node<?> root) {
         LinkedList<Node<?>> nodes = new LinkedList<>();
         flatten(root, nodes);